@@ -0,0 +1,242 @@
+package space;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import javax.media.opengl.GL3;
+import javax.media.opengl.GLException;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.util.texture.Texture;
+
+/**
+ * Draws every asteroid of the field with one instanced call of a shared
+ * low-poly mesh.  Each asteroid contributes only its position, scale and
+ * orientation, which the vertex shader in asteroid.vert applies.  The per-instance
+ * buffer is rewritten every frame, orphaning the previous contents so the
+ * driver never waits for the GPU to finish reading them.
+ *
+ * Only asteroids inside the view frustum are uploaded.  A loose octree over
+ * the asteroids is brought up to date with their latest positions each
+ * frame and then culled against the frustum.
+ *
+ * The mesh comes in several levels of detail.  Each asteroid picks its
+ * level from its size on screen, as a LodMesh does, and the visible
+ * asteroids are sorted by level so each level is one instanced draw.
+ *
+ * Without instanced arrays the field falls back to one draw per asteroid.
+ */
+class AsteroidField {
+
+	private static final int INSTANCE_STRIDE = EntityStore.INSTANCE_FLOATS*Buffers.SIZEOF_FLOAT;
+	// half the size of the space indexed by the octree, which holds the whole belt
+	private static final float EXTENT = 4096.0f;
+	private static final int OCTREE_DEPTH = 6;
+
+	private final Mesh[] levels;
+	private final float[] minSize;
+	private final boolean instanced;
+	private final boolean mapped;
+	private ShaderProgram program;
+	private final int[] instanceBuffer = new int[1];
+	private FloatBuffer uploadBuffer;
+	private final float[] matrix = new float[16];
+	private final LooseOctree octree = new LooseOctree(EXTENT, OCTREE_DEPTH);
+	private int[] visibleIds = new int[0];
+	private float[] visibleInstances = new float[0];
+	private int visibleCount;
+	private int culledCount;
+	private int indexed;
+	// the level each asteroid was drawn at last frame
+	private byte[] asteroidLevel = new byte[0];
+	private final int[] levelStart;
+	private int triangles;
+
+	/**
+	 * @param levels unit spheres, finest first
+	 * @param segments the slices around each level
+	 */
+	AsteroidField(final GL2 gl, final ShaderLibrary shaders, final Mesh[] levels, final int[] segments) {
+		this.levels = levels;
+		minSize = LodMesh.thresholds(segments);
+		levelStart = new int[levels.length + 1];
+		mapped = gl.isFunctionAvailable("glMapBufferRange");
+		// the attribute divisor is GL 3.3, which JOGL only offers through the GL3 interface
+		if(!gl.isGL3() || !gl.isFunctionAvailable("glDrawElementsInstanced") || !gl.isFunctionAvailable("glVertexAttribDivisor")){
+			System.out.println("Instanced arrays unavailable, drawing asteroids one by one");
+			instanced = false;
+			return;
+		}
+		instanced = loadProgram(gl, shaders);
+		if(instanced){
+			gl.glGenBuffers(1, instanceBuffer, 0);
+		}
+	}
+
+	private boolean loadProgram(final GL2 gl, final ShaderLibrary shaders) {
+		try {
+			program = shaders.load(gl, "asteroid");
+			return true;
+		} catch (final IOException e) {
+			System.out.println(e.getMessage() + ", drawing asteroids one by one");
+		} catch (final GLException e) {
+			System.out.println(e.getMessage());
+			System.out.println("Drawing asteroids one by one");
+		}
+		return false;
+	}
+
+	/**
+	 * Draws the asteroids that fall inside frustum, binding the texture,
+	 * program and meshes through state.
+	 * @param instances EntityStore.INSTANCE_FLOATS floats per asteroid
+	 * @param bias the coarsest level to allow finer than
+	 * @param lod false to draw every asteroid at the finest level allowed
+	 * @return the number of draw calls issued
+	 */
+	int draw(final GL2 gl, final StateCache state, final float[] instances, final Frustum frustum, final int bias,
+			final boolean lod, final Texture texture) {
+		final int total = instances.length/EntityStore.INSTANCE_FLOATS;
+		if(visibleIds.length < total){
+			visibleIds = new int[total];
+			visibleInstances = new float[instances.length];
+			asteroidLevel = Arrays.copyOf(asteroidLevel, total);
+		}
+		for(; indexed > total; indexed--){
+			octree.remove(indexed - 1);
+		}
+		indexed = total;
+		for(int i = 0, o = 0; i < total; i++, o += EntityStore.INSTANCE_FLOATS){
+			// the mesh is a unit sphere, so the scale is the radius
+			octree.update(i, instances[o], instances[o+1], instances[o+2], instances[o+3]);
+		}
+		final int count = visibleCount = octree.cull(frustum, visibleIds);
+		culledCount = total - count;
+		// pick levels, then copy the visible asteroids out grouped by level
+		final int floor = Math.min(bias, levels.length - 1);
+		Arrays.fill(levelStart, 0);
+		for(int k = 0; k < count; k++){
+			final int id = visibleIds[k];
+			final int o = id*EntityStore.INSTANCE_FLOATS;
+			final float size = lod ? frustum.projectedSize(instances[o], instances[o+1], instances[o+2], instances[o+3])
+					: Float.MAX_VALUE;
+			asteroidLevel[id] = (byte)LodMesh.select(minSize, asteroidLevel[id], size);
+			levelStart[Math.max(asteroidLevel[id], floor) + 1]++;
+		}
+		triangles = 0;
+		for(int l = 0; l < levels.length; l++){
+			triangles += levelStart[l+1]*levels[l].getTriangleCount();
+			levelStart[l+1] += levelStart[l];
+		}
+		for(int k = 0; k < count; k++){
+			final int id = visibleIds[k];
+			final int slot = levelStart[Math.max(asteroidLevel[id], floor)]++;
+			System.arraycopy(instances, id*EntityStore.INSTANCE_FLOATS, visibleInstances,
+					slot*EntityStore.INSTANCE_FLOATS, EntityStore.INSTANCE_FLOATS);
+		}
+		// the copy advanced each start to the next level's
+		System.arraycopy(levelStart, 0, levelStart, 1, levels.length);
+		levelStart[0] = 0;
+		if(count == 0){
+			return 0;
+		}
+		state.bindTexture(gl, texture);
+		int calls = 0;
+		if(instanced){
+			upload(gl, visibleInstances, count*EntityStore.INSTANCE_FLOATS);
+			final GL3 gl3 = gl.getGL3();
+			state.useProgram(gl, program.getId());
+			// uniforms are set every frame, as a reloaded program starts without them
+			gl.glUniform1i(program.uniform(gl, "surface"), 0);
+			gl.glUniform1f(program.uniform(gl, "textured"), texture != null ? 1.0f : 0.0f);
+			final int positionAttribute = program.attribute(gl, "instancePosition");
+			final int rotationAttribute = program.attribute(gl, "instanceRotation");
+			gl.glEnableVertexAttribArray(positionAttribute);
+			gl3.glVertexAttribDivisor(positionAttribute, 1);
+			gl.glEnableVertexAttribArray(rotationAttribute);
+			gl3.glVertexAttribDivisor(rotationAttribute, 1);
+			for(int l = 0; l < levels.length; l++){
+				final int n = levelStart[l+1] - levelStart[l];
+				if(n == 0){
+					continue;
+				}
+				final long offset = (long)levelStart[l]*INSTANCE_STRIDE;
+				gl.glBindBuffer(GL.GL_ARRAY_BUFFER, instanceBuffer[0]);
+				gl.glVertexAttribPointer(positionAttribute, 4, GL.GL_FLOAT, false, INSTANCE_STRIDE, offset);
+				gl.glVertexAttribPointer(rotationAttribute, 4, GL.GL_FLOAT, false, INSTANCE_STRIDE,
+						offset + 4*Buffers.SIZEOF_FLOAT);
+				gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+				state.bindMesh(gl, levels[l]);
+				levels[l].drawElementsInstanced(gl, n);
+				calls++;
+			}
+			gl3.glVertexAttribDivisor(rotationAttribute, 0);
+			gl.glDisableVertexAttribArray(rotationAttribute);
+			gl3.glVertexAttribDivisor(positionAttribute, 0);
+			gl.glDisableVertexAttribArray(positionAttribute);
+		} else {
+			state.useProgram(gl, 0);
+			final float[] v = visibleInstances;
+			for(int l = 0; l < levels.length; l++){
+				if(levelStart[l] < levelStart[l+1]){
+					state.bindMesh(gl, levels[l]);
+				}
+				for(int k = levelStart[l]; k < levelStart[l+1]; k++){
+					final int o = k*EntityStore.INSTANCE_FLOATS;
+					EntityStore.modelMatrix(v[o], v[o+1], v[o+2], v[o+3], v[o+4], v[o+5], v[o+6], v[o+7], matrix, 0);
+					gl.glPushMatrix();
+					gl.glMultMatrixf(matrix, 0);
+					levels[l].drawElements(gl);
+					gl.glPopMatrix();
+				}
+			}
+			calls = count;
+		}
+		return calls;
+	}
+
+	private void upload(final GL2 gl, final float[] instances, final int floats) {
+		final long bytes = (long)floats*Buffers.SIZEOF_FLOAT;
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, instanceBuffer[0]);
+		// fresh storage each frame orphans the last frame's, which the GPU may still be reading
+		gl.glBufferData(GL.GL_ARRAY_BUFFER, bytes, null, GL2.GL_STREAM_DRAW);
+		if(mapped){
+			final ByteBuffer storage = gl.glMapBufferRange(GL.GL_ARRAY_BUFFER, 0, bytes,
+					GL.GL_MAP_WRITE_BIT | GL.GL_MAP_INVALIDATE_BUFFER_BIT);
+			storage.order(ByteOrder.nativeOrder()).asFloatBuffer().put(instances, 0, floats);
+			gl.glUnmapBuffer(GL.GL_ARRAY_BUFFER);
+		} else {
+			if(uploadBuffer == null || uploadBuffer.capacity() < floats){
+				uploadBuffer = Buffers.newDirectFloatBuffer(instances.length);
+			}
+			uploadBuffer.clear();
+			uploadBuffer.put(instances, 0, floats).flip();
+			gl.glBufferSubData(GL.GL_ARRAY_BUFFER, 0, bytes, uploadBuffer);
+		}
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+	}
+
+	int getVisibleCount() {
+		return visibleCount;
+	}
+
+	int getCulledCount() {
+		return culledCount;
+	}
+
+	int getTriangleCount() {
+		return triangles;
+	}
+
+	void dispose(final GL2 gl) {
+		if(instanced){
+			// the program belongs to the shader library
+			gl.glDeleteBuffers(1, instanceBuffer, 0);
+		}
+	}
+}
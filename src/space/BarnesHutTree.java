@@ -0,0 +1,253 @@
+package space;
+
+import java.util.Arrays;
+
+/**
+ * Octree over point masses for approximating their mutual gravity in
+ * O(n log n).  Each node keeps the total mass and centre of mass of the
+ * bodies below it; a node that looks small enough from a body, its size
+ * under theta times its distance, is taken as one mass at its centre of
+ * mass instead of being opened.
+ *
+ * Nodes are stored in flat arrays, children always after their parent, so
+ * the masses are summed in one pass from the last node back to the root.
+ * Leaves hold one body except at the deepest level, where bodies that
+ * land on the same point are chained together.  The arrays only grow, so
+ * rebuilding every step does not allocate once they are large enough.
+ * After build() the tree is only read, so accelerations may be computed
+ * from several threads at once.
+ */
+final class BarnesHutTree {
+
+	private static final int EMPTY = -1;
+	private static final int INTERNAL = -2;
+	private static final int MAX_DEPTH = 32;
+	// deep enough for a walk of a tree MAX_DEPTH levels deep
+	static final int STACK_SIZE = 8*MAX_DEPTH;
+
+	private final float thetaSquared;
+	private final float softeningSquared;
+
+	private int nodes;
+	private int[] child = new int[0];
+	// EMPTY, INTERNAL, or the first body of a leaf
+	private int[] firstBody = new int[0];
+	private float[] centreX = new float[0], centreY = new float[0], centreZ = new float[0];
+	private float[] half = new float[0];
+	private float[] mass = new float[0];
+	private float[] massX = new float[0], massY = new float[0], massZ = new float[0];
+	private int[] nextBody = new int[0];
+	// the bodies leaf by leaf, depth first, so neighbours in space are neighbours here
+	private int[] order = new int[0];
+	private int[] walk = new int[STACK_SIZE];
+
+	private float[] x, y, z, m;
+
+	/**
+	 * @param theta how small a node must look to stand in for its bodies;
+	 * 0 opens every node
+	 * @param softening distance below which the pull between two bodies stops growing
+	 */
+	BarnesHutTree(final float theta, final float softening) {
+		thetaSquared = theta*theta;
+		softeningSquared = softening*softening;
+	}
+
+	/**
+	 * Builds the tree over the first n bodies.  The arrays are read again
+	 * by accelerate() and must not change in between.
+	 */
+	void build(final float[] x, final float[] y, final float[] z, final float[] m, final int n) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.m = m;
+		if(nextBody.length < n){
+			nextBody = new int[n];
+			order = new int[n];
+		}
+		float extent = 0.0f;
+		for(int i = 0; i < n; i++){
+			extent = Math.max(extent, Math.max(Math.abs(x[i]), Math.max(Math.abs(y[i]), Math.abs(z[i]))));
+		}
+		nodes = 0;
+		newNode(0.0f, 0.0f, 0.0f, 1.0f + extent);
+		for(int i = 0; i < n; i++){
+			insert(i);
+		}
+		// children come after their parents, so walking back sums each node's children before it
+		for(int node = nodes - 1; node >= 0; node--){
+			float total = 0.0f, sx = 0.0f, sy = 0.0f, sz = 0.0f;
+			if(firstBody[node] == INTERNAL){
+				for(int c = 8*node; c < 8*node + 8; c++){
+					final int k = child[c];
+					if(k != EMPTY){
+						total += mass[k];
+						sx += mass[k]*massX[k];
+						sy += mass[k]*massY[k];
+						sz += mass[k]*massZ[k];
+					}
+				}
+			} else {
+				for(int i = firstBody[node]; i != EMPTY; i = nextBody[i]){
+					total += m[i];
+					sx += m[i]*x[i];
+					sy += m[i]*y[i];
+					sz += m[i]*z[i];
+				}
+			}
+			mass[node] = total;
+			if(total > 0.0f){
+				massX[node] = sx/total;
+				massY[node] = sy/total;
+				massZ[node] = sz/total;
+			}
+		}
+		int placed = 0;
+		int top = 0;
+		walk[top++] = 0;
+		while(top > 0){
+			final int node = walk[--top];
+			if(firstBody[node] == INTERNAL){
+				for(int c = 8*node; c < 8*node + 8; c++){
+					if(child[c] != EMPTY){
+						walk[top++] = child[c];
+					}
+				}
+			} else {
+				for(int i = firstBody[node]; i != EMPTY; i = nextBody[i]){
+					order[placed++] = i;
+				}
+			}
+		}
+	}
+
+	private int newNode(final float cx, final float cy, final float cz, final float h) {
+		if(nodes == half.length){
+			grow(Math.max(64, 2*nodes));
+		}
+		final int node = nodes++;
+		Arrays.fill(child, 8*node, 8*node + 8, EMPTY);
+		firstBody[node] = EMPTY;
+		centreX[node] = cx;
+		centreY[node] = cy;
+		centreZ[node] = cz;
+		half[node] = h;
+		return node;
+	}
+
+	private void grow(final int capacity) {
+		child = Arrays.copyOf(child, 8*capacity);
+		firstBody = Arrays.copyOf(firstBody, capacity);
+		centreX = Arrays.copyOf(centreX, capacity);
+		centreY = Arrays.copyOf(centreY, capacity);
+		centreZ = Arrays.copyOf(centreZ, capacity);
+		half = Arrays.copyOf(half, capacity);
+		mass = Arrays.copyOf(mass, capacity);
+		massX = Arrays.copyOf(massX, capacity);
+		massY = Arrays.copyOf(massY, capacity);
+		massZ = Arrays.copyOf(massZ, capacity);
+	}
+
+	private void insert(final int i) {
+		int node = 0;
+		for(int depth = 0;; depth++){
+			final int first = firstBody[node];
+			if(first == EMPTY){
+				firstBody[node] = i;
+				nextBody[i] = EMPTY;
+				return;
+			}
+			if(first != INTERNAL){
+				if(depth == MAX_DEPTH){
+					nextBody[i] = first;
+					firstBody[node] = i;
+					return;
+				}
+				// split the leaf, moving its body down a level
+				firstBody[node] = INTERNAL;
+				final int moved = childFor(node, first);
+				firstBody[moved] = first;
+				nextBody[first] = EMPTY;
+			}
+			node = childFor(node, i);
+		}
+	}
+
+	/**
+	 * @return the child of node holding body i, created empty if need be
+	 */
+	private int childFor(final int node, final int i) {
+		final int octant = (x[i] >= centreX[node] ? 4 : 0) | (y[i] >= centreY[node] ? 2 : 0)
+				| (z[i] >= centreZ[node] ? 1 : 0);
+		final int slot = 8*node + octant;
+		if(child[slot] == EMPTY){
+			final float h = 0.5f*half[node];
+			final int created = newNode(centreX[node] + ((octant & 4) != 0 ? h : -h),
+					centreY[node] + ((octant & 2) != 0 ? h : -h), centreZ[node] + ((octant & 1) != 0 ? h : -h), h);
+			// newNode may have replaced the arrays
+			child[slot] = created;
+		}
+		return child[slot];
+	}
+
+	/**
+	 * Writes the pull of every other body, per unit of gravitational
+	 * constant, into ax, ay, az for the bodies from first to last-1 in the
+	 * tree's order.  Bodies next to each other in that order open much the
+	 * same nodes, so splitting it into ranges keeps each thread's walks in
+	 * cache.
+	 * @param stack STACK_SIZE ints of scratch, one per thread
+	 */
+	void accelerate(final int first, final int last, final float[] ax, final float[] ay, final float[] az,
+			final int[] stack) {
+		for(int k = first; k < last; k++){
+			final int i = order[k];
+			final float px = x[i], py = y[i], pz = z[i];
+			float sx = 0.0f, sy = 0.0f, sz = 0.0f;
+			int top = 0;
+			stack[top++] = 0;
+			while(top > 0){
+				final int node = stack[--top];
+				final float dx = massX[node] - px, dy = massY[node] - py, dz = massZ[node] - pz;
+				final float d2 = dx*dx + dy*dy + dz*dz;
+				final float size = 2*half[node];
+				if(firstBody[node] == INTERNAL){
+					// a node holding the body itself is always opened
+					if(size*size < thetaSquared*d2 && (Math.abs(px - centreX[node]) > half[node]
+							|| Math.abs(py - centreY[node]) > half[node] || Math.abs(pz - centreZ[node]) > half[node])){
+						final float r2 = d2 + softeningSquared;
+						final float pull = mass[node]/(r2*(float)Math.sqrt(r2));
+						sx += pull*dx;
+						sy += pull*dy;
+						sz += pull*dz;
+					} else {
+						for(int c = 8*node; c < 8*node + 8; c++){
+							if(child[c] != EMPTY){
+								stack[top++] = child[c];
+							}
+						}
+					}
+				} else {
+					for(int j = firstBody[node]; j != EMPTY; j = nextBody[j]){
+						if(j != i){
+							final float bx = x[j] - px, by = y[j] - py, bz = z[j] - pz;
+							final float r2 = bx*bx + by*by + bz*bz + softeningSquared;
+							final float pull = m[j]/(r2*(float)Math.sqrt(r2));
+							sx += pull*bx;
+							sy += pull*by;
+							sz += pull*bz;
+						}
+					}
+				}
+			}
+			ax[i] = sx;
+			ay[i] = sy;
+			az[i] = sz;
+		}
+	}
+
+	int getNodeCount() {
+		return nodes;
+	}
+}
@@ -0,0 +1,29 @@
+package space;
+
+/**
+ * Everything input can change about a frame, fixed for the whole frame.
+ * The GL thread builds a new one whenever it drains input, so draw code
+ * never sees a camera that is halfway through an update.
+ */
+final class CameraState {
+
+	final float x;
+	final float y;
+	final float z;
+	final double rotateX;
+	final double rotateY;
+	final int drawType;
+
+	CameraState(final float x, final float y, final float z, final double rotateX, final double rotateY, final int drawType) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.rotateX = rotateX;
+		this.rotateY = rotateY;
+		this.drawType = drawType;
+	}
+
+	CameraState withDrawType(final int type) {
+		return new CameraState(x, y, z, rotateX, rotateY, type);
+	}
+}
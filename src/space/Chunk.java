@@ -0,0 +1,291 @@
+package space;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * One cube of the procedural universe, generated from its coordinates and
+ * the universe's seed alone, so it comes out the same every time it is
+ * visited.  A chunk may hold a star system, a glowing clump of points ringed
+ * by asteroid belts of points, and a few torus knots drawn from the same
+ * (P,Q) family as the toroid.
+ *
+ * generate() needs no GL and runs on a background thread.  The GL thread
+ * then uploads the chunk a piece at a time: first its points, then each
+ * knot.
+ */
+final class Chunk {
+
+	// bytes per point: position as three floats, then colour as RGBA bytes
+	static final int POINT_STRIDE = 16;
+	private static final float SYSTEM_CHANCE = 0.6f;
+	private static final int STAR_POINTS = 1500;
+	private static final int MAX_BELTS = 2;
+	private static final int MAX_KNOTS = 2;
+	private static final int KNOT_SAMPLES = 256;
+	private static final int KNOT_SIDES = 12;
+
+	final long key;
+	final int cx, cy, cz;
+	// the centre of the chunk in world space
+	final float x, y, z;
+	// System.nanoTime() when the chunk was asked for
+	final long requested;
+	// kept by Universe: the last time the chunk was in range, and its generation
+	int wanted;
+	Future<?> generation;
+
+	private ByteBuffer points;
+	private int pointCount;
+	private Toroid[] knots = new Toroid[0];
+	// each knot's centre relative to the chunk's, and its colour
+	private float[] knotOffsets = new float[0];
+	private float[] knotColours = new float[0];
+	private final int[] pointBuffer = new int[1];
+	// pieces uploaded so far: the points, then each knot
+	private int uploaded;
+	private long bytes;
+
+	Chunk(final int cx, final int cy, final int cz, final float size, final long requested) {
+		this.cx = cx;
+		this.cy = cy;
+		this.cz = cz;
+		key = key(cx, cy, cz);
+		x = cx*size;
+		y = cy*size;
+		z = cz*size;
+		this.requested = requested;
+	}
+
+	/**
+	 * Packs chunk coordinates of up to 21 bits each into one long.
+	 */
+	static long key(final int cx, final int cy, final int cz) {
+		return ((long)cx & 0x1FFFFF) << 42 | ((long)cy & 0x1FFFFF) << 21 | (long)cz & 0x1FFFFF;
+	}
+
+	/**
+	 * Fills the chunk with what universeSeed puts at its coordinates.  The
+	 * chunk at the origin is left empty for the scene already there.
+	 * @param size the edge of a chunk, which everything stays well inside
+	 */
+	void generate(final long universeSeed, final float size) {
+		if(cx == 0 && cy == 0 && cz == 0){
+			points = Buffers.newDirectByteBuffer(0);
+			return;
+		}
+		final Random random = new Random(mix(universeSeed ^ key));
+		final float half = 0.5f*size;
+		int belts = 0;
+		final int[] beltPoints = new int[MAX_BELTS];
+		final boolean system = random.nextFloat() < SYSTEM_CHANCE;
+		if(system){
+			belts = random.nextInt(MAX_BELTS + 1);
+			for(int b = 0; b < belts; b++){
+				beltPoints[b] = 3000 + random.nextInt(3000);
+			}
+		}
+		pointCount = system ? STAR_POINTS : 0;
+		for(int b = 0; b < belts; b++){
+			pointCount += beltPoints[b];
+		}
+		points = Buffers.newDirectByteBuffer(pointCount*POINT_STRIDE);
+		if(system){
+			final float sx = 0.3f*half*(2*random.nextFloat() - 1);
+			final float sy = 0.3f*half*(2*random.nextFloat() - 1);
+			final float sz = 0.3f*half*(2*random.nextFloat() - 1);
+			// a hot white or blue star, or a cool orange one
+			final int star = random.nextBoolean() ? 0xE0E8FF : 0xFFB060;
+			for(int i = 0; i < STAR_POINTS; i++){
+				putPoint(sx + 15*(float)random.nextGaussian(), sy + 15*(float)random.nextGaussian(),
+						sz + 15*(float)random.nextGaussian(), star);
+			}
+			for(int b = 0; b < belts; b++){
+				putBelt(random, beltPoints[b], sx, sy, sz, 150 + 550*random.nextFloat());
+			}
+		}
+		points.flip();
+
+		final int knotCount = random.nextInt(MAX_KNOTS + 1);
+		knots = new Toroid[knotCount];
+		knotOffsets = new float[3*knotCount];
+		knotColours = new float[3*knotCount];
+		for(int k = 0; k < knotCount; k++){
+			int p, q;
+			do {
+				p = 1 + random.nextInt(7);
+				q = 1 + random.nextInt(7);
+			} while(p == q || gcd(p, q) != 1);
+			final float a = 60 + 140*random.nextFloat();
+			final float b = a*(0.2f + 0.25f*random.nextFloat());
+			final float r = a*(0.05f + 0.05f*random.nextFloat());
+			knots[k] = new Toroid(a, b, p, q, KNOT_SAMPLES, KNOT_SIDES, r, Toroid.DrawMode.TRIANGLES, VertexFormat.FLOAT);
+			knots[k].loadVertices();
+			for(int i = 0; i < 3; i++){
+				knotOffsets[3*k + i] = 0.6f*half*(2*random.nextFloat() - 1);
+				knotColours[3*k + i] = 0.4f + 0.6f*random.nextFloat();
+			}
+		}
+	}
+
+	// a ring of rock around (sx, sy, sz), tipped at a random angle
+	private void putBelt(final Random random, final int n, final float sx, final float sy, final float sz, final float radius) {
+		final double tilt = Math.PI*random.nextDouble();
+		final double heading = 2*Math.PI*random.nextDouble();
+		final float ct = (float)Math.cos(tilt), st = (float)Math.sin(tilt);
+		final float ch = (float)Math.cos(heading), sh = (float)Math.sin(heading);
+		for(int i = 0; i < n; i++){
+			final double angle = 2*Math.PI*random.nextDouble();
+			final float r = radius*(1 + 0.05f*(float)random.nextGaussian());
+			final float px = r*(float)Math.cos(angle);
+			final float py = 0.02f*radius*(float)random.nextGaussian();
+			final float pz = r*(float)Math.sin(angle);
+			// tip about x, then turn about y
+			final float ty = py*ct - pz*st;
+			final float tz = py*st + pz*ct;
+			final int grey = 0x60 + random.nextInt(0x40);
+			putPoint(sx + px*ch + tz*sh, sy + ty, sz - px*sh + tz*ch, grey << 16 | (grey - 0x10) << 8 | grey - 0x20);
+		}
+	}
+
+	private void putPoint(final float px, final float py, final float pz, final int rgb) {
+		points.putFloat(px).putFloat(py).putFloat(pz);
+		points.put((byte)(rgb >>> 16)).put((byte)(rgb >>> 8)).put((byte)rgb).put((byte)0xFF);
+	}
+
+	private static int gcd(final int a, final int b) {
+		return b == 0 ? a : gcd(b, a % b);
+	}
+
+	// splitmix64's finaliser, so neighbouring chunks get unrelated seeds
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30))*0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27))*0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Uploads the next piece of the chunk.
+	 * @return the bytes uploaded
+	 */
+	long uploadNext(final GL2 gl) {
+		long sent;
+		if(uploaded == 0){
+			sent = (long)pointCount*POINT_STRIDE;
+			if(pointCount > 0){
+				gl.glGenBuffers(1, pointBuffer, 0);
+				gl.glBindBuffer(GL.GL_ARRAY_BUFFER, pointBuffer[0]);
+				gl.glBufferData(GL.GL_ARRAY_BUFFER, sent, points, GL.GL_STATIC_DRAW);
+				gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+			}
+			points = null;
+		} else {
+			final Toroid knot = knots[uploaded - 1];
+			sent = knot.getVertexBytes();
+			knot.upload(gl);
+		}
+		uploaded++;
+		bytes += sent;
+		return sent;
+	}
+
+	/**
+	 * @return the bytes the chunk will hold on the GPU once uploaded,
+	 * after generate() and before any upload
+	 */
+	long getGeneratedBytes() {
+		long total = (long)pointCount*POINT_STRIDE;
+		for(final Toroid knot : knots){
+			total += knot.getVertexBytes();
+		}
+		return total;
+	}
+
+	/**
+	 * @return whether other, also generated and not yet uploaded, has the
+	 * same points and knots
+	 */
+	boolean sameAs(final Chunk other) {
+		if(!points.equals(other.points) || knots.length != other.knots.length
+				|| !Arrays.equals(knotOffsets, other.knotOffsets) || !Arrays.equals(knotColours, other.knotColours)){
+			return false;
+		}
+		for(int k = 0; k < knots.length; k++){
+			if(!knots[k].getFrameVertices().equals(other.knots[k].getFrameVertices())){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	boolean isUploaded() {
+		return uploaded == knots.length + 1;
+	}
+
+	/**
+	 * @return the bytes the chunk holds on the GPU
+	 */
+	long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Draws the chunk's points and knots.  GL must have no program,
+	 * texture or vertex arrays in use, and is left so.
+	 * @return the number of draw calls issued
+	 */
+	int draw(final GL2 gl) {
+		int calls = 0;
+		gl.glPushMatrix();
+		gl.glTranslatef(x, y, z);
+		if(pointCount > 0){
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, pointBuffer[0]);
+			gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+			gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+			gl.glVertexPointer(3, GL.GL_FLOAT, POINT_STRIDE, 0);
+			gl.glColorPointer(4, GL.GL_UNSIGNED_BYTE, POINT_STRIDE, 3*Buffers.SIZEOF_FLOAT);
+			gl.glDrawArrays(GL.GL_POINTS, 0, pointCount);
+			gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+			gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+			calls++;
+		}
+		for(int k = 0; k < knots.length; k++){
+			gl.glColor3f(knotColours[3*k], knotColours[3*k + 1], knotColours[3*k + 2]);
+			gl.glTranslatef(knotOffsets[3*k], knotOffsets[3*k + 1], knotOffsets[3*k + 2]);
+			knots[k].drawToroid(gl, true);
+			gl.glTranslatef(-knotOffsets[3*k], -knotOffsets[3*k + 1], -knotOffsets[3*k + 2]);
+			calls += knots[k].getDrawCallCount();
+		}
+		if(knots.length > 0){
+			gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+			gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+			gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+		}
+		gl.glColor4f(1.0f, 1.0f, 1.0f, 1.0f);
+		gl.glPopMatrix();
+		return calls;
+	}
+
+	/**
+	 * Frees whatever has been uploaded.
+	 */
+	void dispose(final GL2 gl) {
+		if(uploaded > 0 && pointCount > 0){
+			gl.glDeleteBuffers(1, pointBuffer, 0);
+		}
+		for(int k = 0; k + 1 < uploaded; k++){
+			knots[k].dispose(gl);
+		}
+		uploaded = 0;
+		bytes = 0;
+	}
+}
@@ -0,0 +1,114 @@
+package space;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Times collision detection over bodies drifting through a box, one in
+ * five a capsule, at a density that stays the same whatever their number,
+ * so the cost per body should too.  Each row is one body count: the time to
+ * find every contact per tick and per body, the contacts and narrow-phase
+ * tests per tick, and the heap bytes allocated over all measured ticks,
+ * which should be 0.
+ *
+ * java space.CollisionBenchmark [-n N] [-ticks T]
+ */
+public class CollisionBenchmark {
+
+	private static final int WARMUP_TICKS = 50;
+	private static final float CELL_SIZE = 12.0f;
+	// the box holds one body per this many cubic units
+	private static final float VOLUME_PER_BODY = 2000.0f;
+	private static final float SPEED = 20.0f;
+
+	public static void main(final String[] args) {
+		int[] counts = {12500, 25000, 50000, 100000};
+		int ticks = 200;
+		for(int i = 0; i+1 < args.length; i += 2){
+			if(args[i].equals("-n")){
+				counts = new int[]{Integer.parseInt(args[i+1])};
+			} else if(args[i].equals("-ticks")){
+				ticks = Integer.parseInt(args[i+1]);
+			}
+		}
+		final com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		final long thread = Thread.currentThread().getId();
+
+		System.out.println("bodies\tticks\tmean(ms)\tbest(ms)\tns/body\tcontacts\ttests\theap bytes");
+		for(final int n : counts){
+			final float side = (float)Math.cbrt(n*VOLUME_PER_BODY);
+			final CollisionWorld world = new CollisionWorld(CELL_SIZE);
+			final float[] x = new float[n], y = new float[n], z = new float[n];
+			final float[] vx = new float[n], vy = new float[n], vz = new float[n];
+			final float[] r = new float[n], axis = new float[n];
+			final Random random = new Random(1);
+			for(int i = 0; i < n; i++){
+				world.add();
+				x[i] = side*random.nextFloat();
+				y[i] = side*random.nextFloat();
+				z[i] = side*random.nextFloat();
+				vx[i] = SPEED*(random.nextFloat() - 0.5f);
+				vy[i] = SPEED*(random.nextFloat() - 0.5f);
+				vz[i] = SPEED*(random.nextFloat() - 0.5f);
+				r[i] = 1.0f + 3.0f*random.nextFloat();
+				if(i % 5 == 0){
+					axis[i] = 1.0f + 2.0f*random.nextFloat();
+					r[i] = Math.min(r[i], 2.0f);
+				}
+			}
+			final float dt = 1.0f/Simulation.TICKS_PER_SECOND;
+			for(int t = 0; t < WARMUP_TICKS; t++){
+				move(world, side, dt, x, y, z, vx, vy, vz, r, axis);
+				world.detect();
+			}
+
+			long best = Long.MAX_VALUE;
+			long total = 0;
+			long contacts = 0;
+			long tests = 0;
+			final long allocated = threads.getThreadAllocatedBytes(thread);
+			for(int t = 0; t < ticks; t++){
+				move(world, side, dt, x, y, z, vx, vy, vz, r, axis);
+				final long start = System.nanoTime();
+				contacts += world.detect();
+				final long elapsed = System.nanoTime() - start;
+				tests += world.getPairsTested();
+				best = Math.min(best, elapsed);
+				total += elapsed;
+			}
+			final long heap = threads.getThreadAllocatedBytes(thread) - allocated;
+			System.out.printf("%d\t%d\t%.3f\t%.3f\t%.1f\t%d\t%d\t%d%n", n, ticks, total/1e6/ticks, best/1e6,
+					(double)total/ticks/n, contacts/ticks, tests/ticks, heap);
+		}
+	}
+
+	/**
+	 * Moves every body, turning it back at the walls of the box, and hands
+	 * its new place to world.  Capsules lie along their direction of travel.
+	 */
+	private static void move(final CollisionWorld world, final float side, final float dt,
+			final float[] x, final float[] y, final float[] z, final float[] vx, final float[] vy, final float[] vz,
+			final float[] r, final float[] axis) {
+		for(int i = 0; i < x.length; i++){
+			x[i] += vx[i]*dt;
+			y[i] += vy[i]*dt;
+			z[i] += vz[i]*dt;
+			if(x[i] < 0.0f || x[i] > side){
+				vx[i] = -vx[i];
+			}
+			if(y[i] < 0.0f || y[i] > side){
+				vy[i] = -vy[i];
+			}
+			if(z[i] < 0.0f || z[i] > side){
+				vz[i] = -vz[i];
+			}
+			if(axis[i] == 0.0f){
+				world.setSphere(i, x[i], y[i], z[i], r[i]);
+			} else {
+				final float scale = axis[i]/(float)Math.sqrt(vx[i]*vx[i] + vy[i]*vy[i] + vz[i]*vz[i]);
+				world.setCapsule(i, x[i], y[i], z[i], vx[i]*scale, vy[i]*scale, vz[i]*scale, r[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package space;
+
+import java.util.Arrays;
+
+/**
+ * Finds every overlapping pair among a set of spheres and capsules.  A
+ * capsule is a segment, given by its centre and half its axis, swept by a
+ * radius; a sphere is a capsule with no axis, so one closest-point test
+ * between segments serves every pair of shapes.
+ *
+ * The broad phase is a uniform grid hashed into a table twice the size of
+ * the body count.  Bodies are counting-sorted into the table by the cell
+ * holding their centre, and each body looks for partners only in its own
+ * cell and the 26 around it; as each pair of neighbouring cells need only
+ * be visited from one side, that is 13 of them.  That finds every overlap as long as no
+ * body's bounds reach further than half a cell, so bodies larger than that
+ * are kept apart and tested against everything, as the octree does with
+ * spheres too large for its root.
+ *
+ * Bodies and contacts live in primitive arrays which only grow, so once
+ * they are large enough detect() does not allocate.  The contact arrays are
+ * read directly and are replaced when they grow.
+ */
+final class CollisionWorld {
+
+	private static final int INITIAL_CAPACITY = 64;
+	private static final int OVERSIZE = -1;
+	// x and y offsets of the rows of neighbouring cells looked at from each
+	// cell, which with the next cell along z are the 13 that sort after it
+	private static final int[] ROWS = {0, 1,  1, -1,  1, 0,  1, 1};
+	// below this squared length a segment is taken to be a point
+	private static final float EPSILON = 1e-12f;
+
+	private final float inverseCell;
+	private final float oversize;
+
+	private int count;
+	// centre, half axis, radius, and radius of a sphere around the whole body
+	private float[] x = new float[0], y = new float[0], z = new float[0];
+	private float[] hx = new float[0], hy = new float[0], hz = new float[0];
+	private float[] radius = new float[0];
+	private float[] bound = new float[0];
+	private int[] cellX, cellY, cellZ;
+	private int[] bucket;
+	private int[] bucketStart = new int[1];
+	private int[] sorted;
+	private int[] sortedX, sortedY, sortedZ;
+	private float[] centreX, centreY, centreZ, reach;
+	private int[] large;
+	private int largeCount;
+	private long pairsTested;
+
+	// each contact's bodies, the unit normal from a towards b and how far they overlap
+	int contactCount;
+	int[] contactA = new int[0], contactB = new int[0];
+	float[] normalX = new float[0], normalY = new float[0], normalZ = new float[0], depth = new float[0];
+
+	/**
+	 * @param cellSize at least twice the bounding radius of almost every body
+	 */
+	CollisionWorld(final float cellSize) {
+		inverseCell = 1.0f/cellSize;
+		oversize = 0.5f*cellSize;
+		grow(INITIAL_CAPACITY);
+		growContacts(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Adds a body with no size at the origin, to be placed with setSphere()
+	 * or setCapsule().
+	 * @return its index
+	 */
+	int add() {
+		if(count == x.length){
+			grow(2*count);
+		}
+		final int i = count++;
+		setSphere(i, 0.0f, 0.0f, 0.0f, 0.0f);
+		return i;
+	}
+
+	void setSphere(final int i, final float cx, final float cy, final float cz, final float r) {
+		setCapsule(i, cx, cy, cz, 0.0f, 0.0f, 0.0f, r);
+	}
+
+	/**
+	 * @param cx centre of the segment
+	 * @param ax half the segment, from its centre to one end
+	 */
+	void setCapsule(final int i, final float cx, final float cy, final float cz,
+			final float ax, final float ay, final float az, final float r) {
+		x[i] = cx;
+		y[i] = cy;
+		z[i] = cz;
+		hx[i] = ax;
+		hy[i] = ay;
+		hz[i] = az;
+		radius[i] = r;
+		bound[i] = r + (float)Math.sqrt(ax*ax + ay*ay + az*az);
+	}
+
+	void clear() {
+		count = 0;
+		contactCount = 0;
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return how many pairs got as far as the narrow phase in the last detect()
+	 */
+	long getPairsTested() {
+		return pairsTested;
+	}
+
+	private void grow(final int capacity) {
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		z = Arrays.copyOf(z, capacity);
+		hx = Arrays.copyOf(hx, capacity);
+		hy = Arrays.copyOf(hy, capacity);
+		hz = Arrays.copyOf(hz, capacity);
+		radius = Arrays.copyOf(radius, capacity);
+		bound = Arrays.copyOf(bound, capacity);
+		cellX = new int[capacity];
+		cellY = new int[capacity];
+		cellZ = new int[capacity];
+		bucket = new int[capacity];
+		sorted = new int[capacity];
+		sortedX = new int[capacity];
+		sortedY = new int[capacity];
+		sortedZ = new int[capacity];
+		centreX = new float[capacity];
+		centreY = new float[capacity];
+		centreZ = new float[capacity];
+		reach = new float[capacity];
+		large = new int[capacity];
+	}
+
+	private void growContacts(final int capacity) {
+		contactA = Arrays.copyOf(contactA, capacity);
+		contactB = Arrays.copyOf(contactB, capacity);
+		normalX = Arrays.copyOf(normalX, capacity);
+		normalY = Arrays.copyOf(normalY, capacity);
+		normalZ = Arrays.copyOf(normalZ, capacity);
+		depth = Arrays.copyOf(depth, capacity);
+	}
+
+	/**
+	 * Finds every overlapping pair, each once, in no particular order.
+	 * @return contactCount
+	 */
+	int detect() {
+		contactCount = 0;
+		pairsTested = 0;
+		// a power of two at least twice the body count
+		final int table = Integer.highestOneBit(Math.max(1, 2*count - 1)) << 1;
+		if(bucketStart.length < table + 1){
+			bucketStart = new int[table + 1];
+		}
+		final int mask = table - 1;
+		Arrays.fill(bucketStart, 0, table + 1, 0);
+		largeCount = 0;
+		for(int i = 0; i < count; i++){
+			if(bound[i] > oversize){
+				bucket[i] = OVERSIZE;
+				large[largeCount++] = i;
+				continue;
+			}
+			final int cx = cellX[i] = floor(x[i]*inverseCell);
+			final int cy = cellY[i] = floor(y[i]*inverseCell);
+			final int cz = cellZ[i] = floor(z[i]*inverseCell);
+			bucket[i] = hash(cx, cy, cz) & mask;
+			bucketStart[bucket[i] + 1]++;
+		}
+		for(int b = 0; b < table; b++){
+			bucketStart[b + 1] += bucketStart[b];
+		}
+		// what the broad phase reads is copied out in bucket order, so scanning a bucket reads memory in order
+		for(int i = 0; i < count; i++){
+			if(bucket[i] != OVERSIZE){
+				final int k = bucketStart[bucket[i]]++;
+				sorted[k] = i;
+				sortedX[k] = cellX[i];
+				sortedY[k] = cellY[i];
+				sortedZ[k] = cellZ[i];
+				centreX[k] = x[i];
+				centreY[k] = y[i];
+				centreZ[k] = z[i];
+				reach[k] = bound[i];
+			}
+		}
+		// the sort advanced each start to the next bucket's
+		System.arraycopy(bucketStart, 0, bucketStart, 1, table);
+		bucketStart[0] = 0;
+
+		final int placed = count - largeCount;
+		for(int k = 0; k < placed; k++){
+			final int cx = sortedX[k], cy = sortedY[k], cz = sortedZ[k];
+			// the rest of the body's own cell and the one after it along z, then
+			// the rows of three cells along z that make up the rest of the half
+			scan(k, cx, cy, cz, 2, k + 1, table);
+			for(int n = 0; n < ROWS.length; n += 2){
+				scan(k, cx + ROWS[n], cy + ROWS[n+1], cz - 1, 3, 0, table);
+			}
+		}
+		for(int l = 0; l < largeCount; l++){
+			final int i = large[l];
+			for(int j = 0; j < count; j++){
+				if(j != i && (bucket[j] != OVERSIZE || j > i)){
+					test(i, j);
+				}
+			}
+		}
+		return contactCount;
+	}
+
+	/**
+	 * Tests the body in slot k against those in cells (nx, ny, z0) onwards
+	 * along z, which hash to consecutive buckets, from slot from onwards.
+	 */
+	private void scan(final int k, final int nx, final int ny, final int z0, final int cells, final int from,
+			final int table) {
+		final int b = hash(nx, ny, z0) & (table - 1);
+		if(b + cells <= table){
+			scanSlots(k, Math.max(from, bucketStart[b]), bucketStart[b + cells], nx, ny, z0, z0 + cells - 1);
+		} else {
+			// the row wraps around the end of the table
+			scanSlots(k, Math.max(from, bucketStart[b]), bucketStart[table], nx, ny, z0, z0 + cells - 1);
+			scanSlots(k, 0, bucketStart[b + cells - table], nx, ny, z0, z0 + cells - 1);
+		}
+	}
+
+	private void scanSlots(final int k, final int from, final int to, final int nx, final int ny,
+			final int minZ, final int maxZ) {
+		final float px = centreX[k], py = centreY[k], pz = centreZ[k], pr = reach[k];
+		for(int m = from; m < to; m++){
+			// other cells may share the buckets
+			if(sortedX[m] == nx && sortedY[m] == ny && sortedZ[m] >= minZ && sortedZ[m] <= maxZ){
+				final float dx = centreX[m] - px, dy = centreY[m] - py, dz = centreZ[m] - pz;
+				final float r = pr + reach[m];
+				if(dx*dx + dy*dy + dz*dz < r*r){
+					narrow(sorted[k], sorted[m]);
+				}
+			}
+		}
+	}
+
+	private static int floor(final float f) {
+		final int i = (int)f;
+		return f < i ? i - 1 : i;
+	}
+
+	private static int hash(final int cx, final int cy, final int cz) {
+		// consecutive cells along z land in consecutive buckets
+		return (cx*73856093 ^ cy*19349663) + cz;
+	}
+
+	private void test(final int i, final int j) {
+		final float dx = x[j] - x[i];
+		final float dy = y[j] - y[i];
+		final float dz = z[j] - z[i];
+		final float r = bound[i] + bound[j];
+		if(dx*dx + dy*dy + dz*dz < r*r){
+			narrow(i, j);
+		}
+	}
+
+	private void narrow(final int i, final int j) {
+		pairsTested++;
+		// closest points of the segments p1 + s*d1 and p2 + t*d2, s and t in [0, 1]
+		final float d1x = 2*hx[i], d1y = 2*hy[i], d1z = 2*hz[i];
+		final float d2x = 2*hx[j], d2y = 2*hy[j], d2z = 2*hz[j];
+		final float p1x = x[i] - hx[i], p1y = y[i] - hy[i], p1z = z[i] - hz[i];
+		final float p2x = x[j] - hx[j], p2y = y[j] - hy[j], p2z = z[j] - hz[j];
+		final float rx = p1x - p2x, ry = p1y - p2y, rz = p1z - p2z;
+		final float a = d1x*d1x + d1y*d1y + d1z*d1z;
+		final float e = d2x*d2x + d2y*d2y + d2z*d2z;
+		final float f = d2x*rx + d2y*ry + d2z*rz;
+		float s = 0.0f;
+		float t = 0.0f;
+		if(a > EPSILON || e > EPSILON){
+			if(a <= EPSILON){
+				t = clamp(f/e);
+			} else {
+				final float c = d1x*rx + d1y*ry + d1z*rz;
+				if(e <= EPSILON){
+					s = clamp(-c/a);
+				} else {
+					final float b = d1x*d2x + d1y*d2y + d1z*d2z;
+					final float denominator = a*e - b*b;
+					// parallel segments have no single closest pair, so any s will do
+					s = denominator > 0.0f ? clamp((b*f - c*e)/denominator) : 0.0f;
+					t = (b*s + f)/e;
+					if(t < 0.0f){
+						t = 0.0f;
+						s = clamp(-c/a);
+					} else if(t > 1.0f){
+						t = 1.0f;
+						s = clamp((b - c)/a);
+					}
+				}
+			}
+		}
+		float nx = p2x + d2x*t - p1x - d1x*s;
+		float ny = p2y + d2y*t - p1y - d1y*s;
+		float nz = p2z + d2z*t - p1z - d1z*s;
+		final float distance2 = nx*nx + ny*ny + nz*nz;
+		final float sum = radius[i] + radius[j];
+		if(distance2 >= sum*sum){
+			return;
+		}
+		final float distance = (float)Math.sqrt(distance2);
+		if(distance > 0.0f){
+			nx /= distance;
+			ny /= distance;
+			nz /= distance;
+		} else {
+			// the segments cross, so any direction separates them
+			nx = 0.0f;
+			ny = 1.0f;
+			nz = 0.0f;
+		}
+		if(contactCount == contactA.length){
+			growContacts(2*contactCount);
+		}
+		final int c = contactCount++;
+		contactA[c] = i;
+		contactB[c] = j;
+		normalX[c] = nx;
+		normalY[c] = ny;
+		normalZ[c] = nz;
+		depth[c] = sum - distance;
+	}
+
+	private static float clamp(final float v) {
+		return v < 0.0f ? 0.0f : v > 1.0f ? 1.0f : v;
+	}
+}
@@ -0,0 +1,65 @@
+package space;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Times one simulation tick of the entity store: moving and turning every
+ * entity.  It prints the time per tick and per entity, and the heap bytes
+ * allocated over all measured ticks, which should not grow with the
+ * number of entities or ticks.
+ *
+ * java space.EntityBenchmark [-n N] [-ticks T]
+ */
+public class EntityBenchmark {
+
+	private static final int WARMUP_TICKS = 50;
+
+	public static void main(final String[] args) {
+		int n = 1000000;
+		int ticks = 500;
+		for(int i = 0; i+1 < args.length; i += 2){
+			if(args[i].equals("-n")){
+				n = Integer.parseInt(args[i+1]);
+			} else if(args[i].equals("-ticks")){
+				ticks = Integer.parseInt(args[i+1]);
+			}
+		}
+		final com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		final long thread = Thread.currentThread().getId();
+
+		final EntityStore store = new EntityStore(n);
+		final Random random = new Random(1);
+		for(int e = 0; e < n; e++){
+			final int i = store.add(EntityStore.ASTEROID, 10000*random.nextFloat(), 10000*random.nextFloat(),
+					10000*random.nextFloat(), 1 + 8*random.nextFloat());
+			store.setVelocity(i, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f);
+			store.setSpin(i, random.nextFloat(), random.nextFloat(), random.nextFloat());
+		}
+		final float dt = 1.0f/Simulation.TICKS_PER_SECOND;
+		for(int t = 0; t < WARMUP_TICKS; t++){
+			store.update(dt);
+		}
+
+		long best = Long.MAX_VALUE;
+		long total = 0;
+		final long allocated = threads.getThreadAllocatedBytes(thread);
+		for(int t = 0; t < ticks; t++){
+			final long start = System.nanoTime();
+			store.update(dt);
+			final long elapsed = System.nanoTime() - start;
+			best = Math.min(best, elapsed);
+			total += elapsed;
+		}
+		final long heap = threads.getThreadAllocatedBytes(thread) - allocated;
+
+		System.out.println("entities\tticks\tmean(ms)\tbest(ms)\tns/entity\theap bytes");
+		System.out.printf("%d\t%d\t%.3f\t%.3f\t%.2f\t%d%n", n, ticks, total/1e6/ticks, best/1e6,
+				(double)total/ticks/n, heap);
+		// keep the result live
+		if(store.qw[0] > 2.0f){
+			System.out.println(store.px[0]);
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package space;
+
+import java.util.Arrays;
+
+/**
+ * Every moving object in the scene, one index per entity, with each field
+ * in its own primitive array so that the update and culling loops walk
+ * memory in order and never allocate.  Indices stay dense: removing an
+ * entity moves the last one into its place.
+ *
+ * The arrays are read directly by hot loops.  They are replaced when the
+ * store grows, so callers must not hold on to them across add().
+ */
+final class EntityStore {
+
+	static final int PLANET = 0;
+	static final int ASTEROID = 1;
+	static final int SHIP = 2;
+	static final int ALIEN_SHIP = 3;
+
+	static final int INSTANCE_FLOATS = 8;
+	private static final int INITIAL_CAPACITY = 64;
+
+	int count;
+	// position and velocity per second
+	float[] px, py, pz;
+	float[] vx, vy, vz;
+	// orientation as a unit quaternion and angular velocity in radians per second
+	float[] qx, qy, qz, qw;
+	float[] wx, wy, wz;
+	float[] scale;
+	int[] mesh;
+
+	EntityStore() {
+		this(INITIAL_CAPACITY);
+	}
+
+	EntityStore(final int capacity) {
+		px = new float[capacity];
+		py = new float[capacity];
+		pz = new float[capacity];
+		vx = new float[capacity];
+		vy = new float[capacity];
+		vz = new float[capacity];
+		qx = new float[capacity];
+		qy = new float[capacity];
+		qz = new float[capacity];
+		qw = new float[capacity];
+		wx = new float[capacity];
+		wy = new float[capacity];
+		wz = new float[capacity];
+		scale = new float[capacity];
+		mesh = new int[capacity];
+	}
+
+	/**
+	 * Adds a still, unrotated entity.
+	 * @return its index
+	 */
+	int add(final int meshId, final float x, final float y, final float z, final float size) {
+		if(count == px.length){
+			grow(Math.max(INITIAL_CAPACITY, 2*count));
+		}
+		final int i = count++;
+		px[i] = x;
+		py[i] = y;
+		pz[i] = z;
+		vx[i] = vy[i] = vz[i] = 0.0f;
+		qx[i] = qy[i] = qz[i] = 0.0f;
+		qw[i] = 1.0f;
+		wx[i] = wy[i] = wz[i] = 0.0f;
+		scale[i] = size;
+		mesh[i] = meshId;
+		return i;
+	}
+
+	void setVelocity(final int i, final float x, final float y, final float z) {
+		vx[i] = x;
+		vy[i] = y;
+		vz[i] = z;
+	}
+
+	void setSpin(final int i, final float x, final float y, final float z) {
+		wx[i] = x;
+		wy[i] = y;
+		wz[i] = z;
+	}
+
+	/**
+	 * Removes entity i by moving the last entity into its index.
+	 */
+	void remove(final int i) {
+		final int last = --count;
+		px[i] = px[last];
+		py[i] = py[last];
+		pz[i] = pz[last];
+		vx[i] = vx[last];
+		vy[i] = vy[last];
+		vz[i] = vz[last];
+		qx[i] = qx[last];
+		qy[i] = qy[last];
+		qz[i] = qz[last];
+		qw[i] = qw[last];
+		wx[i] = wx[last];
+		wy[i] = wy[last];
+		wz[i] = wz[last];
+		scale[i] = scale[last];
+		mesh[i] = mesh[last];
+	}
+
+	void clear() {
+		count = 0;
+	}
+
+	private void grow(final int capacity) {
+		px = Arrays.copyOf(px, capacity);
+		py = Arrays.copyOf(py, capacity);
+		pz = Arrays.copyOf(pz, capacity);
+		vx = Arrays.copyOf(vx, capacity);
+		vy = Arrays.copyOf(vy, capacity);
+		vz = Arrays.copyOf(vz, capacity);
+		qx = Arrays.copyOf(qx, capacity);
+		qy = Arrays.copyOf(qy, capacity);
+		qz = Arrays.copyOf(qz, capacity);
+		qw = Arrays.copyOf(qw, capacity);
+		wx = Arrays.copyOf(wx, capacity);
+		wy = Arrays.copyOf(wy, capacity);
+		wz = Arrays.copyOf(wz, capacity);
+		scale = Arrays.copyOf(scale, capacity);
+		mesh = Arrays.copyOf(mesh, capacity);
+	}
+
+	void update(final float dt) {
+		update(dt, 0, count);
+	}
+
+	/**
+	 * Moves and turns entities first to last-1 by dt seconds.  Disjoint
+	 * ranges may be updated from different threads.
+	 */
+	void update(final float dt, final int first, final int last) {
+		// positions and orientations in separate passes, each a straight run
+		// over a few arrays that the JIT can vectorise
+		for(int i = first; i < last; i++){
+			px[i] += vx[i]*dt;
+			py[i] += vy[i]*dt;
+			pz[i] += vz[i]*dt;
+		}
+		final float h = 0.5f*dt;
+		for(int i = first; i < last; i++){
+			// q += dt/2 * (w, 0) * q, then renormalise
+			final float x = qx[i], y = qy[i], z = qz[i], w = qw[i];
+			final float ax = wx[i]*h, ay = wy[i]*h, az = wz[i]*h;
+			final float nx = x + ax*w + ay*z - az*y;
+			final float ny = y + ay*w + az*x - ax*z;
+			final float nz = z + az*w + ax*y - ay*x;
+			final float nw = w - ax*x - ay*y - az*z;
+			final float norm = 1.0f/(float)Math.sqrt(nx*nx + ny*ny + nz*nz + nw*nw);
+			qx[i] = nx*norm;
+			qy[i] = ny*norm;
+			qz[i] = nz*norm;
+			qw[i] = nw*norm;
+		}
+	}
+
+	/**
+	 * Packs every entity for instanced drawing as INSTANCE_FLOATS floats:
+	 * position, scale and orientation quaternion.
+	 */
+	void packInstances(final float[] out) {
+		for(int i = 0, o = 0; i < count; i++, o += INSTANCE_FLOATS){
+			out[o] = px[i];
+			out[o+1] = py[i];
+			out[o+2] = pz[i];
+			out[o+3] = scale[i];
+			out[o+4] = qx[i];
+			out[o+5] = qy[i];
+			out[o+6] = qz[i];
+			out[o+7] = qw[i];
+		}
+	}
+
+	/**
+	 * Writes entity i's model matrix, column-major as GL expects, into out
+	 * starting at offset.
+	 */
+	void modelMatrix(final int i, final float[] out, final int offset) {
+		modelMatrix(px[i], py[i], pz[i], scale[i], qx[i], qy[i], qz[i], qw[i], out, offset);
+	}
+
+	/**
+	 * Writes the matrix that scales by s, rotates by the unit quaternion
+	 * (x, y, z, w) and then moves to (tx, ty, tz).
+	 */
+	static void modelMatrix(final float tx, final float ty, final float tz, final float s,
+			final float x, final float y, final float z, final float w, final float[] out, final int offset) {
+		out[offset] = s*(1 - 2*(y*y + z*z));
+		out[offset+1] = s*2*(x*y + z*w);
+		out[offset+2] = s*2*(x*z - y*w);
+		out[offset+3] = 0.0f;
+		out[offset+4] = s*2*(x*y - z*w);
+		out[offset+5] = s*(1 - 2*(x*x + z*z));
+		out[offset+6] = s*2*(y*z + x*w);
+		out[offset+7] = 0.0f;
+		out[offset+8] = s*2*(x*z + y*w);
+		out[offset+9] = s*2*(y*z - x*w);
+		out[offset+10] = s*(1 - 2*(x*x + y*y));
+		out[offset+11] = 0.0f;
+		out[offset+12] = tx;
+		out[offset+13] = ty;
+		out[offset+14] = tz;
+		out[offset+15] = 1.0f;
+	}
+}
@@ -0,0 +1,170 @@
+package space;
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
+
+import javax.media.opengl.GL;
+
+import com.jogamp.opengl.util.Animator;
+import com.jogamp.opengl.util.AnimatorBase;
+import com.jogamp.opengl.util.FPSAnimator;
+
+/**
+ * Decides how often frames are drawn and, in ADAPTIVE mode, how much
+ * geometry each frame may cost.  Frame intervals and the time spent in
+ * display are averaged over a window of frames; ADAPTIVE steps the detail
+ * level down when frames miss the budget and back up once they fit in well
+ * under half of it, so a single coarsening cannot immediately undo itself.
+ */
+public class FramePacer implements FramePacerMBean {
+
+	/**
+	 * FIXED draws at a set rate, VSYNC as fast as the display refreshes,
+	 * UNCAPPED as fast as possible for benchmarking, and ADAPTIVE at a set
+	 * rate while trading detail for frame time.
+	 */
+	enum Mode {
+		FIXED, VSYNC, UNCAPPED, ADAPTIVE;
+
+		static Mode parse(final String name) {
+			return valueOf(name.toUpperCase());
+		}
+	}
+
+	private static final int DEFAULT_FPS = 30;
+	// frames averaged before the detail level may change
+	private static final int WINDOW = 60;
+	// an interval this far over budget counts as a late frame
+	private static final double LATE = 1.5;
+	private static final double OVER_BUDGET = 1.1;
+	private static final double UNDER_BUDGET = 0.4;
+
+	private final Mode mode;
+	private final int fps;
+	private final int levels;
+	private final long budget;
+
+	// written on the GL thread, read over JMX
+	private volatile int detailLevel;
+	private volatile double measuredFps;
+	private volatile long lateFrames;
+
+	private long frameStart;
+	private int windowFrames;
+	private int windowIntervals;
+	private long windowInterval;
+	private long windowWork;
+
+	/**
+	 * @param fps target rate, or 0 for the mode's default: the display
+	 * refresh rate for VSYNC and 30 otherwise
+	 * @param levels number of detail levels ADAPTIVE may choose from
+	 */
+	FramePacer(final Mode mode, final int fps, final int levels) {
+		this.mode = mode;
+		this.fps = fps > 0 ? fps : mode == Mode.VSYNC ? refreshRate() : DEFAULT_FPS;
+		this.levels = levels;
+		budget = 1000000000L/this.fps;
+	}
+
+	private static int refreshRate() {
+		if(!GraphicsEnvironment.isHeadless()){
+			final int rate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+					.getDisplayMode().getRefreshRate();
+			if(rate != DisplayMode.REFRESH_RATE_UNKNOWN){
+				return rate;
+			}
+		}
+		return 60;
+	}
+
+	AnimatorBase createAnimator() {
+		if(mode == Mode.VSYNC || mode == Mode.UNCAPPED){
+			final Animator animator = new Animator();
+			animator.setRunAsFastAsPossible(true);
+			return animator;
+		}
+		return new FPSAnimator(fps, true);
+	}
+
+	void init(final GL gl) {
+		if(mode == Mode.VSYNC){
+			gl.setSwapInterval(1);
+		} else if(mode == Mode.UNCAPPED){
+			gl.setSwapInterval(0);
+		}
+		System.out.println("Frame pacing: " + mode + (mode == Mode.UNCAPPED ? "" : " at " + fps + " fps"));
+	}
+
+	void beginFrame() {
+		final long now = System.nanoTime();
+		if(frameStart != 0){
+			final long interval = now - frameStart;
+			if(mode != Mode.UNCAPPED && interval > LATE*budget){
+				lateFrames++;
+			}
+			windowInterval += interval;
+			windowIntervals++;
+		}
+		frameStart = now;
+	}
+
+	/**
+	 * @return true when ADAPTIVE has just changed the detail level
+	 */
+	boolean endFrame() {
+		windowWork += System.nanoTime() - frameStart;
+		if(++windowFrames < WINDOW){
+			return false;
+		}
+		final double meanInterval = windowIntervals == 0 ? 0.0 : (double)windowInterval/windowIntervals;
+		final double meanWork = (double)windowWork/windowFrames;
+		measuredFps = meanInterval == 0.0 ? 0.0 : 1e9/meanInterval;
+		windowFrames = windowIntervals = 0;
+		windowInterval = windowWork = 0;
+		if(mode != Mode.ADAPTIVE){
+			return false;
+		}
+		final int level = detailLevel;
+		if((meanInterval > OVER_BUDGET*budget || meanWork > budget) && level < levels - 1){
+			detailLevel = level + 1;
+		} else if(meanWork < UNDER_BUDGET*budget && level > 0){
+			detailLevel = level - 1;
+		} else {
+			return false;
+		}
+		System.out.println(String.format("Frame pacing: detail level %d, frames took %.1f ms of a %.1f ms budget",
+				detailLevel, meanInterval/1e6, budget/1e6));
+		return true;
+	}
+
+	@Override
+	public String getMode() {
+		return mode.name();
+	}
+
+	@Override
+	public int getTargetFps() {
+		return mode == Mode.UNCAPPED ? 0 : fps;
+	}
+
+	@Override
+	public double getBudgetMillis() {
+		return mode == Mode.UNCAPPED ? 0.0 : budget/1e6;
+	}
+
+	@Override
+	public double getMeasuredFps() {
+		return measuredFps;
+	}
+
+	@Override
+	public long getLateFrames() {
+		return lateFrames;
+	}
+
+	@Override
+	public int getDetailLevel() {
+		return detailLevel;
+	}
+}
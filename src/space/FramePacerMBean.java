@@ -0,0 +1,22 @@
+package space;
+
+/**
+ * JMX view of the frame pacer.
+ */
+public interface FramePacerMBean {
+
+	String getMode();
+
+	int getTargetFps();
+
+	double getBudgetMillis();
+
+	double getMeasuredFps();
+
+	long getLateFrames();
+
+	/**
+	 * @return 0 for full detail, higher for coarser geometry
+	 */
+	int getDetailLevel();
+}
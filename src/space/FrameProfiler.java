@@ -0,0 +1,428 @@
+package space;
+
+import java.awt.Font;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.media.opengl.GL2;
+import javax.media.opengl.GL3;
+
+import com.jogamp.opengl.util.awt.TextRenderer;
+
+/**
+ * Records how long each render pass takes, per frame, on the CPU and (where
+ * timer queries are available) on the GPU.  The GL thread is the only
+ * writer: it fills a fixed ring of the last CAPACITY frames and publishes
+ * each finished frame with an ordered store, so readers such as JMX, the
+ * overlay and the CSV dump never take a lock or stall rendering.  Readers
+ * copy the ring and drop any frame the writer may have overwritten while
+ * they were copying.
+ *
+ * GPU times come from GL_TIMESTAMP queries, which may nest, and are read
+ * back GPU_LATENCY frames later so the GL thread never waits on a result.
+ */
+public class FrameProfiler implements FrameProfilerMBean {
+
+	enum Pass {
+		FRAME, STARS, SCENE, ASTEROID_FIELD, UNIVERSE, ALIEN_SHIP, PARTICLES, TOROID
+	}
+
+	private static final Pass[] PASSES = Pass.values();
+	// frames kept in the ring, a power of two
+	private static final int CAPACITY = 1024;
+	private static final int MASK = CAPACITY - 1;
+	private static final int GPU_LATENCY = 4;
+	private static final int OVERLAY_REFRESH = 30;
+
+	private final long[][] cpuTimes = new long[PASSES.length][CAPACITY];
+	private final long[][] gpuTimes = new long[PASSES.length][CAPACITY];
+	private final int[] drawCalls = new int[CAPACITY];
+	private final int[] visibleObjects = new int[CAPACITY];
+	private final int[] culledObjects = new int[CAPACITY];
+	private final int[] triangles = new int[CAPACITY];
+	private final int[] stateChanges = new int[CAPACITY];
+	private final int[] avoidedChanges = new int[CAPACITY];
+	// frames whose CPU times and draw calls are complete
+	private final AtomicLong frames = new AtomicLong();
+	// frames whose GPU times have been read back
+	private final AtomicLong gpuFrames = new AtomicLong();
+
+	// written on the GL thread only
+	private long frame;
+	private int frameDrawCalls;
+	private int frameVisible;
+	private int frameCulled;
+	private int frameTriangles;
+	private int frameStateChanges;
+	private int frameAvoidedChanges;
+	private final long[] passStart = new long[PASSES.length];
+	private int[] queries;
+	private final boolean[][] issued = new boolean[GPU_LATENCY][PASSES.length];
+	private final long[] queryResult = new long[1];
+	private final int[] queryAvailable = new int[1];
+	private TextRenderer overlay;
+	private String overlayText = "";
+	private String overlayScene = "";
+
+	void init(final GL2 gl) {
+		// timestamp queries are GL 3.3, which JOGL only offers through the GL3 interface
+		if(gl.isGL3() && gl.isFunctionAvailable("glQueryCounter")){
+			queries = new int[GPU_LATENCY*PASSES.length*2];
+			gl.glGenQueries(queries.length, queries, 0);
+		}
+	}
+
+	void dispose(final GL2 gl) {
+		if(queries != null){
+			gl.glDeleteQueries(queries.length, queries, 0);
+			queries = null;
+		}
+		if(overlay != null){
+			overlay.dispose();
+			overlay = null;
+		}
+	}
+
+	void beginFrame(final GL2 gl) {
+		final int slot = (int)(frame & MASK);
+		for(int p = 0; p < PASSES.length; p++){
+			cpuTimes[p][slot] = 0;
+			gpuTimes[p][slot] = -1;
+		}
+		frameDrawCalls = 0;
+		frameVisible = 0;
+		frameCulled = 0;
+		frameTriangles = 0;
+		frameStateChanges = 0;
+		frameAvoidedChanges = 0;
+		if(queries != null && frame >= GPU_LATENCY){
+			collectGpuTimes(gl, frame - GPU_LATENCY);
+		}
+		begin(gl, Pass.FRAME);
+	}
+
+	void endFrame(final GL2 gl) {
+		end(gl, Pass.FRAME);
+		final int slot = (int)(frame & MASK);
+		drawCalls[slot] = frameDrawCalls;
+		visibleObjects[slot] = frameVisible;
+		culledObjects[slot] = frameCulled;
+		triangles[slot] = frameTriangles;
+		stateChanges[slot] = frameStateChanges;
+		avoidedChanges[slot] = frameAvoidedChanges;
+		frames.lazySet(++frame);
+	}
+
+	void begin(final GL2 gl, final Pass pass) {
+		if(queries != null){
+			final int q = (int)(frame % GPU_LATENCY);
+			gl.getGL3().glQueryCounter(query(q, pass, 0), GL3.GL_TIMESTAMP);
+			issued[q][pass.ordinal()] = true;
+		}
+		passStart[pass.ordinal()] = System.nanoTime();
+	}
+
+	void end(final GL2 gl, final Pass pass) {
+		cpuTimes[pass.ordinal()][(int)(frame & MASK)] += System.nanoTime() - passStart[pass.ordinal()];
+		if(queries != null){
+			gl.getGL3().glQueryCounter(query((int)(frame % GPU_LATENCY), pass, 1), GL3.GL_TIMESTAMP);
+		}
+	}
+
+	void countDrawCalls(final int calls) {
+		frameDrawCalls += calls;
+	}
+
+	/**
+	 * Records how many objects frustum culling kept and rejected.
+	 */
+	void countObjects(final int visible, final int culled) {
+		frameVisible += visible;
+		frameCulled += culled;
+	}
+
+	void countTriangles(final int count) {
+		frameTriangles += count;
+	}
+
+	/**
+	 * Records the program, texture and mesh binds made and the ones a
+	 * StateCache skipped as redundant.
+	 */
+	void countStateChanges(final int changes, final int avoided) {
+		frameStateChanges += changes;
+		frameAvoidedChanges += avoided;
+	}
+
+	private int query(final int q, final Pass pass, final int end) {
+		return queries[(q*PASSES.length + pass.ordinal())*2 + end];
+	}
+
+	private void collectGpuTimes(final GL2 gl, final long gpuFrame) {
+		final int q = (int)(gpuFrame % GPU_LATENCY);
+		final int slot = (int)(gpuFrame & MASK);
+		for(final Pass pass : PASSES){
+			if(!issued[q][pass.ordinal()]){
+				continue;
+			}
+			issued[q][pass.ordinal()] = false;
+			gl.glGetQueryObjectiv(query(q, pass, 1), GL2.GL_QUERY_RESULT_AVAILABLE, queryAvailable, 0);
+			if(queryAvailable[0] == 0){
+				// still in flight, skip it rather than stall
+				continue;
+			}
+			final GL3 gl3 = gl.getGL3();
+			gl3.glGetQueryObjectui64v(query(q, pass, 0), GL2.GL_QUERY_RESULT, queryResult, 0);
+			final long start = queryResult[0];
+			gl3.glGetQueryObjectui64v(query(q, pass, 1), GL2.GL_QUERY_RESULT, queryResult, 0);
+			gpuTimes[pass.ordinal()][slot] = queryResult[0] - start;
+		}
+		gpuFrames.lazySet(gpuFrame + 1);
+	}
+
+	/**
+	 * Draws the frame time percentiles in the corner of the view.
+	 */
+	void drawOverlay(final int width, final int height) {
+		if(overlay == null){
+			overlay = new TextRenderer(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+		}
+		if(frame % OVERLAY_REFRESH == 0){
+			final Snapshot snapshot = snapshot();
+			overlayText = String.format("frame p50 %.2f  p95 %.2f  p99 %.2f ms  %.0f draws  %.0f tris",
+					snapshot.cpuPercentile(Pass.FRAME, 0.50), snapshot.cpuPercentile(Pass.FRAME, 0.95),
+					snapshot.cpuPercentile(Pass.FRAME, 0.99), snapshot.drawCallsPerFrame(), Snapshot.mean(snapshot.triangles));
+			overlayScene = String.format("%.0f visible  %.0f culled  %.0f state changes  %.0f avoided",
+					Snapshot.mean(snapshot.visible), Snapshot.mean(snapshot.culled),
+					Snapshot.mean(snapshot.stateChanges), Snapshot.mean(snapshot.avoidedChanges));
+		}
+		overlay.beginRendering(width, height);
+		overlay.setColor(1.0f, 1.0f, 0.0f, 1.0f);
+		overlay.draw(overlayText, 8, height - 16);
+		overlay.draw(overlayScene, 8, height - 32);
+		overlay.endRendering();
+	}
+
+	/**
+	 * Writes every frame still in the ring, one row per frame with the CPU
+	 * and GPU time of each pass in microseconds (-1 where no GPU time was
+	 * measured), the frame's draw calls and triangles, its visible and
+	 * culled objects, and its state changes made and avoided.
+	 */
+	void writeCsv(final File file) throws IOException {
+		final Snapshot snapshot = snapshot();
+		final PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.print("frame");
+			for(final Pass pass : PASSES){
+				out.print(",cpu_" + pass.name().toLowerCase() + "_us");
+			}
+			for(final Pass pass : PASSES){
+				out.print(",gpu_" + pass.name().toLowerCase() + "_us");
+			}
+			out.println(",draw_calls,triangles,visible_objects,culled_objects,state_changes,avoided_changes");
+			for(int f = 0; f < snapshot.count; f++){
+				out.print(snapshot.first + f);
+				for(final Pass pass : PASSES){
+					out.print("," + snapshot.cpu[pass.ordinal()][f]/1000);
+				}
+				for(final Pass pass : PASSES){
+					final long gpu = snapshot.gpu[pass.ordinal()][f];
+					out.print("," + (gpu < 0 ? -1 : gpu/1000));
+				}
+				out.println("," + snapshot.draws[f] + "," + snapshot.triangles[f] + "," + snapshot.visible[f]
+						+ "," + snapshot.culled[f] + "," + snapshot.stateChanges[f] + "," + snapshot.avoidedChanges[f]);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	public long getFrameCount() {
+		return frames.get();
+	}
+
+	@Override
+	public double getFrameTimeP50() {
+		return snapshot().cpuPercentile(Pass.FRAME, 0.50);
+	}
+
+	@Override
+	public double getFrameTimeP95() {
+		return snapshot().cpuPercentile(Pass.FRAME, 0.95);
+	}
+
+	@Override
+	public double getFrameTimeP99() {
+		return snapshot().cpuPercentile(Pass.FRAME, 0.99);
+	}
+
+	@Override
+	public double getGpuFrameTimeP50() {
+		return snapshot().gpuPercentile(Pass.FRAME, 0.50);
+	}
+
+	@Override
+	public double getGpuFrameTimeP95() {
+		return snapshot().gpuPercentile(Pass.FRAME, 0.95);
+	}
+
+	@Override
+	public double getGpuFrameTimeP99() {
+		return snapshot().gpuPercentile(Pass.FRAME, 0.99);
+	}
+
+	@Override
+	public double getDrawCallsPerFrame() {
+		return snapshot().drawCallsPerFrame();
+	}
+
+	@Override
+	public double getTrianglesPerFrame() {
+		return Snapshot.mean(snapshot().triangles);
+	}
+
+	@Override
+	public double getStateChangesPerFrame() {
+		return Snapshot.mean(snapshot().stateChanges);
+	}
+
+	@Override
+	public double getAvoidedStateChangesPerFrame() {
+		return Snapshot.mean(snapshot().avoidedChanges);
+	}
+
+	@Override
+	public double getVisibleObjectsPerFrame() {
+		return Snapshot.mean(snapshot().visible);
+	}
+
+	@Override
+	public double getCulledObjectsPerFrame() {
+		return Snapshot.mean(snapshot().culled);
+	}
+
+	@Override
+	public String passSummary() {
+		final Snapshot snapshot = snapshot();
+		final StringBuilder summary = new StringBuilder();
+		for(final Pass pass : PASSES){
+			summary.append(String.format("%-14s cpu p50 %.3f p95 %.3f p99 %.3f ms  gpu p50 %.3f p95 %.3f p99 %.3f ms%n",
+					pass, snapshot.cpuPercentile(pass, 0.50), snapshot.cpuPercentile(pass, 0.95), snapshot.cpuPercentile(pass, 0.99),
+					snapshot.gpuPercentile(pass, 0.50), snapshot.gpuPercentile(pass, 0.95), snapshot.gpuPercentile(pass, 0.99)));
+		}
+		return summary.toString();
+	}
+
+	private Snapshot snapshot() {
+		final long end = frames.get();
+		final long gpuEnd = gpuFrames.get();
+		long start = Math.max(0, end - CAPACITY);
+		final int count = (int)(end - start);
+		final long[][] cpu = new long[PASSES.length][count];
+		final long[][] gpu = new long[PASSES.length][count];
+		final int[] draws = new int[count];
+		final int[] visible = new int[count];
+		final int[] culled = new int[count];
+		final int[] tris = new int[count];
+		final int[] changes = new int[count];
+		final int[] avoided = new int[count];
+		for(int f = 0; f < count; f++){
+			final int slot = (int)((start + f) & MASK);
+			for(int p = 0; p < PASSES.length; p++){
+				cpu[p][f] = cpuTimes[p][slot];
+				gpu[p][f] = start + f < gpuEnd ? gpuTimes[p][slot] : -1;
+			}
+			draws[f] = drawCalls[slot];
+			visible[f] = visibleObjects[slot];
+			culled[f] = culledObjects[slot];
+			tris[f] = triangles[slot];
+			changes[f] = stateChanges[slot];
+			avoided[f] = avoidedChanges[slot];
+		}
+		// the writer clears a slot when it starts the frame that reuses it
+		final long valid = Math.max(start, frames.get() + 1 - CAPACITY);
+		final int skip = (int)(valid - start);
+		if(skip > 0){
+			start = valid;
+			for(int p = 0; p < PASSES.length; p++){
+				cpu[p] = Arrays.copyOfRange(cpu[p], skip, count);
+				gpu[p] = Arrays.copyOfRange(gpu[p], skip, count);
+			}
+			return new Snapshot(start, cpu, gpu, Arrays.copyOfRange(draws, skip, count), Arrays.copyOfRange(tris, skip, count),
+					Arrays.copyOfRange(visible, skip, count), Arrays.copyOfRange(culled, skip, count),
+					Arrays.copyOfRange(changes, skip, count), Arrays.copyOfRange(avoided, skip, count));
+		}
+		return new Snapshot(start, cpu, gpu, draws, tris, visible, culled, changes, avoided);
+	}
+
+	private static final class Snapshot {
+
+		final long first;
+		final int count;
+		final long[][] cpu;
+		final long[][] gpu;
+		final int[] draws;
+		final int[] triangles;
+		final int[] visible;
+		final int[] culled;
+		final int[] stateChanges;
+		final int[] avoidedChanges;
+
+		Snapshot(final long first, final long[][] cpu, final long[][] gpu, final int[] draws,
+				final int[] triangles, final int[] visible, final int[] culled, final int[] stateChanges,
+				final int[] avoidedChanges) {
+			this.first = first;
+			this.count = draws.length;
+			this.cpu = cpu;
+			this.gpu = gpu;
+			this.draws = draws;
+			this.triangles = triangles;
+			this.visible = visible;
+			this.culled = culled;
+			this.stateChanges = stateChanges;
+			this.avoidedChanges = avoidedChanges;
+		}
+
+		double cpuPercentile(final Pass pass, final double q) {
+			return percentile(cpu[pass.ordinal()], q);
+		}
+
+		double gpuPercentile(final Pass pass, final double q) {
+			return percentile(gpu[pass.ordinal()], q);
+		}
+
+		double drawCallsPerFrame() {
+			return mean(draws);
+		}
+
+		static double mean(final int[] perFrame) {
+			long total = 0;
+			for(final int value : perFrame){
+				total += value;
+			}
+			return perFrame.length == 0 ? 0.0 : (double)total/perFrame.length;
+		}
+
+		// nearest-rank percentile in milliseconds, ignoring missing times
+		private static double percentile(final long[] times, final double q) {
+			final long[] sorted = times.clone();
+			Arrays.sort(sorted);
+			int missing = 0;
+			while(missing < sorted.length && sorted[missing] < 0){
+				missing++;
+			}
+			final int n = sorted.length - missing;
+			if(n == 0){
+				return Double.NaN;
+			}
+			final int rank = Math.max(0, (int)Math.ceil(q*n) - 1);
+			return sorted[missing + rank]/1e6;
+		}
+	}
+}
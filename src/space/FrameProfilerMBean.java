@@ -0,0 +1,39 @@
+package space;
+
+/**
+ * JMX view of the frame profiler.  Times are in milliseconds over the
+ * frames still held in the profiler's ring buffer.
+ */
+public interface FrameProfilerMBean {
+
+	long getFrameCount();
+
+	double getFrameTimeP50();
+
+	double getFrameTimeP95();
+
+	double getFrameTimeP99();
+
+	double getGpuFrameTimeP50();
+
+	double getGpuFrameTimeP95();
+
+	double getGpuFrameTimeP99();
+
+	double getDrawCallsPerFrame();
+
+	double getTrianglesPerFrame();
+
+	double getStateChangesPerFrame();
+
+	double getAvoidedStateChangesPerFrame();
+
+	double getVisibleObjectsPerFrame();
+
+	double getCulledObjectsPerFrame();
+
+	/**
+	 * @return one line per render pass with its CPU and GPU percentiles
+	 */
+	String passSummary();
+}
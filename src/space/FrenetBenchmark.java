@@ -0,0 +1,154 @@
+package space;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * Times the toroid mesh generator and checks it against the original
+ * per-function Frenet frame evaluation.  For each size it prints the
+ * generation time, the heap bytes allocated while generating (the mesh
+ * itself lives in native buffers, so this should not grow with the mesh)
+ * and the largest difference from the reference positions and normals.
+ *
+ * java -Xmx3g space.FrenetBenchmark [-runs R]
+ */
+public class FrenetBenchmark {
+
+	// spine samples x frame samples, up to 10M vertices
+	private static final int[][] SIZES = {{1000, 32}, {10000, 32}, {100000, 32}, {312500, 32}};
+	private static final double TOLERANCE = 1e-7;
+
+	private static final float A = 100.0f;
+	private static final float B = 40.0f;
+	private static final int P = 1;
+	private static final int Q = 7;
+	private static final float R = 20.0f;
+
+	public static void main(final String[] args) {
+		int runs = 5;
+		for(int i = 0; i+1 < args.length; i += 2){
+			if(args[i].equals("-runs")){
+				runs = Integer.parseInt(args[i+1]);
+			}
+		}
+		final com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		final long thread = Thread.currentThread().getId();
+
+		System.out.println("N\tM\tvertices\tms\theap bytes\tmax error");
+		boolean failed = false;
+		for(final int[] size : SIZES){
+			final int N = size[0];
+			final int M = size[1];
+			final Toroid toroid = new Toroid(A, B, P, Q, N, M, R, Toroid.DrawMode.TRIANGLES, VertexFormat.DOUBLE);
+			// warm up the generator before timing it
+			toroid.loadVertices();
+
+			long best = Long.MAX_VALUE;
+			long heap = Long.MAX_VALUE;
+			for(int r = 0; r < runs; r++){
+				final long allocated = threads.getThreadAllocatedBytes(thread);
+				final long start = System.nanoTime();
+				toroid.loadVertices();
+				best = Math.min(best, System.nanoTime() - start);
+				heap = Math.min(heap, threads.getThreadAllocatedBytes(thread) - allocated);
+			}
+
+			final double[][] reference = reference(N, M);
+			final double error = Math.max(Math.max(
+					maxError(reference[0], toroid.getSpineVertices()),
+					maxError(reference[1], toroid.getFrameVertices())),
+					maxError(reference[2], toroid.getSurfaceNormals()));
+			failed |= error > TOLERANCE;
+			System.out.printf("%d\t%d\t%d\t%.1f\t%d\t%.3g%n", N, M, N*M, best/1e6, heap, error);
+		}
+		if(failed){
+			System.out.println("Error: generator differs from reference by more than " + TOLERANCE);
+			System.exit(1);
+		}
+	}
+
+	private static double maxError(final double[] expected, final ByteBuffer actual) {
+		double max = 0.0;
+		for(int i = 0; i < expected.length; i++){
+			max = Math.max(max, Math.abs(expected[i] - actual.getDouble(i*Buffers.SIZEOF_DOUBLE)));
+		}
+		return max;
+	}
+
+	/**
+	 * The original generator: every coordinate and derivative is its own
+	 * function of an accumulated t, and each frame allocates its vectors.
+	 */
+	private static double[][] reference(final int N, final int M) {
+		final double[] spine = new double[N*3];
+		final double[] frame = new double[N*M*3];
+		final double[] normals = new double[N*M*3];
+		final double dt = 2*Math.PI/N;
+		final double du = 2*Math.PI/M;
+		double t = 0.0;
+		for(int i = 0; i < N; ++i, t += dt){
+			final double[] center = {x(t), y(t), z(t)};
+			System.arraycopy(center, 0, spine, i*3, 3);
+			final double[] tangent = normalize(new double[]{dx(t), dy(t), dz(t)});
+			final double[] binormal = normalize(cross(new double[]{dx(t), dy(t), dz(t)}, new double[]{ddx(t), ddy(t), ddz(t)}));
+			final double[] normal = cross(binormal, tangent);
+			for(int j = 0; j < M; j++){
+				final double u = j*du;
+				for(int k = 0; k < 3; k++){
+					final int n = (i*M + j)*3 + k;
+					normals[n] = Math.cos(u)*binormal[k] + Math.sin(u)*normal[k];
+					frame[n] = center[k] + R*normals[n];
+				}
+			}
+		}
+		return new double[][]{spine, frame, normals};
+	}
+
+	private static double[] cross(final double[] a, final double[] b) {
+		return new double[]{a[1]*b[2] - a[2]*b[1], a[2]*b[0] - a[0]*b[2], a[0]*b[1] - a[1]*b[0]};
+	}
+
+	private static double[] normalize(final double[] v) {
+		final double magnitude = Math.sqrt(v[0]*v[0] + v[1]*v[1] + v[2]*v[2]);
+		return new double[]{v[0]/magnitude, v[1]/magnitude, v[2]/magnitude};
+	}
+
+	private static double x(final double t) {
+		return (A + B*Math.cos(Q*t)) * Math.cos(P*t);
+	}
+
+	private static double y(final double t) {
+		return (A + B*Math.cos(Q*t)) * Math.sin(P*t);
+	}
+
+	private static double z(final double t) {
+		return B*Math.sin(Q*t);
+	}
+
+	private static double dx(final double t) {
+		return -P*y(t) - B*Q*Math.sin(Q*t)*Math.cos(P*t);
+	}
+
+	private static double dy(final double t) {
+		return P*x(t) - B*Q*Math.sin(Q*t)*Math.sin(P*t);
+	}
+
+	private static double dz(final double t) {
+		return B*Q*Math.cos(Q*t);
+	}
+
+	private static double ddx(final double t) {
+		return -P*dy(t) + B*Q*(P*Math.sin(Q*t)*Math.sin(P*t) - Q*Math.cos(Q*t)*Math.cos(P*t));
+	}
+
+	private static double ddy(final double t) {
+		return P*dx(t) - B*Q*(P*Math.sin(Q*t)*Math.cos(P*t) + Q*Math.cos(Q*t)*Math.sin(P*t));
+	}
+
+	private static double ddz(final double t) {
+		return -(Q*Q)*B*Math.sin(Q*t);
+	}
+}
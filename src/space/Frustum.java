@@ -0,0 +1,102 @@
+package space;
+
+/**
+ * The six planes of the view volume, extracted from the projection and
+ * modelview matrices GL is drawing with, so the planes are in whatever
+ * space the modelview matrix maps from.  Plane normals point inwards.
+ * It also keeps what it needs to tell how large a sphere appears on screen.
+ */
+final class Frustum {
+
+	static final int OUTSIDE = 0;
+	static final int INTERSECTS = 1;
+	static final int INSIDE = 2;
+
+	// a, b, c, d for each plane, with (a, b, c) of unit length
+	private final float[] planes = new float[6*4];
+	private final float[] clip = new float[16];
+	// the row of the modelview matrix giving eye space z
+	private final float[] depthRow = new float[4];
+	// pixels per unit of size at unit depth
+	private float pixelScale;
+
+	/**
+	 * @param projection column-major, as returned by glGetFloatv
+	 * @param modelview column-major, as returned by glGetFloatv
+	 * @param viewportHeight in pixels
+	 */
+	void extract(final float[] projection, final float[] modelview, final int viewportHeight) {
+		for(int c = 0; c < 4; c++){
+			depthRow[c] = modelview[c*4 + 2];
+		}
+		pixelScale = projection[5]*viewportHeight/2;
+		for(int c = 0; c < 4; c++){
+			for(int r = 0; r < 4; r++){
+				float sum = 0.0f;
+				for(int k = 0; k < 4; k++){
+					sum += projection[k*4 + r]*modelview[c*4 + k];
+				}
+				clip[c*4 + r] = sum;
+			}
+		}
+		// each plane is the w row plus or minus the x, y or z row
+		plane(0, 0, 1.0f);
+		plane(1, 0, -1.0f);
+		plane(2, 1, 1.0f);
+		plane(3, 1, -1.0f);
+		plane(4, 2, 1.0f);
+		plane(5, 2, -1.0f);
+	}
+
+	private void plane(final int p, final int row, final float sign) {
+		final float a = clip[3] + sign*clip[row];
+		final float b = clip[7] + sign*clip[4 + row];
+		final float c = clip[11] + sign*clip[8 + row];
+		final float d = clip[15] + sign*clip[12 + row];
+		final float scale = 1.0f/(float)Math.sqrt(a*a + b*b + c*c);
+		planes[p*4] = a*scale;
+		planes[p*4 + 1] = b*scale;
+		planes[p*4 + 2] = c*scale;
+		planes[p*4 + 3] = d*scale;
+	}
+
+	boolean isSphereVisible(final float x, final float y, final float z, final float radius) {
+		for(int p = 0; p < planes.length; p += 4){
+			if(planes[p]*x + planes[p+1]*y + planes[p+2]*z + planes[p+3] < -radius){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the diameter in pixels the sphere is drawn at, unbounded for a
+	 * sphere around or behind the eye
+	 */
+	float projectedSize(final float x, final float y, final float z, final float radius) {
+		final float depth = -(depthRow[0]*x + depthRow[1]*y + depthRow[2]*z + depthRow[3]);
+		if(depth <= radius){
+			return Float.MAX_VALUE;
+		}
+		return 2*radius*pixelScale/depth;
+	}
+
+	/**
+	 * @return OUTSIDE, INTERSECTS or INSIDE for the cube of half size half
+	 * around (x, y, z)
+	 */
+	int classifyCube(final float x, final float y, final float z, final float half) {
+		int result = INSIDE;
+		for(int p = 0; p < planes.length; p += 4){
+			final float distance = planes[p]*x + planes[p+1]*y + planes[p+2]*z + planes[p+3];
+			final float extent = half*(Math.abs(planes[p]) + Math.abs(planes[p+1]) + Math.abs(planes[p+2]));
+			if(distance < -extent){
+				return OUTSIDE;
+			}
+			if(distance < extent){
+				result = INTERSECTS;
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,227 @@
+package space;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Moves the entities of an EntityStore under gravity: the pull of a fixed
+ * central mass and of every entity on every other.  The mutual pull is
+ * found with a BarnesHutTree, split across cores by fork-join.  Orbits are
+ * integrated with kick-drift-kick leapfrog, which keeps the energy bounded
+ * over long runs where an explicit Euler step would spiral outwards.
+ *
+ * The central pull is strong, changes quickly and costs next to nothing,
+ * while the mutual pull is weak, changes slowly and is the whole cost, so
+ * they are stepped at different rates.  The mutual pull is applied as a
+ * half kick either side of every interval steps, with the central pull
+ * kicking every step in between.  That nesting of leapfrogs is still
+ * symplectic, so the energy stays bounded, and the tree is built once per
+ * interval instead of every step.
+ *
+ * Each entity's mass is its volume times a density.
+ */
+final class Gravity {
+
+	// bodies per fork-join task
+	private static final int CHUNK = 1024;
+
+	private final float centralMass;
+	private final float density;
+	private final float softening;
+	private final int interval;
+	private final BarnesHutTree tree;
+	private final int threads;
+	// made on the first interval with more than one task's worth of bodies
+	private ForkJoinPool pool;
+	// one task per CHUNK bodies, each with its own scratch stack, kept from interval to interval
+	private Pull[] pulls = new Pull[0];
+	private final PullAll pullAll = new PullAll();
+	private float[] mass = new float[0];
+	// the mutual pull, found at the end of the last interval
+	private float[] ax = new float[0], ay = new float[0], az = new float[0];
+	// the central pull at the end of the last step
+	private float[] cx = new float[0], cy = new float[0], cz = new float[0];
+	// steps taken into the current interval
+	private int phase;
+	// accelerations are stale once entities are added, removed or moved outside step()
+	private boolean primed;
+
+	/**
+	 * @param centralMass the mass fixed at the origin, with the gravitational
+	 * constant taken as 1
+	 * @param density mass per cubed unit of scale
+	 * @param theta see BarnesHutTree
+	 * @param interval steps between finding the mutual pull
+	 * @param threads how many cores to share the work between
+	 */
+	Gravity(final float centralMass, final float density, final float theta, final float softening,
+			final int interval, final int threads) {
+		this.centralMass = centralMass;
+		this.density = density;
+		this.softening = softening;
+		this.interval = interval;
+		tree = new BarnesHutTree(theta, softening);
+		this.threads = threads;
+	}
+
+	/**
+	 * Drops the kept accelerations, for when entities have been added or
+	 * moved by anything but step().  The interval starts again.
+	 */
+	void invalidate() {
+		primed = false;
+	}
+
+	/**
+	 * Advances every entity of store by dt seconds, turning them as
+	 * EntityStore.update does.  The energy is only conserved at the ends
+	 * of intervals; in between it is off by the mutual pull's part of a
+	 * kick.
+	 */
+	void step(final EntityStore store, final float dt) {
+		final int n = store.count;
+		if(!primed || ax.length < n){
+			allocate(n);
+			pullEachOther(store);
+			pullToCentre(store);
+			phase = 0;
+			primed = true;
+		}
+		final float h = 0.5f*dt;
+		if(phase == 0){
+			kick(store, ax, ay, az, interval*h);
+		}
+		kick(store, cx, cy, cz, h);
+		store.update(dt);
+		pullToCentre(store);
+		kick(store, cx, cy, cz, h);
+		if(++phase == interval){
+			pullEachOther(store);
+			kick(store, ax, ay, az, interval*h);
+			phase = 0;
+		}
+	}
+
+	private void allocate(final int n) {
+		if(mass.length < n){
+			mass = new float[n];
+			ax = new float[n];
+			ay = new float[n];
+			az = new float[n];
+			cx = new float[n];
+			cy = new float[n];
+			cz = new float[n];
+		}
+	}
+
+	private static void kick(final EntityStore store, final float[] x, final float[] y, final float[] z, final float h) {
+		for(int i = 0; i < store.count; i++){
+			store.vx[i] += x[i]*h;
+			store.vy[i] += y[i]*h;
+			store.vz[i] += z[i]*h;
+		}
+	}
+
+	private void pullToCentre(final EntityStore store) {
+		for(int i = 0; i < store.count; i++){
+			final float x = store.px[i], y = store.py[i], z = store.pz[i];
+			final float r2 = x*x + y*y + z*z;
+			final float pull = -centralMass/(r2*(float)Math.sqrt(r2));
+			cx[i] = pull*x;
+			cy[i] = pull*y;
+			cz[i] = pull*z;
+		}
+	}
+
+	private void pullEachOther(final EntityStore store) {
+		final int n = store.count;
+		for(int i = 0; i < n; i++){
+			mass[i] = density*store.scale[i]*store.scale[i]*store.scale[i];
+		}
+		tree.build(store.px, store.py, store.pz, mass, n);
+		final int tasks = (n + CHUNK - 1)/CHUNK;
+		if(pulls.length != tasks){
+			final int kept = Math.min(pulls.length, tasks);
+			pulls = Arrays.copyOf(pulls, tasks);
+			for(int t = kept; t < tasks; t++){
+				pulls[t] = new Pull();
+			}
+		}
+		for(int t = 0; t < tasks; t++){
+			pulls[t].first = t*CHUNK;
+			pulls[t].last = Math.min(n, (t + 1)*CHUNK);
+			pulls[t].reinitialize();
+		}
+		if(tasks == 1){
+			// not worth waking the pool for, runs on this thread
+			pulls[0].invoke();
+		} else if(tasks > 1){
+			if(pool == null){
+				pool = new ForkJoinPool(threads);
+			}
+			pullAll.reinitialize();
+			pool.invoke(pullAll);
+		}
+	}
+
+	/**
+	 * Finds the accelerations of the entities first to last-1 in the tree's
+	 * order.
+	 */
+	private final class Pull extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int[] stack = new int[BarnesHutTree.STACK_SIZE];
+		int first;
+		int last;
+
+		@Override
+		protected void compute() {
+			tree.accelerate(first, last, ax, ay, az, stack);
+		}
+	}
+
+	// runs every Pull across the pool
+	private final class PullAll extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute() {
+			invokeAll(pulls);
+		}
+	}
+
+	/**
+	 * Adds up the kinetic and potential energy of every entity directly,
+	 * in O(n^2), for checking how well step() conserves it.
+	 */
+	double energy(final EntityStore store) {
+		final double eps2 = (double)softening*softening;
+		double total = 0.0;
+		for(int i = 0; i < store.count; i++){
+			final double mi = density*Math.pow(store.scale[i], 3);
+			final double v2 = (double)store.vx[i]*store.vx[i] + (double)store.vy[i]*store.vy[i]
+					+ (double)store.vz[i]*store.vz[i];
+			final double r = Math.sqrt((double)store.px[i]*store.px[i] + (double)store.py[i]*store.py[i]
+					+ (double)store.pz[i]*store.pz[i]);
+			total += 0.5*mi*v2 - centralMass*mi/r;
+			for(int j = i + 1; j < store.count; j++){
+				final double dx = store.px[j] - store.px[i];
+				final double dy = store.py[j] - store.py[i];
+				final double dz = store.pz[j] - store.pz[i];
+				// the potential whose gradient is the softened pull
+				total -= mi*density*Math.pow(store.scale[j], 3)/Math.sqrt(dx*dx + dy*dy + dz*dz + eps2);
+			}
+		}
+		return total;
+	}
+
+	void shutdown() {
+		if(pool != null){
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package space;
+
+/**
+ * Runs the asteroid belt under gravity without a window.  For each body
+ * count it prints the time per step and the throughput in body-steps per
+ * second, which should fall only slowly as the count grows.  It then
+ * follows a smaller belt for a long run, adding up its energy directly
+ * every so often, and prints how far that has drifted from the start.
+ * Leapfrog should keep the drift small and bounded; the run fails if it
+ * exceeds -tolerance.
+ *
+ * java space.GravityBenchmark [-n N] [-steps S] [-threads T] [-check N] [-seconds S] [-tolerance F]
+ */
+public class GravityBenchmark {
+
+	private static final int WARMUP_STEPS = 20;
+	// simulated seconds between energy checks
+	private static final int CHECK_INTERVAL = 20;
+
+	public static void main(final String[] args) {
+		int[] counts = {12500, 25000, 50000, 100000};
+		int steps = 100;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int checked = 2000;
+		int seconds = 600;
+		double tolerance = 1e-4;
+		for(int i = 0; i+1 < args.length; i += 2){
+			if(args[i].equals("-n")){
+				counts = new int[]{Integer.parseInt(args[i+1])};
+			} else if(args[i].equals("-steps")){
+				steps = Integer.parseInt(args[i+1]);
+			} else if(args[i].equals("-threads")){
+				threads = Integer.parseInt(args[i+1]);
+			} else if(args[i].equals("-check")){
+				checked = Integer.parseInt(args[i+1]);
+			} else if(args[i].equals("-seconds")){
+				seconds = Integer.parseInt(args[i+1]);
+			} else if(args[i].equals("-tolerance")){
+				tolerance = Double.parseDouble(args[i+1]);
+			}
+		}
+		final float dt = 1.0f/Simulation.TICKS_PER_SECOND;
+		final Gravity gravity = Simulation.createGravity(threads);
+
+		System.out.println("bodies\tthreads\tsteps\tmean(ms)\tbest(ms)\tbody-steps/s");
+		for(final int n : counts){
+			final EntityStore belt = new EntityStore(n);
+			Simulation.seedBelt(belt, n, 1);
+			gravity.invalidate();
+			for(int s = 0; s < WARMUP_STEPS; s++){
+				gravity.step(belt, dt);
+			}
+			long best = Long.MAX_VALUE;
+			long total = 0;
+			for(int s = 0; s < steps; s++){
+				final long start = System.nanoTime();
+				gravity.step(belt, dt);
+				final long elapsed = System.nanoTime() - start;
+				best = Math.min(best, elapsed);
+				total += elapsed;
+			}
+			System.out.printf("%d\t%d\t%d\t%.3f\t%.3f\t%.3g%n", n, threads, steps, total/1e6/steps, best/1e6,
+					(double)n*steps*1e9/total);
+		}
+
+		final EntityStore belt = new EntityStore(checked);
+		Simulation.seedBelt(belt, checked, 2);
+		gravity.invalidate();
+		final double initial = gravity.energy(belt);
+		double worst = 0.0;
+		System.out.println("seconds\tenergy\trelative drift");
+		System.out.printf("%d\t%.6g\t%.3g%n", 0, initial, 0.0);
+		for(int t = CHECK_INTERVAL; t <= seconds; t += CHECK_INTERVAL){
+			for(int s = 0; s < CHECK_INTERVAL*Simulation.TICKS_PER_SECOND; s++){
+				gravity.step(belt, dt);
+			}
+			final double energy = gravity.energy(belt);
+			final double drift = Math.abs((energy - initial)/initial);
+			worst = Math.max(worst, drift);
+			System.out.printf("%d\t%.6g\t%.3g%n", t, energy, drift);
+		}
+		gravity.shutdown();
+		System.out.printf("%d bodies over %d s: worst drift %.3g, tolerance %.3g%n", checked, seconds, worst, tolerance);
+		if(worst > tolerance){
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+}
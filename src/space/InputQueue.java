@@ -0,0 +1,73 @@
+package space;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Carries input events from the thread that receives them to the GL
+ * thread.  It is a fixed ring for exactly one producer and one consumer:
+ * each index is written by one side only and published with an ordered
+ * store, so neither side ever locks or allocates.  Events are a kind plus
+ * up to three numbers; when the ring is full new events are dropped.
+ */
+final class InputQueue {
+
+	static final int KEY = 0;
+	static final int DRAG = 1;
+	static final int WHEEL = 2;
+	static final int ORBIT = 3;
+
+	static final int ARGS = 3;
+	// a power of two, far more events than arrive between two frames
+	private static final int CAPACITY = 256;
+	private static final int MASK = CAPACITY - 1;
+
+	private final int[] kinds = new int[CAPACITY];
+	private final double[] args = new double[CAPACITY*ARGS];
+	// next event to read, written by the consumer
+	private final AtomicLong head = new AtomicLong();
+	// next free slot, written by the producer
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long dropped;
+
+	/**
+	 * Called on the producer thread.
+	 * @return false if the ring was full and the event was dropped
+	 */
+	boolean offer(final int kind, final double a, final double b, final double c) {
+		final long t = tail.get();
+		if(t - head.get() == CAPACITY){
+			dropped++;
+			return false;
+		}
+		final int slot = (int)(t & MASK);
+		kinds[slot] = kind;
+		args[slot*ARGS] = a;
+		args[slot*ARGS + 1] = b;
+		args[slot*ARGS + 2] = c;
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Called on the consumer thread.  Copies the oldest event's numbers
+	 * into out.
+	 * @return the oldest event's kind, or -1 if there is none
+	 */
+	int poll(final double[] out) {
+		final long h = head.get();
+		if(h == tail.get()){
+			return -1;
+		}
+		final int slot = (int)(h & MASK);
+		final int kind = kinds[slot];
+		out[0] = args[slot*ARGS];
+		out[1] = args[slot*ARGS + 1];
+		out[2] = args[slot*ARGS + 2];
+		head.lazySet(h + 1);
+		return kind;
+	}
+
+	long getDropped() {
+		return dropped;
+	}
+}
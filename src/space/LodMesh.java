@@ -0,0 +1,68 @@
+package space;
+
+/**
+ * One object's shape tessellated at several levels of detail, finest
+ * first, and the level it is currently drawn at.  Levels are picked from
+ * how large the object appears on screen: a level is used until the next
+ * coarser one would show edges no longer than MAX_EDGE_PIXELS.  Going back
+ * to a finer level takes HYSTERESIS times that size, so an object hovering
+ * at a threshold does not flicker between levels.
+ */
+final class LodMesh {
+
+	static final float MAX_EDGE_PIXELS = 12.0f;
+	static final float HYSTERESIS = 1.25f;
+
+	private final Mesh[] levels;
+	private final float[] minSize;
+	private int level;
+
+	/**
+	 * @param levels finest first
+	 * @param segments the slices around each level
+	 */
+	LodMesh(final Mesh[] levels, final int[] segments) {
+		this.levels = levels;
+		minSize = thresholds(segments);
+	}
+
+	/**
+	 * @param bias the coarsest level to allow finer than, from the frame pacer
+	 * @return the mesh to draw for an object of the given projected size
+	 */
+	Mesh select(final float size, final int bias) {
+		level = select(minSize, level, size);
+		return levels[Math.max(level, Math.min(bias, levels.length - 1))];
+	}
+
+	/**
+	 * @param segments the slices around each level, finest first
+	 * @return the smallest projected size, in pixels, each level is drawn at
+	 */
+	static float[] thresholds(final int[] segments) {
+		final float[] minSize = new float[segments.length];
+		// the coarsest level has no lower bound
+		for(int i = 0; i+1 < segments.length; i++){
+			minSize[i] = MAX_EDGE_PIXELS*segments[i+1]/(float)Math.PI;
+		}
+		return minSize;
+	}
+
+	/**
+	 * @return the level to draw at, given the level drawn last frame
+	 */
+	static int select(final float[] minSize, final int current, final float size) {
+		int allowed = 0;
+		while(size < minSize[allowed]){
+			allowed++;
+		}
+		int earned = allowed;
+		while(size < minSize[earned]*HYSTERESIS){
+			earned++;
+		}
+		if(current < allowed){
+			return allowed;
+		}
+		return current > earned ? earned : current;
+	}
+}
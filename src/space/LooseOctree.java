@@ -0,0 +1,223 @@
+package space;
+
+import java.util.Arrays;
+
+/**
+ * Spatial index of bounding spheres for frustum culling.  Every node's
+ * bounds are twice the size of its cell, so a sphere can be placed by its
+ * centre and radius alone: it goes in the deepest cell no smaller than its
+ * radius that contains its centre.  That makes moving an entity cheap, and
+ * most moves do not even change cell.
+ *
+ * The tree is complete and implicit, each level stored after the one above
+ * it, with entities linked into per-node lists through index arrays, so
+ * neither updates nor queries allocate.  Each node counts the entities in
+ * its subtree, which lets empty branches be skipped.  Spheres centred
+ * outside the root cell, or too large for it, are kept apart and tested
+ * one by one.
+ */
+final class LooseOctree {
+
+	private static final int NONE = -1;
+
+	private final float half;
+	private final int depth;
+	private final int[] levelOffset;
+	// the extra last node holds spheres that do not fit the root
+	private final int overflow;
+	private final int[] head;
+	private final int[] population;
+
+	private int[] next = new int[0];
+	private int[] previous = new int[0];
+	private int[] node = new int[0];
+	private float[] x = new float[0];
+	private float[] y = new float[0];
+	private float[] z = new float[0];
+	private float[] radius = new float[0];
+
+	private int nodesVisited;
+	private int spheresTested;
+
+	/**
+	 * @param half half the size of the root cell, which is centred on the origin
+	 * @param depth levels below the root
+	 */
+	LooseOctree(final float half, final int depth) {
+		this.half = half;
+		this.depth = depth;
+		levelOffset = new int[depth + 2];
+		for(int d = 0; d <= depth; d++){
+			levelOffset[d + 1] = levelOffset[d] + (1 << 3*d);
+		}
+		overflow = levelOffset[depth + 1];
+		head = new int[overflow + 1];
+		population = new int[overflow + 1];
+		Arrays.fill(head, NONE);
+	}
+
+	/**
+	 * Inserts entity i, or moves it if it is already in the tree.  Entities
+	 * are numbered densely from 0.
+	 */
+	void update(final int i, final float px, final float py, final float pz, final float r) {
+		if(i >= node.length){
+			grow(Math.max(i + 1, 2*node.length));
+		}
+		x[i] = px;
+		y[i] = py;
+		z[i] = pz;
+		radius[i] = r;
+		final int target = nodeFor(px, py, pz, r);
+		final int current = node[i];
+		if(target == current){
+			return;
+		}
+		if(current != NONE){
+			unlink(i, current);
+			adjustPopulation(current, -1);
+		}
+		node[i] = target;
+		previous[i] = NONE;
+		next[i] = head[target];
+		if(head[target] != NONE){
+			previous[head[target]] = i;
+		}
+		head[target] = i;
+		adjustPopulation(target, 1);
+	}
+
+	void remove(final int i) {
+		if(i < node.length && node[i] != NONE){
+			unlink(i, node[i]);
+			adjustPopulation(node[i], -1);
+			node[i] = NONE;
+		}
+	}
+
+	private void grow(final int capacity) {
+		final int old = node.length;
+		next = Arrays.copyOf(next, capacity);
+		previous = Arrays.copyOf(previous, capacity);
+		node = Arrays.copyOf(node, capacity);
+		Arrays.fill(node, old, capacity, NONE);
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		z = Arrays.copyOf(z, capacity);
+		radius = Arrays.copyOf(radius, capacity);
+	}
+
+	private void unlink(final int i, final int n) {
+		if(previous[i] != NONE){
+			next[previous[i]] = next[i];
+		} else {
+			head[n] = next[i];
+		}
+		if(next[i] != NONE){
+			previous[next[i]] = previous[i];
+		}
+	}
+
+	private int nodeFor(final float px, final float py, final float pz, final float r) {
+		if(Math.abs(px) >= half || Math.abs(py) >= half || Math.abs(pz) >= half || r > half){
+			return overflow;
+		}
+		// deepest level whose cells are still at least the sphere's radius across
+		int d = 0;
+		float cellHalf = half;
+		while(d < depth && cellHalf*0.5f >= r){
+			cellHalf *= 0.5f;
+			d++;
+		}
+		final int cells = 1 << d;
+		final int ix = Math.min(cells - 1, (int)((px + half)/(2*cellHalf)));
+		final int iy = Math.min(cells - 1, (int)((py + half)/(2*cellHalf)));
+		final int iz = Math.min(cells - 1, (int)((pz + half)/(2*cellHalf)));
+		return levelOffset[d] + (ix*cells + iy)*cells + iz;
+	}
+
+	private void adjustPopulation(final int n, final int delta) {
+		if(n == overflow){
+			population[n] += delta;
+			return;
+		}
+		int d = 0;
+		while(n >= levelOffset[d + 1]){
+			d++;
+		}
+		final int local = n - levelOffset[d];
+		int cells = 1 << d;
+		int ix = local/(cells*cells);
+		int iy = local/cells % cells;
+		int iz = local % cells;
+		for(; d >= 0; d--){
+			population[levelOffset[d] + (ix*cells + iy)*cells + iz] += delta;
+			ix >>= 1;
+			iy >>= 1;
+			iz >>= 1;
+			cells >>= 1;
+		}
+	}
+
+	/**
+	 * Writes the indices of every entity that may be visible into visible.
+	 * @return how many were written
+	 */
+	int cull(final Frustum frustum, final int[] visible) {
+		nodesVisited = 0;
+		spheresTested = 0;
+		int count = cull(frustum, visible, 0, 0, 0, 0, 0, false);
+		for(int i = head[overflow]; i != NONE; i = next[i]){
+			spheresTested++;
+			if(frustum.isSphereVisible(x[i], y[i], z[i], radius[i])){
+				visible[count++] = i;
+			}
+		}
+		return count;
+	}
+
+	private int cull(final Frustum frustum, final int[] visible, int count,
+			final int d, final int ix, final int iy, final int iz, final boolean inside) {
+		final int cells = 1 << d;
+		final int n = levelOffset[d] + (ix*cells + iy)*cells + iz;
+		if(population[n] == 0){
+			return count;
+		}
+		nodesVisited++;
+		boolean contained = inside;
+		if(!inside){
+			final float cellHalf = half/cells;
+			final int side = frustum.classifyCube(-half + (2*ix + 1)*cellHalf, -half + (2*iy + 1)*cellHalf,
+					-half + (2*iz + 1)*cellHalf, 2*cellHalf);
+			if(side == Frustum.OUTSIDE){
+				return count;
+			}
+			contained = side == Frustum.INSIDE;
+		}
+		for(int i = head[n]; i != NONE; i = next[i]){
+			if(contained){
+				visible[count++] = i;
+			} else {
+				spheresTested++;
+				if(frustum.isSphereVisible(x[i], y[i], z[i], radius[i])){
+					visible[count++] = i;
+				}
+			}
+		}
+		if(d < depth){
+			for(int child = 0; child < 8; child++){
+				count = cull(frustum, visible, count, d + 1, 2*ix + (child >> 2), 2*iy + (child >> 1 & 1),
+						2*iz + (child & 1), contained);
+			}
+		}
+		return count;
+	}
+
+	int getNodesVisited() {
+		return nodesVisited;
+	}
+
+	int getSpheresTested() {
+		return spheresTested;
+	}
+}
@@ -0,0 +1,112 @@
+package space;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * Indexed triangle mesh retained in a pair of vertex buffer objects.
+ * Vertices are interleaved as position, normal and texture coordinate.
+ * draw binds and unbinds around a single call; a StateCache instead binds
+ * with bindBuffers and leaves the arrays enabled between meshes.
+ */
+class Mesh {
+
+	// floats per vertex: position(3) normal(3) texcoord(2)
+	static final int VERTEX_FLOATS = 8;
+	static final int STRIDE = VERTEX_FLOATS*Buffers.SIZEOF_FLOAT;
+
+	private final int[] buffers = new int[2];
+	private final int vertexCount;
+	private final int indexCount;
+
+	Mesh(final GL2 gl, final float[] vertices, final int[] indices) {
+		vertexCount = vertices.length/VERTEX_FLOATS;
+		indexCount = indices.length;
+		gl.glGenBuffers(2, buffers, 0);
+
+		final FloatBuffer vertexBuff = Buffers.newDirectFloatBuffer(vertices);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffers[0]);
+		gl.glBufferData(GL.GL_ARRAY_BUFFER, vertices.length*Buffers.SIZEOF_FLOAT, vertexBuff, GL.GL_STATIC_DRAW);
+
+		final IntBuffer indexBuff = Buffers.newDirectIntBuffer(indices);
+		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, buffers[1]);
+		gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, indices.length*Buffers.SIZEOF_INT, indexBuff, GL.GL_STATIC_DRAW);
+
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+
+	void draw(final GL2 gl) {
+		enableArrays(gl);
+		bindBuffers(gl);
+		drawElements(gl);
+		disableArrays(gl);
+		unbindBuffers(gl);
+	}
+
+	/**
+	 * Draws the mesh once per instance in a single call.  The caller sets
+	 * up the per-instance attributes.
+	 */
+	void drawInstanced(final GL2 gl, final int instances) {
+		enableArrays(gl);
+		bindBuffers(gl);
+		drawElementsInstanced(gl, instances);
+		disableArrays(gl);
+		unbindBuffers(gl);
+	}
+
+	/**
+	 * Draws with whatever mesh is bound, which must be this one.
+	 */
+	void drawElements(final GL2 gl) {
+		gl.glDrawElements(GL.GL_TRIANGLES, indexCount, GL.GL_UNSIGNED_INT, 0);
+	}
+
+	void drawElementsInstanced(final GL2 gl, final int instances) {
+		gl.glDrawElementsInstanced(GL.GL_TRIANGLES, indexCount, GL.GL_UNSIGNED_INT, 0L, instances);
+	}
+
+	void bindBuffers(final GL2 gl) {
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffers[0]);
+		gl.glVertexPointer(3, GL.GL_FLOAT, STRIDE, 0);
+		gl.glNormalPointer(GL.GL_FLOAT, STRIDE, 3*Buffers.SIZEOF_FLOAT);
+		gl.glTexCoordPointer(2, GL.GL_FLOAT, STRIDE, 6*Buffers.SIZEOF_FLOAT);
+
+		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, buffers[1]);
+	}
+
+	static void unbindBuffers(final GL2 gl) {
+		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+	}
+
+	static void enableArrays(final GL2 gl) {
+		gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+		gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+		gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+	}
+
+	static void disableArrays(final GL2 gl) {
+		gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+		gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+		gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+	}
+
+	int getVertexCount() {
+		return vertexCount;
+	}
+
+	int getTriangleCount() {
+		return indexCount/3;
+	}
+
+	void dispose(final GL2 gl) {
+		gl.glDeleteBuffers(2, buffers, 0);
+	}
+}
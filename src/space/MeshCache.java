@@ -0,0 +1,183 @@
+package space;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.media.opengl.GL2;
+
+/**
+ * Builds the GLU quadric shapes used by the scene as retained meshes.
+ * Each shape is generated once per distinct set of parameters and shared
+ * until {@link #dispose(GL2)} is called.  The generated geometry follows
+ * the vertex layout, winding and texture coordinates of the GLU quadrics
+ * it replaces, so textures map the same way they did with gluSphere,
+ * gluCylinder and gluDisk.  A shape textured from a region of an atlas has
+ * its texture coordinates squeezed into that region.
+ */
+class MeshCache {
+
+	// s0, t0, s1, t1 of the whole texture
+	private static final float[] WHOLE = {0.0f, 0.0f, 1.0f, 1.0f};
+
+	private final Map<String, Mesh> meshes = new HashMap<String, Mesh>();
+
+	Mesh sphere(final GL2 gl, final float radius, final int slices, final int stacks) {
+		return sphere(gl, radius, slices, stacks, WHOLE);
+	}
+
+	/**
+	 * @param region s0, t0, s1, t1 of the texture region to map onto the shape
+	 */
+	Mesh sphere(final GL2 gl, final float radius, final int slices, final int stacks, final float[] region) {
+		final String key = "sphere:" + radius + ":" + slices + ":" + stacks + Arrays.toString(region);
+		Mesh mesh = meshes.get(key);
+		if(mesh == null){
+			mesh = new Mesh(gl, remap(sphereVertices(radius, slices, stacks), region), gridIndices(stacks, slices, false));
+			meshes.put(key, mesh);
+		}
+		return mesh;
+	}
+
+	Mesh cylinder(final GL2 gl, final float base, final float top, final float height, final int slices, final int stacks) {
+		return cylinder(gl, base, top, height, slices, stacks, WHOLE);
+	}
+
+	Mesh cylinder(final GL2 gl, final float base, final float top, final float height, final int slices, final int stacks,
+			final float[] region) {
+		final String key = "cylinder:" + base + ":" + top + ":" + height + ":" + slices + ":" + stacks + Arrays.toString(region);
+		Mesh mesh = meshes.get(key);
+		if(mesh == null){
+			mesh = new Mesh(gl, remap(cylinderVertices(base, top, height, slices, stacks), region),
+					gridIndices(stacks, slices, false));
+			meshes.put(key, mesh);
+		}
+		return mesh;
+	}
+
+	Mesh disk(final GL2 gl, final float inner, final float outer, final int slices, final int loops) {
+		return disk(gl, inner, outer, slices, loops, WHOLE);
+	}
+
+	Mesh disk(final GL2 gl, final float inner, final float outer, final int slices, final int loops, final float[] region) {
+		final String key = "disk:" + inner + ":" + outer + ":" + slices + ":" + loops + Arrays.toString(region);
+		Mesh mesh = meshes.get(key);
+		if(mesh == null){
+			mesh = new Mesh(gl, remap(diskVertices(inner, outer, slices, loops), region), gridIndices(loops, slices, true));
+			meshes.put(key, mesh);
+		}
+		return mesh;
+	}
+
+	/**
+	 * Maps texture coordinates from the whole texture onto region, in place.
+	 */
+	static float[] remap(final float[] vertices, final float[] region) {
+		for(int n = 6; n < vertices.length; n += Mesh.VERTEX_FLOATS){
+			vertices[n] = region[0] + vertices[n]*(region[2] - region[0]);
+			vertices[n+1] = region[1] + vertices[n+1]*(region[3] - region[1]);
+		}
+		return vertices;
+	}
+
+	int size() {
+		return meshes.size();
+	}
+
+	void dispose(final GL2 gl) {
+		for(final Mesh mesh : meshes.values()){
+			mesh.dispose(gl);
+		}
+		meshes.clear();
+	}
+
+	static float[] sphereVertices(final float radius, final int slices, final int stacks) {
+		final float[] vertices = new float[(stacks+1)*(slices+1)*Mesh.VERTEX_FLOATS];
+		int n = 0;
+		for(int i = 0; i <= stacks; i++){
+			final double rho = Math.PI*i/stacks;
+			for(int j = 0; j <= slices; j++){
+				final double theta = (j == slices) ? 0.0 : 2*Math.PI*j/slices;
+				final float x = (float)(-Math.sin(theta)*Math.sin(rho));
+				final float y = (float)(Math.cos(theta)*Math.sin(rho));
+				final float z = (float)Math.cos(rho);
+				n = putVertex(vertices, n, x*radius, y*radius, z*radius, x, y, z,
+						(float)j/slices, 1.0f - (float)i/stacks);
+			}
+		}
+		return vertices;
+	}
+
+	static float[] cylinderVertices(final float base, final float top, final float height, final int slices, final int stacks) {
+		final float[] vertices = new float[(stacks+1)*(slices+1)*Mesh.VERTEX_FLOATS];
+		// the side normal leans along z when the radius changes with height
+		final float nz = (base - top)/height;
+		final float nScale = (float)(1.0/Math.sqrt(1.0 + nz*nz));
+		int n = 0;
+		for(int i = 0; i <= stacks; i++){
+			final float radius = base + (top - base)*i/stacks;
+			final float z = height*i/stacks;
+			for(int j = 0; j <= slices; j++){
+				final double angle = (j == slices) ? 0.0 : 2*Math.PI*j/slices;
+				final float x = (float)Math.sin(angle);
+				final float y = (float)Math.cos(angle);
+				n = putVertex(vertices, n, x*radius, y*radius, z, x*nScale, y*nScale, nz*nScale,
+						(float)j/slices, (float)i/stacks);
+			}
+		}
+		return vertices;
+	}
+
+	static float[] diskVertices(final float inner, final float outer, final int slices, final int loops) {
+		final float[] vertices = new float[(loops+1)*(slices+1)*Mesh.VERTEX_FLOATS];
+		int n = 0;
+		for(int i = 0; i <= loops; i++){
+			final float radius = inner + (outer - inner)*i/loops;
+			for(int j = 0; j <= slices; j++){
+				final double angle = (j == slices) ? 0.0 : 2*Math.PI*j/slices;
+				final float x = (float)Math.sin(angle)*radius;
+				final float y = (float)Math.cos(angle)*radius;
+				n = putVertex(vertices, n, x, y, 0.0f, 0.0f, 0.0f, 1.0f,
+						0.5f + x/(2*outer), 0.5f + y/(2*outer));
+			}
+		}
+		return vertices;
+	}
+
+	/**
+	 * Triangulates a (rows+1) x (cols+1) vertex grid.  Rows of a sphere or
+	 * cylinder sweep the opposite way to the rings of a disk, so the disk
+	 * passes flip to keep its front face on +z.
+	 */
+	static int[] gridIndices(final int rows, final int cols, final boolean flip) {
+		final int[] indices = new int[rows*cols*6];
+		int n = 0;
+		for(int i = 0; i < rows; i++){
+			for(int j = 0; j < cols; j++){
+				final int a = i*(cols+1) + j;
+				final int b = a + cols + 1;
+				if(flip){
+					indices[n++] = a; indices[n++] = a+1; indices[n++] = b;
+					indices[n++] = a+1; indices[n++] = b+1; indices[n++] = b;
+				} else {
+					indices[n++] = a; indices[n++] = b; indices[n++] = a+1;
+					indices[n++] = a+1; indices[n++] = b; indices[n++] = b+1;
+				}
+			}
+		}
+		return indices;
+	}
+
+	private static int putVertex(final float[] vertices, int n, final float x, final float y, final float z,
+			final float nx, final float ny, final float nz, final float s, final float t) {
+		vertices[n++] = x;
+		vertices[n++] = y;
+		vertices[n++] = z;
+		vertices[n++] = nx;
+		vertices[n++] = ny;
+		vertices[n++] = nz;
+		vertices[n++] = s;
+		vertices[n++] = t;
+		return n;
+	}
+}
@@ -0,0 +1,27 @@
+package space;
+
+import javax.media.opengl.GLCapabilities;
+import javax.media.opengl.GLDrawableFactory;
+import javax.media.opengl.GLOffscreenAutoDrawable;
+import javax.media.opengl.GLProfile;
+
+/**
+ * Creates GL2 drawables that render into a framebuffer object instead of
+ * a window, for benchmarks that have no screen to draw on.
+ */
+final class Offscreen {
+
+	private Offscreen() {
+	}
+
+	static GLOffscreenAutoDrawable create(final int width, final int height) {
+		final GLProfile prof = GLProfile.get(GLProfile.GL2);
+		final GLCapabilities glcaps = new GLCapabilities(prof);
+		glcaps.setOnscreen(false);
+		glcaps.setFBO(true);
+		glcaps.setDoubleBuffered(false);
+		glcaps.setDepthBits(16);
+		final GLDrawableFactory factory = GLDrawableFactory.getFactory(prof);
+		return factory.createOffscreenAutoDrawable(null, glcaps, null, width, height, null);
+	}
+}
@@ -0,0 +1,107 @@
+package space;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Times one frame's update of a full particle pool two ways: with
+ * ParticleSystem.update(), one straight pass per axis that the JIT
+ * vectorises, and with the same work written as one loop per particle
+ * that also checks for death as it goes, which the JIT leaves scalar.
+ * Packing for the renderer is timed too.  It prints the time per frame and
+ * per particle, and the heap bytes allocated over all measured frames,
+ * which should be 0.  Running with -XX:-UseSuperWord shows the update
+ * without SIMD.
+ *
+ * java space.ParticleBenchmark [-n N] [-frames F]
+ */
+public class ParticleBenchmark {
+
+	private static final int WARMUP_FRAMES = 200;
+	private static final float DT = 1.0f/60;
+
+	public static void main(final String[] args) {
+		int n = 1000000;
+		int frames = 500;
+		for(int i = 0; i+1 < args.length; i += 2){
+			if(args[i].equals("-n")){
+				n = Integer.parseInt(args[i+1]);
+			} else if(args[i].equals("-frames")){
+				frames = Integer.parseInt(args[i+1]);
+			}
+		}
+		final com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		final long thread = Thread.currentThread().getId();
+
+		// lives long enough that the pool stays full for every frame measured
+		final ParticleSystem particles = new ParticleSystem(n, 0.3f);
+		particles.emit(n, 0.0f, 0.0f, 0.0f, 10.0f, 0.0f, 0.0f, 50.0f, 1e6f, 0xFFFFFF);
+		final int[] vertices = new int[n*ParticleSystem.VERTEX_INTS];
+
+		System.out.println("kernel\tparticles\tframes\tmean(ms)\tbest(ms)\tns/particle\theap bytes");
+		for(int kernel = 0; kernel < 3; kernel++){
+			for(int f = 0; f < WARMUP_FRAMES; f++){
+				run(kernel, particles, vertices);
+			}
+			long best = Long.MAX_VALUE;
+			long total = 0;
+			final long allocated = threads.getThreadAllocatedBytes(thread);
+			for(int f = 0; f < frames; f++){
+				final long start = System.nanoTime();
+				run(kernel, particles, vertices);
+				final long elapsed = System.nanoTime() - start;
+				best = Math.min(best, elapsed);
+				total += elapsed;
+			}
+			final long heap = threads.getThreadAllocatedBytes(thread) - allocated;
+			System.out.printf("%s\t%d\t%d\t%.3f\t%.3f\t%.2f\t%d%n", new String[]{"update", "scalar", "pack"}[kernel],
+					particles.count, frames, total/1e6/frames, best/1e6, (double)total/frames/particles.count, heap);
+		}
+		// keep the result live
+		if(particles.px[0] == 1.5f && vertices[0] == 1){
+			System.out.println();
+		}
+	}
+
+	private static void run(final int kernel, final ParticleSystem particles, final int[] vertices) {
+		if(kernel == 0){
+			particles.update(DT);
+		} else if(kernel == 1){
+			updateScalar(particles, DT);
+		} else {
+			particles.pack(vertices);
+		}
+	}
+
+	/**
+	 * ParticleSystem.update() as one loop over particles, each moved, slowed,
+	 * aged and removed if dead before the next.
+	 */
+	private static void updateScalar(final ParticleSystem p, final float dt) {
+		final float keep = (float)Math.pow(0.3f, dt);
+		int i = 0;
+		while(i < p.count){
+			p.px[i] += p.vx[i]*dt;
+			p.py[i] += p.vy[i]*dt;
+			p.pz[i] += p.vz[i]*dt;
+			p.vx[i] *= keep;
+			p.vy[i] *= keep;
+			p.vz[i] *= keep;
+			p.remaining[i] -= dt;
+			if(p.remaining[i] > 0.0f){
+				i++;
+				continue;
+			}
+			final int last = --p.count;
+			p.px[i] = p.px[last];
+			p.py[i] = p.py[last];
+			p.pz[i] = p.pz[last];
+			p.vx[i] = p.vx[last];
+			p.vy[i] = p.vy[last];
+			p.vz[i] = p.vz[last];
+			p.remaining[i] = p.remaining[last];
+			p.fade[i] = p.fade[last];
+			p.colour[i] = p.colour[last];
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package space;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * Draws a ParticleSystem as one batch of point sprites.  The particles are
+ * streamed into a vertex buffer every frame, orphaning the last frame's
+ * storage as AsteroidField does, and drawn with one glDrawArrays.  Each
+ * point is textured with a soft round spot, shrinks with distance, and is
+ * added onto what is behind it without writing depth, so particles need no
+ * sorting.
+ */
+final class ParticleRenderer {
+
+	private static final int STRIDE = ParticleSystem.VERTEX_INTS*Buffers.SIZEOF_INT;
+	private static final int SPRITE_SIZE = 32;
+
+	private final boolean mapped;
+	private final int[] buffer = new int[1];
+	private final int[] sprite = new int[1];
+	private final float[] attenuation = new float[3];
+	private int[] vertices = new int[0];
+	private IntBuffer uploadBuffer;
+
+	ParticleRenderer(final GL2 gl) {
+		mapped = gl.isFunctionAvailable("glMapBufferRange");
+		gl.glGenBuffers(1, buffer, 0);
+		// white, with alpha falling smoothly from the centre to nothing at the edge
+		final ByteBuffer pixels = Buffers.newDirectByteBuffer(SPRITE_SIZE*SPRITE_SIZE*4);
+		for(int y = 0; y < SPRITE_SIZE; y++){
+			for(int x = 0; x < SPRITE_SIZE; x++){
+				final float dx = (x + 0.5f)/SPRITE_SIZE*2 - 1;
+				final float dy = (y + 0.5f)/SPRITE_SIZE*2 - 1;
+				final float edge = Math.max(0.0f, 1.0f - dx*dx - dy*dy);
+				pixels.put((byte)0xFF).put((byte)0xFF).put((byte)0xFF).put((byte)(255*edge*edge));
+			}
+		}
+		pixels.flip();
+		gl.glGenTextures(1, sprite, 0);
+		gl.glBindTexture(GL.GL_TEXTURE_2D, sprite[0]);
+		gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_LINEAR);
+		gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_LINEAR);
+		gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL.GL_RGBA, SPRITE_SIZE, SPRITE_SIZE, 0, GL.GL_RGBA,
+				GL.GL_UNSIGNED_BYTE, pixels);
+		gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+	}
+
+	/**
+	 * Draws every live particle.  GL must have no program, texture or
+	 * vertex arrays in use, as after StateCache.reset(), and is left so.
+	 * @param size the diameter in pixels of a particle at distance reach
+	 * @return the number of draw calls issued
+	 */
+	int draw(final GL2 gl, final ParticleSystem particles, final float size, final float reach) {
+		final int n = particles.count;
+		if(n == 0){
+			return 0;
+		}
+		if(vertices.length < n*ParticleSystem.VERTEX_INTS){
+			vertices = new int[particles.getCapacity()*ParticleSystem.VERTEX_INTS];
+		}
+		particles.pack(vertices);
+		upload(gl, n*ParticleSystem.VERTEX_INTS);
+
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer[0]);
+		gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+		gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+		gl.glVertexPointer(3, GL.GL_FLOAT, STRIDE, 0);
+		gl.glColorPointer(4, GL.GL_UNSIGNED_BYTE, STRIDE, 3*Buffers.SIZEOF_FLOAT);
+		gl.glEnable(GL.GL_TEXTURE_2D);
+		gl.glBindTexture(GL.GL_TEXTURE_2D, sprite[0]);
+		gl.glEnable(GL2.GL_POINT_SPRITE);
+		gl.glTexEnvi(GL2.GL_POINT_SPRITE, GL2.GL_COORD_REPLACE, GL.GL_TRUE);
+		// GL divides size by the square root of this, so it scales as reach/d and is size at reach
+		attenuation[0] = 0.0f;
+		attenuation[1] = 0.0f;
+		attenuation[2] = 1.0f/(reach*reach);
+		gl.glPointParameterfv(GL2.GL_POINT_DISTANCE_ATTENUATION, attenuation, 0);
+		gl.glPointSize(size);
+		gl.glEnable(GL.GL_BLEND);
+		gl.glBlendFunc(GL.GL_SRC_ALPHA, GL.GL_ONE);
+		gl.glDepthMask(false);
+
+		gl.glDrawArrays(GL.GL_POINTS, 0, n);
+
+		gl.glDepthMask(true);
+		gl.glDisable(GL.GL_BLEND);
+		attenuation[2] = 0.0f;
+		attenuation[0] = 1.0f;
+		gl.glPointParameterfv(GL2.GL_POINT_DISTANCE_ATTENUATION, attenuation, 0);
+		gl.glPointSize(1.0f);
+		gl.glTexEnvi(GL2.GL_POINT_SPRITE, GL2.GL_COORD_REPLACE, GL.GL_FALSE);
+		gl.glDisable(GL2.GL_POINT_SPRITE);
+		gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+		gl.glDisable(GL.GL_TEXTURE_2D);
+		gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+		gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+		gl.glColor4f(1.0f, 1.0f, 1.0f, 1.0f);
+		return 1;
+	}
+
+	private void upload(final GL2 gl, final int ints) {
+		final long bytes = (long)ints*Buffers.SIZEOF_INT;
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer[0]);
+		// fresh storage each frame orphans the last frame's, which the GPU may still be reading
+		gl.glBufferData(GL.GL_ARRAY_BUFFER, bytes, null, GL2.GL_STREAM_DRAW);
+		if(mapped){
+			final ByteBuffer storage = gl.glMapBufferRange(GL.GL_ARRAY_BUFFER, 0, bytes,
+					GL.GL_MAP_WRITE_BIT | GL.GL_MAP_INVALIDATE_BUFFER_BIT);
+			storage.order(ByteOrder.nativeOrder()).asIntBuffer().put(vertices, 0, ints);
+			gl.glUnmapBuffer(GL.GL_ARRAY_BUFFER);
+		} else {
+			if(uploadBuffer == null || uploadBuffer.capacity() < ints){
+				uploadBuffer = Buffers.newDirectIntBuffer(vertices.length);
+			}
+			uploadBuffer.clear();
+			uploadBuffer.put(vertices, 0, ints).flip();
+			gl.glBufferSubData(GL.GL_ARRAY_BUFFER, 0, bytes, uploadBuffer);
+		}
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+	}
+
+	void dispose(final GL2 gl) {
+		gl.glDeleteBuffers(1, buffer, 0);
+		gl.glDeleteTextures(1, sprite, 0);
+	}
+}
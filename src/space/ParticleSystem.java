@@ -0,0 +1,170 @@
+package space;
+
+import java.nio.ByteOrder;
+
+/**
+ * A fixed pool of short-lived glowing points for engine exhaust and
+ * explosions.  Each field is its own primitive array, as in EntityStore,
+ * and update() makes one straight pass per axis with no branches and no
+ * calls, which is the shape of loop the JIT turns into SIMD instructions.
+ * Only removing the dead is a loop of its own with a branch, and it moves
+ * the last live particle into each gap so the live ones stay packed at the
+ * front.
+ *
+ * Nothing is allocated after construction: particles emitted into a full
+ * pool are dropped.
+ */
+final class ParticleSystem {
+
+	// ints per particle handed to the renderer: position, then colour
+	static final int VERTEX_INTS = 4;
+
+	private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+	int count;
+	final float[] px, py, pz;
+	final float[] vx, vy, vz;
+	// seconds left to live, and one over the seconds lived in all
+	final float[] remaining;
+	final float[] fade;
+	// colour when born, fading towards red and nothing as the particle ages
+	final int[] colour;
+	private final float drag;
+	private int seed = 0x2545F491;
+
+	/**
+	 * @param drag the fraction of its speed a particle keeps each second
+	 */
+	ParticleSystem(final int capacity, final float drag) {
+		px = new float[capacity];
+		py = new float[capacity];
+		pz = new float[capacity];
+		vx = new float[capacity];
+		vy = new float[capacity];
+		vz = new float[capacity];
+		remaining = new float[capacity];
+		fade = new float[capacity];
+		colour = new int[capacity];
+		this.drag = drag;
+	}
+
+	int getCapacity() {
+		return px.length;
+	}
+
+	/**
+	 * Emits up to n particles from (x, y, z), each moving at (dx, dy, dz)
+	 * plus up to spread in a random direction, living life seconds give or
+	 * take a half.
+	 * @param rgb the colour they are born with
+	 * @return how many there was room for
+	 */
+	int emit(final int n, final float x, final float y, final float z, final float dx, final float dy, final float dz,
+			final float spread, final float life, final int rgb) {
+		final int emitted = Math.min(n, px.length - count);
+		for(int k = 0; k < emitted; k++){
+			final int i = count++;
+			px[i] = x;
+			py[i] = y;
+			pz[i] = z;
+			// a random point in the unit ball, by rejection
+			float rx, ry, rz;
+			do {
+				rx = 2*random() - 1;
+				ry = 2*random() - 1;
+				rz = 2*random() - 1;
+			} while(rx*rx + ry*ry + rz*rz > 1.0f);
+			vx[i] = dx + spread*rx;
+			vy[i] = dy + spread*ry;
+			vz[i] = dz + spread*rz;
+			final float lived = life*(0.5f + random());
+			remaining[i] = lived;
+			fade[i] = 1.0f/lived;
+			colour[i] = rgb;
+		}
+		return emitted;
+	}
+
+	/**
+	 * @return uniform in [0, 1), from a xorshift generator so emitting
+	 * neither allocates nor contends on a lock
+	 */
+	private float random() {
+		int s = seed;
+		s ^= s << 13;
+		s ^= s >>> 17;
+		s ^= s << 5;
+		seed = s;
+		return (s >>> 8)*(1.0f/(1 << 24));
+	}
+
+	/**
+	 * Moves, slows and ages every particle by dt seconds, then removes
+	 * those whose time is up.
+	 */
+	void update(final float dt) {
+		final int n = count;
+		final float keep = (float)Math.pow(drag, dt);
+		for(int i = 0; i < n; i++){
+			px[i] += vx[i]*dt;
+			vx[i] *= keep;
+		}
+		for(int i = 0; i < n; i++){
+			py[i] += vy[i]*dt;
+			vy[i] *= keep;
+		}
+		for(int i = 0; i < n; i++){
+			pz[i] += vz[i]*dt;
+			vz[i] *= keep;
+		}
+		for(int i = 0; i < n; i++){
+			remaining[i] -= dt;
+		}
+		removeDead();
+	}
+
+	private void removeDead() {
+		int i = 0;
+		while(i < count){
+			if(remaining[i] > 0.0f){
+				i++;
+				continue;
+			}
+			final int last = --count;
+			px[i] = px[last];
+			py[i] = py[last];
+			pz[i] = pz[last];
+			vx[i] = vx[last];
+			vy[i] = vy[last];
+			vz[i] = vz[last];
+			remaining[i] = remaining[last];
+			fade[i] = fade[last];
+			colour[i] = colour[last];
+		}
+	}
+
+	void clear() {
+		count = 0;
+	}
+
+	/**
+	 * Writes every live particle as VERTEX_INTS ints: the bits of its
+	 * position's three floats, then its colour as four bytes in R, G, B, A
+	 * order in memory, with alpha falling as it ages.
+	 */
+	void pack(final int[] out) {
+		for(int i = 0, o = 0; i < count; i++, o += VERTEX_INTS){
+			out[o] = Float.floatToRawIntBits(px[i]);
+			out[o+1] = Float.floatToRawIntBits(py[i]);
+			out[o+2] = Float.floatToRawIntBits(pz[i]);
+			final float life = remaining[i]*fade[i];
+			final int c = colour[i];
+			// green and blue burn off before red does
+			final int r = c >>> 16 & 0xFF;
+			final int g = (int)((c >>> 8 & 0xFF)*life);
+			final int b = (int)((c & 0xFF)*life*life);
+			final int a = (int)(255*life);
+			out[o+3] = LITTLE_ENDIAN ? a << 24 | b << 16 | g << 8 | r : r << 24 | g << 16 | b << 8 | a;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package space;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.media.opengl.GL2;
+
+import com.jogamp.opengl.util.texture.Texture;
+
+/**
+ * Collects a frame's mesh draws and submits them sorted so that draws
+ * sharing a program, then a texture, then a mesh are adjacent, nearest
+ * first within each run.  Each draw is sorted by one packed key:
+ *
+ *   bits 62-56 program, 55-44 texture, 43-32 mesh, 31-16 depth, 15-0 item
+ *
+ * Programs, textures and meshes are numbered in the order the queue first
+ * sees them, with 0 for none.  The item number makes keys unique and
+ * leads back to the draw, so sorting the keys sorts the draws without
+ * moving them.
+ */
+final class RenderQueue {
+
+	private static final int ITEM_BITS = 16;
+	private static final int DEPTH_BITS = 16;
+	private static final int MESH_BITS = 12;
+	private static final int TEXTURE_BITS = 12;
+	// one bit short of the rest, so keys stay positive and sort unsigned
+	private static final int PROGRAM_BITS = 7;
+	private static final int MAX_ITEMS = 1 << ITEM_BITS;
+
+	private long[] keys = new long[64];
+	private Mesh[] meshes = new Mesh[64];
+	private Texture[] textures = new Texture[64];
+	private int[] programs = new int[64];
+	private float[] modelviews = new float[64*16];
+	private int count;
+	private int triangles;
+
+	private final Map<Object, Integer> programSlots = new IdentityHashMap<Object, Integer>();
+	private final Map<Object, Integer> textureSlots = new IdentityHashMap<Object, Integer>();
+	private final Map<Object, Integer> meshSlots = new IdentityHashMap<Object, Integer>();
+	private final float[] view = new float[16];
+	private float farDepth = 1.0f;
+
+	/**
+	 * Empties the queue for a new frame.
+	 * @param viewMatrix column-major world to eye transform
+	 * @param far eye depth that maps to the largest depth key
+	 */
+	void begin(final float[] viewMatrix, final float far) {
+		System.arraycopy(viewMatrix, 0, view, 0, 16);
+		farDepth = far;
+		count = 0;
+	}
+
+	/**
+	 * Queues a draw of mesh with the given model matrix.
+	 * @param texture null to draw untextured
+	 * @param program null for the fixed-function pipeline
+	 * @param model column-major model to world transform
+	 */
+	void add(final Mesh mesh, final Texture texture, final ShaderProgram program, final float[] model) {
+		if(count == MAX_ITEMS){
+			throw new IllegalStateException("more than " + MAX_ITEMS + " draws queued");
+		}
+		if(count == keys.length){
+			grow(2*count);
+		}
+		final int item = count++;
+		meshes[item] = mesh;
+		textures[item] = texture;
+		programs[item] = program == null ? 0 : program.getId();
+		final int m = item*16;
+		for(int c = 0; c < 4; c++){
+			for(int r = 0; r < 4; r++){
+				modelviews[m + c*4 + r] = view[r]*model[c*4] + view[4 + r]*model[c*4 + 1]
+						+ view[8 + r]*model[c*4 + 2] + view[12 + r]*model[c*4 + 3];
+			}
+		}
+		final float depth = Math.max(0.0f, Math.min(1.0f, -modelviews[m + 14]/farDepth));
+		keys[item] = (long)slot(programSlots, program, PROGRAM_BITS) << (ITEM_BITS + DEPTH_BITS + MESH_BITS + TEXTURE_BITS)
+				| (long)slot(textureSlots, texture, TEXTURE_BITS) << (ITEM_BITS + DEPTH_BITS + MESH_BITS)
+				| (long)slot(meshSlots, mesh, MESH_BITS) << (ITEM_BITS + DEPTH_BITS)
+				| (long)(depth*((1 << DEPTH_BITS) - 1)) << ITEM_BITS
+				| item;
+	}
+
+	private static int slot(final Map<Object, Integer> slots, final Object o, final int bits) {
+		if(o == null){
+			return 0;
+		}
+		final Integer slot = slots.get(o);
+		if(slot != null){
+			return slot;
+		}
+		// objects past the last number share it, which only costs sort quality
+		final int next = Math.min(slots.size() + 1, (1 << bits) - 1);
+		slots.put(o, next);
+		return next;
+	}
+
+	private void grow(final int capacity) {
+		keys = Arrays.copyOf(keys, capacity);
+		meshes = Arrays.copyOf(meshes, capacity);
+		textures = Arrays.copyOf(textures, capacity);
+		programs = Arrays.copyOf(programs, capacity);
+		modelviews = Arrays.copyOf(modelviews, capacity*16);
+	}
+
+	/**
+	 * Draws everything queued, in key order, binding through state.  The
+	 * modelview matrix is overwritten, so callers push and pop around it.
+	 * @return the number of draw calls issued
+	 */
+	int submit(final GL2 gl, final StateCache state) {
+		Arrays.sort(keys, 0, count);
+		triangles = 0;
+		gl.glMatrixMode(GL2.GL_MODELVIEW);
+		for(int k = 0; k < count; k++){
+			final int item = (int)(keys[k] & (MAX_ITEMS - 1));
+			state.useProgram(gl, programs[item]);
+			state.bindTexture(gl, textures[item]);
+			state.bindMesh(gl, meshes[item]);
+			gl.glLoadMatrixf(modelviews, item*16);
+			meshes[item].drawElements(gl);
+			triangles += meshes[item].getTriangleCount();
+		}
+		// drop references to this frame's textures and meshes
+		Arrays.fill(meshes, 0, count, null);
+		Arrays.fill(textures, 0, count, null);
+		return count;
+	}
+
+	int getTriangleCount() {
+		return triangles;
+	}
+}
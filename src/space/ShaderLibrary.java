@@ -0,0 +1,397 @@
+package space;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+import javax.media.opengl.GL4ES3;
+import javax.media.opengl.GLException;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * Builds GLSL programs from "name.vert" and "name.frag", read from next to
+ * this class or from a source directory.  Compile and link failures throw
+ * with the driver's log.  Where the driver can hand back program binaries,
+ * each linked program is saved to a cache file, which later runs load
+ * instead of compiling, as long as the sources and driver are unchanged.
+ *
+ * When the sources live in a directory, a background thread watches it and
+ * every program whose sources change is rebuilt by {@link #reloadChanged}
+ * on the GL thread.  A program that no longer builds keeps running as it
+ * was, and the error is printed.
+ */
+class ShaderLibrary {
+
+	private static final int MAGIC = 0x53505342; // "SPSB"
+	private static final int VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File cacheDir;
+	private final File sourceDir;
+	private final Map<String, ShaderProgram> programs = new HashMap<String, ShaderProgram>();
+	// names of programs whose sources changed, added by the watcher thread
+	private final Set<String> changed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private boolean binaries;
+	private String driver;
+	private WatchService watcher;
+
+	/**
+	 * @param cacheDir where program binaries are kept
+	 * @param sourceDir where the sources are read from, or null for the classpath
+	 */
+	ShaderLibrary(final File cacheDir, final File sourceDir) {
+		this.cacheDir = cacheDir;
+		this.sourceDir = sourceDir;
+	}
+
+	void init(final GL2 gl) {
+		// the retrievable hint is set with glProgramParameteri, which JOGL only offers through GL4ES3
+		if(gl.isGL4ES3() && gl.isFunctionAvailable("glGetProgramBinary") && gl.isFunctionAvailable("glProgramBinary")
+				&& gl.isFunctionAvailable("glProgramParameteri")){
+			final int[] formats = new int[1];
+			gl.glGetIntegerv(GL2.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+			binaries = formats[0] > 0;
+		}
+		driver = gl.glGetString(GL.GL_RENDERER) + " " + gl.glGetString(GL.GL_VERSION);
+		final File watched = sourceDirectory();
+		if(watched != null){
+			try {
+				watch(watched);
+			} catch (final IOException e) {
+				// reloading is a convenience, so carry on without it
+				System.out.println("Could not watch shaders in " + watched + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Builds the program "name", or returns it if it is already built.
+	 * @throws IOException if a source is missing
+	 * @throws GLException if the sources do not compile or link
+	 */
+	ShaderProgram load(final GL2 gl, final String name) throws IOException {
+		ShaderProgram program = programs.get(name);
+		if(program == null){
+			program = new ShaderProgram(name, build(gl, name));
+			programs.put(name, program);
+		}
+		return program;
+	}
+
+	/**
+	 * Rebuilds the programs whose sources changed since the last call.
+	 * Must be called on the GL thread, between frames.
+	 */
+	void reloadChanged(final GL2 gl) {
+		if(changed.isEmpty()){
+			return;
+		}
+		for(final Iterator<String> names = changed.iterator(); names.hasNext();){
+			final ShaderProgram program = programs.get(names.next());
+			names.remove();
+			if(program == null){
+				continue;
+			}
+			try {
+				final int rebuilt = build(gl, program.getName());
+				gl.glDeleteProgram(program.getId());
+				program.replace(rebuilt);
+				System.out.println("Reloaded shader '" + program.getName() + "'");
+			} catch (final IOException e) {
+				System.out.println("Could not reload shader '" + program.getName() + "': " + e.getMessage());
+			} catch (final GLException e) {
+				System.out.println("Could not reload shader '" + program.getName() + "': " + e.getMessage());
+			}
+		}
+	}
+
+	void dispose(final GL2 gl) {
+		if(watcher != null){
+			try {
+				watcher.close();
+			} catch (final IOException e) {
+				// the watcher thread stops either way
+			}
+			watcher = null;
+		}
+		for(final ShaderProgram program : programs.values()){
+			gl.glDeleteProgram(program.getId());
+		}
+		programs.clear();
+	}
+
+	private int build(final GL2 gl, final String name) throws IOException {
+		final String vertex = read(name + ".vert");
+		final String fragment = read(name + ".frag");
+		final String key = digest(driver, vertex, fragment);
+		final File cacheFile = new File(cacheDir, name + ".bin");
+		if(binaries){
+			final int cached = loadBinary(gl, cacheFile, key);
+			if(cached != 0){
+				return cached;
+			}
+		}
+
+		final int vertexShader = compile(gl, name + ".vert", GL2.GL_VERTEX_SHADER, vertex);
+		final int fragmentShader;
+		try {
+			fragmentShader = compile(gl, name + ".frag", GL2.GL_FRAGMENT_SHADER, fragment);
+		} catch (final GLException e) {
+			gl.glDeleteShader(vertexShader);
+			throw e;
+		}
+		final int program = gl.glCreateProgram();
+		gl.glAttachShader(program, vertexShader);
+		gl.glAttachShader(program, fragmentShader);
+		if(binaries){
+			gl.getGL4ES3().glProgramParameteri(program, GL4ES3.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL.GL_TRUE);
+		}
+		gl.glLinkProgram(program);
+		// the program keeps them alive until it is deleted
+		gl.glDetachShader(program, vertexShader);
+		gl.glDetachShader(program, fragmentShader);
+		gl.glDeleteShader(vertexShader);
+		gl.glDeleteShader(fragmentShader);
+		final int[] status = new int[1];
+		gl.glGetProgramiv(program, GL2.GL_LINK_STATUS, status, 0);
+		if(status[0] != GL.GL_TRUE){
+			final String log = programLog(gl, program);
+			gl.glDeleteProgram(program);
+			throw new GLException("Could not link shader '" + name + "':\n" + log);
+		}
+
+		if(binaries){
+			try {
+				saveBinary(gl, program, cacheFile, key);
+			} catch (final IOException e) {
+				// the cache only saves time, so carry on with the compiled program
+				System.out.println("Could not cache shader '" + name + "': " + e.getMessage());
+			}
+		}
+		return program;
+	}
+
+	private static int compile(final GL2 gl, final String resource, final int type, final String source) {
+		final int shader = gl.glCreateShader(type);
+		gl.glShaderSource(shader, 1, new String[]{source}, (int[])null, 0);
+		gl.glCompileShader(shader);
+		final int[] status = new int[1];
+		gl.glGetShaderiv(shader, GL2.GL_COMPILE_STATUS, status, 0);
+		if(status[0] != GL.GL_TRUE){
+			final int[] length = new int[1];
+			gl.glGetShaderiv(shader, GL2.GL_INFO_LOG_LENGTH, length, 0);
+			final byte[] log = new byte[Math.max(1, length[0])];
+			gl.glGetShaderInfoLog(shader, log.length, length, 0, log, 0);
+			gl.glDeleteShader(shader);
+			throw new GLException("Could not compile '" + resource + "':\n" + new String(log, 0, length[0], UTF8));
+		}
+		return shader;
+	}
+
+	private static String programLog(final GL2 gl, final int program) {
+		final int[] length = new int[1];
+		gl.glGetProgramiv(program, GL2.GL_INFO_LOG_LENGTH, length, 0);
+		final byte[] log = new byte[Math.max(1, length[0])];
+		gl.glGetProgramInfoLog(program, log.length, length, 0, log, 0);
+		return new String(log, 0, length[0], UTF8);
+	}
+
+	/**
+	 * @return the program, or 0 if there is no usable binary
+	 */
+	private static int loadBinary(final GL2 gl, final File file, final String key) {
+		if(!file.isFile()){
+			return 0;
+		}
+		final int format;
+		final byte[] binary;
+		try {
+			final DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				if(in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(key)){
+					return 0;
+				}
+				format = in.readInt();
+				binary = new byte[in.readInt()];
+				in.readFully(binary);
+			} finally {
+				in.close();
+			}
+		} catch (final IOException e) {
+			return 0;
+		}
+		final int program = gl.glCreateProgram();
+		final ByteBuffer buffer = Buffers.newDirectByteBuffer(binary.length);
+		buffer.put(binary).flip();
+		gl.glProgramBinary(program, format, buffer, binary.length);
+		final int[] status = new int[1];
+		gl.glGetProgramiv(program, GL2.GL_LINK_STATUS, status, 0);
+		if(status[0] != GL.GL_TRUE){
+			// drivers may reject binaries from other builds of themselves
+			gl.glDeleteProgram(program);
+			return 0;
+		}
+		return program;
+	}
+
+	private static void saveBinary(final GL2 gl, final int program, final File file, final String key) throws IOException {
+		final int[] length = new int[1];
+		gl.glGetProgramiv(program, GL2.GL_PROGRAM_BINARY_LENGTH, length, 0);
+		if(length[0] == 0){
+			return;
+		}
+		final ByteBuffer binary = Buffers.newDirectByteBuffer(length[0]);
+		final IntBuffer written = Buffers.newDirectIntBuffer(1);
+		final IntBuffer format = Buffers.newDirectIntBuffer(1);
+		gl.glGetProgramBinary(program, length[0], written, format, binary);
+		final byte[] bytes = new byte[written.get(0)];
+		binary.get(bytes);
+
+		final File dir = file.getParentFile();
+		if(!dir.isDirectory() && !dir.mkdirs()){
+			throw new IOException("cannot create " + dir);
+		}
+		// write beside the cache file and rename, so readers never see half a file
+		final File tmp = new File(dir, file.getName() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(key);
+			out.writeInt(format.get(0));
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		if(!tmp.renameTo(file)){
+			file.delete();
+			if(!tmp.renameTo(file)){
+				tmp.delete();
+				throw new IOException("cannot replace " + file);
+			}
+		}
+	}
+
+	private String read(final String resource) throws IOException {
+		final InputStream stream;
+		if(sourceDir != null){
+			stream = new FileInputStream(new File(sourceDir, resource));
+		} else {
+			stream = getClass().getResourceAsStream(resource);
+			if(stream == null){
+				throw new IOException("Missing shader '" + resource + "'");
+			}
+		}
+		final Reader reader = new InputStreamReader(stream, UTF8);
+		try {
+			final StringBuilder source = new StringBuilder();
+			final char[] chunk = new char[4096];
+			int n;
+			while((n = reader.read(chunk)) != -1){
+				source.append(chunk, 0, n);
+			}
+			return source.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String digest(final String... parts) {
+		final MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-1");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		for(final String part : parts){
+			sha.update(part.getBytes(UTF8));
+			sha.update((byte)0);
+		}
+		final StringBuilder hex = new StringBuilder();
+		for(final byte b : sha.digest()){
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * @return the directory the sources are read from, or null when they
+	 * come from a jar
+	 */
+	private File sourceDirectory() {
+		if(sourceDir != null){
+			return sourceDir;
+		}
+		final URL url = getClass().getResource(getClass().getSimpleName() + ".class");
+		if(url == null || !url.getProtocol().equals("file")){
+			return null;
+		}
+		try {
+			return new File(url.toURI()).getParentFile();
+		} catch (final URISyntaxException e) {
+			return null;
+		}
+	}
+
+	private void watch(final File dir) throws IOException {
+		final WatchService service = watcher = FileSystems.getDefault().newWatchService();
+		// editors often save by writing a new file and renaming it over the old one
+		dir.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		final Thread thread = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				try {
+					while(true){
+						final WatchKey key = service.take();
+						for(final WatchEvent<?> event : key.pollEvents()){
+							if(!(event.context() instanceof Path)){
+								continue;
+							}
+							final String file = event.context().toString();
+							if(file.endsWith(".vert") || file.endsWith(".frag")){
+								changed.add(file.substring(0, file.lastIndexOf('.')));
+							}
+						}
+						key.reset();
+					}
+				} catch (final InterruptedException e) {
+					// stop watching
+				} catch (final ClosedWatchServiceException e) {
+					// disposed
+				}
+			}
+		}, "shader-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
@@ -0,0 +1,65 @@
+package space;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.media.opengl.GL2;
+
+/**
+ * A linked GLSL program owned by a ShaderLibrary, which may swap in a
+ * rebuilt program between frames when its sources change.  Attribute and
+ * uniform locations are looked up by name and remembered until then, and
+ * uniforms must be set again after a swap, so callers set them each time
+ * they use the program.
+ */
+final class ShaderProgram {
+
+	private final String name;
+	private int id;
+	private final Map<String, Integer> attributes = new HashMap<String, Integer>();
+	private final Map<String, Integer> uniforms = new HashMap<String, Integer>();
+
+	ShaderProgram(final String name, final int id) {
+		this.name = name;
+		this.id = id;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	int getId() {
+		return id;
+	}
+
+	void use(final GL2 gl) {
+		gl.glUseProgram(id);
+	}
+
+	int attribute(final GL2 gl, final String attribute) {
+		Integer location = attributes.get(attribute);
+		if(location == null){
+			location = gl.glGetAttribLocation(id, attribute);
+			attributes.put(attribute, location);
+		}
+		return location;
+	}
+
+	int uniform(final GL2 gl, final String uniform) {
+		Integer location = uniforms.get(uniform);
+		if(location == null){
+			location = gl.glGetUniformLocation(id, uniform);
+			uniforms.put(uniform, location);
+		}
+		return location;
+	}
+
+	/**
+	 * Points this at a rebuilt program; the caller deletes the old one.
+	 */
+	void replace(final int program) {
+		id = program;
+		attributes.clear();
+		uniforms.clear();
+	}
+}
@@ -0,0 +1,397 @@
+package space;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Advances the scene in fixed 1/120 s steps on its own thread, so movement
+ * no longer depends on the frame rate or on how fast the OS repeats keys.
+ * Movement keys are held in a bitmask set by the event thread and read
+ * once per tick.  Each tick publishes the last two states together; display
+ * blends them by how far it is into the current tick, which draws the
+ * scene one tick behind but always smoothly.
+ *
+ * The asteroid field lives in an EntityStore.  After each tick it is packed
+ * into one of three instance arrays, which are handed over to display
+ * without locking: the simulation always has one to fill, display one to
+ * read, and the third holds the newest complete tick.
+ *
+ * Field asteroids orbit the planet under Gravity, pulled by the planet and
+ * by each other.  The planet's mass is the one that makes the single
+ * orbiting asteroid's fixed circular orbit a true one, so the field turns
+ * at the same rate where it passes it.
+ *
+ * Each tick ends by finding what touches what in a CollisionWorld.  The
+ * planet, the orbiting asteroid and the alien ship are immovable.  The ship
+ * is a capsule along its hull and is pushed back out of anything it runs
+ * into, staying in the plane it flies in.  Field asteroids bounce off each
+ * other, with masses in proportion to their volume, and off the rest.
+ *
+ * Without the thread, step() can be called directly to run the simulation
+ * as fast as the CPU allows.
+ */
+class Simulation implements Runnable {
+
+	static final int UP = 1;
+	static final int DOWN = 2;
+	static final int LEFT = 4;
+	static final int RIGHT = 8;
+
+	static final int TICKS_PER_SECOND = 120;
+	static final long STEP_NANOS = 1000000000L/TICKS_PER_SECOND;
+	private static final double STEP_SECONDS = 1.0/TICKS_PER_SECOND;
+	// ticks the thread may fall behind before it gives up catching up
+	private static final int MAX_LAG = 12;
+
+	// units and degrees per second
+	private static final double SHIP_SPEED = 150.0;
+	private static final double ASTEROID_ORBIT_SPEED = 6.0;
+	private static final double ALIEN_SPIN_SPEED = 90.0;
+
+	// with the gravitational constant taken as 1, the mass that holds a body
+	// in a circle at the orbiting asteroid's radius and speed
+	static final float PLANET_MASS = (float)(Math.pow(Math.toRadians(ASTEROID_ORBIT_SPEED), 2)*Math.pow(250.0, 3));
+	// loose rubble, so the whole field weighs about 1% of the planet at 100k asteroids
+	static final float ASTEROID_DENSITY = 1e-4f;
+	// coarse, but the field's own pull is a hundredth of the planet's, so its
+	// error barely shows while the step takes a third of the time it does at 0.5
+	static final float GRAVITY_THETA = 1.0f;
+	static final float GRAVITY_SOFTENING = 2.0f;
+	// ticks between finding the field's own pull
+	static final int GRAVITY_INTERVAL = 4;
+
+	// set on the index of the middle instance array while it is newer than the reader's
+	private static final int FRESH = 4;
+
+	// where Space draws the scene: the ship flies at y = 0 from x = 200, its
+	// hull reaching 23 back from the nose with a radius of 5
+	private static final float SHIP_START = 200.0f;
+	private static final float SHIP_LENGTH = 23.0f;
+	private static final float SHIP_RADIUS = 5.0f;
+	private static final float PLANET_RADIUS = 100.0f;
+	private static final float ORBIT_RADIUS = 250.0f;
+	private static final float ORBITER_RADIUS = 8.0f;
+	// around the pyramid from its base corners to its tip
+	private static final float ALIEN_RADIUS = (float)Math.sqrt(75.0);
+	// twice the largest field asteroid and wider than the ship
+	private static final float CELL_SIZE = 24.0f;
+	private static final float RESTITUTION = 0.8f;
+
+	private static final int PLANET_BODY = 0;
+	private static final int ORBITER_BODY = 1;
+	private static final int ALIEN_BODY = 2;
+	private static final int SHIP_BODY = 3;
+	private static final int FIELD_BODY = 4;
+
+	private final AtomicInteger heldKeys = new AtomicInteger();
+	private final EntityStore asteroids = new EntityStore();
+	private final float[][] asteroidInstances = new float[3][0];
+	private final CollisionWorld collisions = new CollisionWorld(CELL_SIZE);
+	private final Gravity gravity = createGravity(Runtime.getRuntime().availableProcessors());
+	private long contacts;
+	private final float[] shipPush = new float[2];
+	private boolean shipTouching;
+	// written only by the simulation
+	private volatile long shipImpacts;
+	// written by the simulation and display respectively
+	private int fillIndex = 0;
+	private int readIndex = 1;
+	private final AtomicInteger middleIndex = new AtomicInteger(2);
+	private volatile Published published;
+	private Thread thread;
+
+	private static final class Published {
+
+		final WorldState previous;
+		final WorldState current;
+		final long time;
+
+		Published(final WorldState previous, final WorldState current, final long time) {
+			this.previous = previous;
+			this.current = current;
+			this.time = time;
+		}
+	}
+
+	Simulation() {
+		final WorldState start = new WorldState(0, 0.0, 0.0, 0.0, 0.0);
+		published = new Published(start, start, System.nanoTime());
+		addSceneBodies();
+	}
+
+	private void addSceneBodies() {
+		collisions.clear();
+		for(int b = PLANET_BODY; b < FIELD_BODY; b++){
+			collisions.add();
+		}
+		collisions.setSphere(PLANET_BODY, 0.0f, 0.0f, 0.0f, PLANET_RADIUS);
+		collisions.setSphere(ALIEN_BODY, 250.0f, 35.0f, 50.0f, ALIEN_RADIUS);
+	}
+
+	static Gravity createGravity(final int threads) {
+		return new Gravity(PLANET_MASS, ASTEROID_DENSITY, GRAVITY_THETA, GRAVITY_SOFTENING, GRAVITY_INTERVAL,
+				threads);
+	}
+
+	/**
+	 * Scatters n asteroids through a belt around the planet, tumbling slowly
+	 * on nearly circular orbits in the same sense as the orbiting asteroid.
+	 */
+	static void seedBelt(final EntityStore store, final int n, final long seed) {
+		final Random random = new Random(seed);
+		for(int a = 0; a < n; a++){
+			final double angle = 2*Math.PI*random.nextDouble();
+			// even density across the belt's area
+			final double radius = Math.sqrt(300.0*300.0 + (2000.0*2000.0 - 300.0*300.0)*random.nextDouble());
+			final int i = store.add(EntityStore.ASTEROID, (float)(radius*Math.cos(angle)),
+					(float)(120.0*(random.nextDouble() - 0.5)), (float)(radius*Math.sin(angle)),
+					1.0f + 7.0f*random.nextFloat());
+			final double speed = Math.sqrt(PLANET_MASS/radius)*(1.0 + 0.05*(random.nextDouble() - 0.5));
+			store.setVelocity(i, (float)(speed*Math.sin(angle)), random.nextFloat() - 0.5f,
+					(float)(-speed*Math.cos(angle)));
+			store.setSpin(i, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f);
+		}
+	}
+
+	/**
+	 * Fills the field with n asteroids.  Must be called before the
+	 * simulation starts.
+	 */
+	void seedAsteroids(final int n, final long seed) {
+		asteroids.clear();
+		addSceneBodies();
+		seedBelt(asteroids, n, seed);
+		for(int a = 0; a < n; a++){
+			collisions.add();
+		}
+		gravity.invalidate();
+		for(int b = 0; b < asteroidInstances.length; b++){
+			asteroidInstances[b] = new float[n*EntityStore.INSTANCE_FLOATS];
+			asteroids.packInstances(asteroidInstances[b]);
+		}
+	}
+
+	/**
+	 * Called on the GL thread.
+	 * @return the asteroid field at the newest tick, EntityStore.INSTANCE_FLOATS
+	 * floats per asteroid, valid until the next call
+	 */
+	float[] latestAsteroids() {
+		if((middleIndex.get() & FRESH) != 0){
+			readIndex = middleIndex.getAndSet(readIndex) & ~FRESH;
+		}
+		return asteroidInstances[readIndex];
+	}
+
+	void press(final int key) {
+		for(;;){
+			final int keys = heldKeys.get();
+			if(heldKeys.compareAndSet(keys, keys | key)){
+				return;
+			}
+		}
+	}
+
+	void release(final int key) {
+		for(;;){
+			final int keys = heldKeys.get();
+			if(heldKeys.compareAndSet(keys, keys & ~key)){
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Advances the simulation by one tick and publishes the new state.
+	 * Only one thread may step at a time.
+	 */
+	void step() {
+		final WorldState state = published.current;
+		final int keys = heldKeys.get();
+		double forward = state.shipForward;
+		double right = state.shipRight;
+		if((keys & UP) != 0){
+			forward += SHIP_SPEED*STEP_SECONDS;
+		}
+		if((keys & DOWN) != 0){
+			forward -= SHIP_SPEED*STEP_SECONDS;
+		}
+		if((keys & LEFT) != 0){
+			right += SHIP_SPEED*STEP_SECONDS;
+		}
+		if((keys & RIGHT) != 0){
+			right -= SHIP_SPEED*STEP_SECONDS;
+		}
+		final double asteroidAngle = state.asteroidAngle + ASTEROID_ORBIT_SPEED*STEP_SECONDS;
+		if(asteroids.count > 0){
+			// collisions below nudge a few asteroids after their pull is found,
+			// which is too small an error to be worth finding it again
+			gravity.step(asteroids, (float)STEP_SECONDS);
+		}
+		final double orbit = Math.toRadians(asteroidAngle);
+		collisions.setSphere(ORBITER_BODY, (float)(ORBIT_RADIUS*Math.cos(orbit)), 0.0f,
+				(float)(-ORBIT_RADIUS*Math.sin(orbit)), ORBITER_RADIUS);
+		// the ship's centre is half its length back from the nose
+		collisions.setCapsule(SHIP_BODY, (float)(SHIP_START + forward) - SHIP_LENGTH/2, 0.0f, (float)-right,
+				SHIP_LENGTH/2 - SHIP_RADIUS, 0.0f, 0.0f, SHIP_RADIUS);
+		for(int i = 0; i < asteroids.count; i++){
+			collisions.setSphere(FIELD_BODY + i, asteroids.px[i], asteroids.py[i], asteroids.pz[i], asteroids.scale[i]);
+		}
+		contacts += collisions.detect();
+		final float[] push = resolveContacts();
+		final WorldState next = new WorldState(state.tick + 1, forward + push[0], right - push[1], asteroidAngle,
+				state.alienYaw + ALIEN_SPIN_SPEED*STEP_SECONDS);
+		if(asteroids.count > 0){
+			asteroids.packInstances(asteroidInstances[fillIndex]);
+			fillIndex = middleIndex.getAndSet(fillIndex | FRESH) & ~FRESH;
+		}
+		published = new Published(state, next, System.nanoTime());
+	}
+
+	/**
+	 * Separates the bodies of every contact found this tick.  Field asteroids
+	 * are moved and bounced in the store directly.
+	 * @return how far to move the ship along x and z
+	 */
+	private float[] resolveContacts() {
+		final CollisionWorld c = collisions;
+		float pushX = 0.0f;
+		float pushZ = 0.0f;
+		for(int k = 0; k < c.contactCount; k++){
+			final int a = c.contactA[k];
+			final int b = c.contactB[k];
+			if(a == SHIP_BODY || b == SHIP_BODY){
+				// away from the other body, along the normal's part in the ship's plane
+				final float sign = a == SHIP_BODY ? -1.0f : 1.0f;
+				final float length = (float)Math.sqrt(c.normalX[k]*c.normalX[k] + c.normalZ[k]*c.normalZ[k]);
+				if(length > 1e-3f){
+					pushX += sign*c.normalX[k]/length*c.depth[k];
+					pushZ += sign*c.normalZ[k]/length*c.depth[k];
+				}
+			} else if(a >= FIELD_BODY && b >= FIELD_BODY){
+				bounce(a - FIELD_BODY, b - FIELD_BODY, c.normalX[k], c.normalY[k], c.normalZ[k], c.depth[k]);
+			} else if(b >= FIELD_BODY){
+				deflect(b - FIELD_BODY, c.normalX[k], c.normalY[k], c.normalZ[k], c.depth[k]);
+			} else if(a >= FIELD_BODY){
+				deflect(a - FIELD_BODY, -c.normalX[k], -c.normalY[k], -c.normalZ[k], c.depth[k]);
+			}
+		}
+		final boolean touching = pushX != 0.0f || pushZ != 0.0f;
+		if(touching && !shipTouching){
+			shipImpacts++;
+		}
+		shipTouching = touching;
+		shipPush[0] = pushX;
+		shipPush[1] = pushZ;
+		return shipPush;
+	}
+
+	/**
+	 * Pushes field asteroids a and b apart along the unit normal from a to
+	 * b, and exchanges momentum between them if they are closing.
+	 */
+	private void bounce(final int a, final int b, final float nx, final float ny, final float nz, final float depth) {
+		final EntityStore e = asteroids;
+		final float inverseA = 1.0f/(e.scale[a]*e.scale[a]*e.scale[a]);
+		final float inverseB = 1.0f/(e.scale[b]*e.scale[b]*e.scale[b]);
+		final float share = depth/(inverseA + inverseB);
+		e.px[a] -= nx*share*inverseA;
+		e.py[a] -= ny*share*inverseA;
+		e.pz[a] -= nz*share*inverseA;
+		e.px[b] += nx*share*inverseB;
+		e.py[b] += ny*share*inverseB;
+		e.pz[b] += nz*share*inverseB;
+		final float closing = (e.vx[b] - e.vx[a])*nx + (e.vy[b] - e.vy[a])*ny + (e.vz[b] - e.vz[a])*nz;
+		if(closing < 0.0f){
+			final float impulse = -(1.0f + RESTITUTION)*closing/(inverseA + inverseB);
+			e.vx[a] -= nx*impulse*inverseA;
+			e.vy[a] -= ny*impulse*inverseA;
+			e.vz[a] -= nz*impulse*inverseA;
+			e.vx[b] += nx*impulse*inverseB;
+			e.vy[b] += ny*impulse*inverseB;
+			e.vz[b] += nz*impulse*inverseB;
+		}
+	}
+
+	/**
+	 * Pushes field asteroid i out of an immovable body along the unit normal
+	 * pointing away from it, and reflects its velocity if it is approaching.
+	 */
+	private void deflect(final int i, final float nx, final float ny, final float nz, final float depth) {
+		final EntityStore e = asteroids;
+		e.px[i] += nx*depth;
+		e.py[i] += ny*depth;
+		e.pz[i] += nz*depth;
+		final float approach = e.vx[i]*nx + e.vy[i]*ny + e.vz[i]*nz;
+		if(approach < 0.0f){
+			e.vx[i] -= (1.0f + RESTITUTION)*approach*nx;
+			e.vy[i] -= (1.0f + RESTITUTION)*approach*ny;
+			e.vz[i] -= (1.0f + RESTITUTION)*approach*nz;
+		}
+	}
+
+	/**
+	 * @return how many times the ship has run into something, counting
+	 * each stretch of ticks spent touching once
+	 */
+	long getShipImpacts() {
+		return shipImpacts;
+	}
+
+	/**
+	 * @return contacts found over every tick so far
+	 */
+	long getContactCount() {
+		return contacts;
+	}
+
+	/**
+	 * @return the state to draw at time now: a blend of the last two ticks
+	 * while the thread runs, otherwise the latest tick
+	 */
+	WorldState sample(final long now) {
+		final Published p = published;
+		if(thread == null){
+			return p.current;
+		}
+		final double alpha = Math.min(1.0, Math.max(0.0, (double)(now - p.time)/STEP_NANOS));
+		return p.previous.blend(p.current, alpha);
+	}
+
+	WorldState latest() {
+		return published.current;
+	}
+
+	void start() {
+		thread = new Thread(this, "simulation");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void stop() {
+		if(thread != null){
+			thread.interrupt();
+		}
+		gravity.shutdown();
+	}
+
+	@Override
+	public void run() {
+		long next = System.nanoTime() + STEP_NANOS;
+		while(!Thread.currentThread().isInterrupted()){
+			final long wait = next - System.nanoTime();
+			if(wait > 0){
+				LockSupport.parkNanos(wait);
+				continue;
+			}
+			step();
+			next += STEP_NANOS;
+			final long now = System.nanoTime();
+			if(now - next > MAX_LAG*STEP_NANOS){
+				// stalled, for example in a debugger: resume from now
+				next = now;
+			}
+		}
+	}
+}
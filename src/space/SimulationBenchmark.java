@@ -0,0 +1,40 @@
+package space;
+
+/**
+ * Steps the simulation as fast as it will go, without a window or the
+ * fixed-rate thread, and reports how many times faster than real time it
+ * runs.  The ship is held moving forward so every tick does its full work,
+ * and -asteroids adds an asteroid field that is updated, collided and
+ * packed for drawing every tick.
+ *
+ * java space.SimulationBenchmark [-seconds S] [-asteroids A]
+ */
+public class SimulationBenchmark {
+
+	public static void main(final String[] args) {
+		int seconds = 3600;
+		int asteroids = 0;
+		for(int i = 0; i+1 < args.length; i += 2){
+			if(args[i].equals("-seconds")){
+				seconds = Integer.parseInt(args[i+1]);
+			} else if(args[i].equals("-asteroids")){
+				asteroids = Integer.parseInt(args[i+1]);
+			}
+		}
+		final long ticks = (long)seconds*Simulation.TICKS_PER_SECOND;
+
+		final Simulation simulation = new Simulation();
+		simulation.seedAsteroids(asteroids, 1);
+		simulation.press(Simulation.UP);
+		final long start = System.nanoTime();
+		for(long t = 0; t < ticks; t++){
+			simulation.step();
+		}
+		final long elapsed = System.nanoTime() - start;
+
+		final WorldState state = simulation.latest();
+		System.out.printf("%d s simulated in %.3f s: %.0f ticks/s, %.0fx real time, ship at %.1f, %.1f contacts/tick%n",
+				seconds, elapsed/1e9, ticks*1e9/elapsed, seconds*1e9/elapsed, state.shipForward,
+				(double)simulation.getContactCount()/ticks);
+	}
+}
@@ -1,5 +1,4 @@
 package space;
-import java.io.InputStream;
 import java.awt.BorderLayout;
 import java.awt.Component;
 import java.awt.Dimension;
@@ -9,26 +8,27 @@ import java.awt.event.KeyListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
-import java.nio.DoubleBuffer;
-import java.nio.IntBuffer;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.media.opengl.GL;
 import javax.media.opengl.GL2;
 import javax.media.opengl.GLAutoDrawable;
 import javax.media.opengl.GLCapabilities;
 import javax.media.opengl.GLEventListener;
+import javax.media.opengl.GLOffscreenAutoDrawable;
 import javax.media.opengl.GLProfile;
 import javax.media.opengl.awt.GLCanvas;
 import javax.media.opengl.glu.GLU;
-import javax.media.opengl.glu.*;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.swing.JFrame;
 import javax.swing.event.MouseInputAdapter;
 
-import com.jogamp.common.nio.Buffers;
-import com.jogamp.opengl.util.FPSAnimator;
+import com.jogamp.opengl.util.AnimatorBase;
 import com.jogamp.opengl.util.texture.TextureIO;
 import com.jogamp.opengl.util.texture.TextureData;
 import com.jogamp.opengl.util.texture.*;
@@ -37,16 +37,29 @@ import com.jogamp.opengl.util.texture.spi.awt.IIOTextureProvider;
 
 
 
-public class Space extends JFrame implements GLEventListener {
+public class Space implements GLEventListener {
 
-	private static final long serialVersionUID = 1L;
 	private static final double DEGREES_PER_PIXEL = 360.0/800.0;
 	private static float ZOOM_DELTA;
+	private static final File TEXTURE_CACHE = new File(System.getProperty("user.home"), ".space/texture-cache");
+	private static final File SHADER_CACHE = new File(System.getProperty("user.home"), ".space/shader-cache");
+	private static long startTime;
+	// planet sphere slices and stacks, and toroid sampling divisor, per detail level
+	private static final int[] PLANET_DETAIL = {50, 32, 20, 12};
+	private static final int[] TOROID_DETAIL = {1, 2, 4, 8};
+	// asteroid sphere slices and stacks per detail level
+	private static final int[] ASTEROID_SLICES = {5, 4, 3};
+	private static final int[] ASTEROID_STACKS = {5, 3, 2};
+	// slices and stacks of the ship's parts per detail level
+	private static final int[] SHIP_SLICES = {10, 8, 5};
+	private static final int[] SHIP_STACKS = {10, 1, 1};
+	// the instanced unit sphere's slices and stacks per detail level
+	private static final int[] FIELD_SLICES = {6, 4, 3};
+	private static final int[] FIELD_STACKS = {4, 3, 2};
         float LEFT = 0;
-        float RIGHT = 0;
-        float FORWARD = 0;
         float BACK = 0;
 	public static void main (final String[] args){
+		startTime = System.nanoTime();
 		float A = 100.0f;
 		float B = 40.0f;
 		int P = 1;
@@ -54,6 +67,20 @@ public class Space extends JFrame implements GLEventListener {
 		int N = 100;
 		int M = 32;
 		float R = 20.0f;
+		Toroid.DrawMode mode = Toroid.DrawMode.TRIANGLES;
+		VertexFormat format = VertexFormat.FLOAT;
+		int threads = 1;
+		boolean bakedTextures = true;
+		File profileFile = null;
+		boolean overlay = false;
+		FramePacer.Mode pacing = FramePacer.Mode.FIXED;
+		int fps = 0;
+		int asteroids = 0;
+		boolean lod = true;
+		File shaderDir = null;
+		int particles = DEFAULT_PARTICLES;
+		int stars = DEFAULT_STARS;
+		int universe = DEFAULT_UNIVERSE_BUDGET;
 
 		for(int i = 0; i < args.length; i +=2){
 			String param = args[i];
@@ -76,6 +103,40 @@ public class Space extends JFrame implements GLEventListener {
 					N = Integer.parseInt(args[i+1]);
 				} else if(param.equals("-m")){
 					M = Integer.parseInt(args[i+1]);
+				} else if(param.equals("-draw")){
+					mode = Toroid.DrawMode.parse(args[i+1]);
+				} else if(param.equals("-f")){
+					format = VertexFormat.parse(args[i+1]);
+				} else if(param.equals("-textures")){
+					if(!args[i+1].equals("baked") && !args[i+1].equals("jpg")){
+						throw new IllegalArgumentException(args[i+1]);
+					}
+					bakedTextures = args[i+1].equals("baked");
+				} else if(param.equals("-profile")){
+					profileFile = new File(args[i+1]);
+				} else if(param.equals("-overlay")){
+					overlay = Boolean.parseBoolean(args[i+1]);
+				} else if(param.equals("-pacing")){
+					pacing = FramePacer.Mode.parse(args[i+1]);
+				} else if(param.equals("-asteroids")){
+					asteroids = Integer.parseInt(args[i+1]);
+				} else if(param.equals("-shaders")){
+					shaderDir = new File(args[i+1]);
+				} else if(param.equals("-particles")){
+					particles = Integer.parseInt(args[i+1]);
+				} else if(param.equals("-stars")){
+					stars = Integer.parseInt(args[i+1]);
+				} else if(param.equals("-universe")){
+					universe = Integer.parseInt(args[i+1]);
+				} else if(param.equals("-lod")){
+					lod = Boolean.parseBoolean(args[i+1]);
+				} else if(param.equals("-fps")){
+					fps = Integer.parseInt(args[i+1]);
+				} else if(param.equals("-threads")){
+					threads = Integer.parseInt(args[i+1]);
+					if(threads <= 0){
+						threads = Runtime.getRuntime().availableProcessors();
+					}
 				} else {
 					System.out.println("Error: invalid argument '" + param + "'");
 					System.exit(1);
@@ -83,10 +144,25 @@ public class Space extends JFrame implements GLEventListener {
 			}catch (NumberFormatException e){
 				System.out.println("Illegal number '" + args[i+1] + "'");
 				System.exit(1);
+			}catch (IllegalArgumentException e){
+				// an enum option's valueOf, or -textures, given an unknown name
+				System.out.println("Error: illegal value '" + args[i+1] + "' for " + param);
+				System.exit(1);
 			}
 		}
 
-		final Space app = new Space(A, B, P, Q, N, M, R);
+		final Space app = new Space(A, B, P, Q, N, M, R, mode, format);
+		app.fullDetailToroid.setThreads(threads);
+		app.bakedTextures = bakedTextures;
+		app.profileFile = profileFile;
+		app.overlay = overlay;
+		app.pacer = new FramePacer(pacing, fps, PLANET_DETAIL.length);
+		app.setAsteroidCount(asteroids);
+		app.setLod(lod);
+		app.setShaderDirectory(shaderDir);
+		app.setParticleCapacity(particles);
+		app.setStarCount(stars);
+		app.setUniverseBudget(universe);
 
 		app.run();
 	}
@@ -100,12 +176,11 @@ public class Space extends JFrame implements GLEventListener {
 	private float maxPosition;
 	private int mousex;
 	private int mousey;
-	private double dx;
-	private double dy;
 
-	// FPSAnimator performs animation by repeatedly calling
-	// the display method
-	private FPSAnimator animator;
+	// the animator performs animation by repeatedly calling
+	// the display method, at the rate the pacer chooses
+	private AnimatorBase animator;
+	private FramePacer pacer;
 
     // light properties
     private final float[] lightAmbient = {0.5f, 0.5f, 0.5f, 1.0f};
@@ -117,33 +192,94 @@ public class Space extends JFrame implements GLEventListener {
     private final float[] materialDiffuse = {0.1f, .3f, 0.3f, 1.0f};
     private final float[] materialSpecular = {0.5f, 0.5f, 0.5f, 1.0f};
 	private final float[] materialShininess = {60.0f};
-	// camera position
-	private final float[] cameraPosition;
+	// camera for the current frame, replaced by the GL thread only
+	private CameraState camera;
+	// input from the event thread, drained at the start of each frame
+	private final InputQueue input = new InputQueue();
+	private final double[] inputArgs = new double[InputQueue.ARGS];
+	// owns everything that moves; world is what this frame draws of it
+	private final Simulation simulation = new Simulation();
+	private WorldState world;
+	private int asteroidCount;
+	private AsteroidField asteroidField;
+	// exhaust streams from the back of the ship, and it bursts whenever it hits something
+	private static final float EXHAUST_RATE = 3000.0f;
+	private static final int EXHAUST_COLOUR = 0xA0D0FF;
+	private static final int IMPACT_PARTICLES = 4000;
+	private static final int IMPACT_COLOUR = 0xFFC040;
+	private static final float PARTICLE_DRAG = 0.3f;
+	static final int DEFAULT_PARTICLES = 1 << 16;
+	private ParticleSystem particles;
+	private ParticleRenderer particleRenderer;
+	private float exhaustOwed;
+	private long shipImpacts;
+	private long lastFrameTime;
+	// the same sky every run, generated once on the GPU side
+	static final int DEFAULT_STARS = 200000;
+	private static final long STAR_SEED = 7;
+	private int starCount = DEFAULT_STARS;
+	private Starfield starfield;
+	// megabytes of chunks streamed in around the camera, 0 for none
+	static final int DEFAULT_UNIVERSE_BUDGET = 64;
+	private static final long UNIVERSE_SEED = 11;
+	private Universe universe;
+	private final float[] eye = new float[3];
+	// view volume of the current frame, in world space
+	private final Frustum frustum = new Frustum();
+	private final float[] projectionMatrix = new float[16];
+	private final float[] modelviewMatrix = new float[16];
+	// the frame's mesh draws, sorted to share state, and the state they leave bound
+	private final RenderQueue renderQueue = new RenderQueue();
+	private final StateCache renderState = new StateCache();
+	// scratch model matrix for queueing draws
+	private final float[] model = new float[16];
+	// level of detail chosen per object from its size on screen
+	private boolean lod = true;
+	// the coarsest level the frame pacer lets objects be finer than
+	private int detailBias;
+	private LodMesh planetLod;
+	private LodMesh asteroidLod;
+	private LodMesh shipHullLod;
+	private LodMesh shipCapLod;
+	private LodMesh shipNoseLod;
+	private Toroid[] toroidLevels;
+	private float[] toroidMinSize;
+	private int toroidLevel;
 
-	private int[] vertexBufferObjects;
 	private GLU glu;
 	private final int width;
 	private int height;
 
-	private double[] spineVertices;
-	private double[] frameVertices;
-	private double[] surfaceNormals;
-	private int[] tubeStrips;
-	private int vertexShader;
-	private int fragmentShader;
-	private int drawType = 2;
+	private Toroid toroid;
+	// the toroid as configured, which every detail level is derived from
+	private final Toroid fullDetailToroid;
 
 	private double[] colors;
-	private double rotatex;
-	private double rotatey;
-        private Texture earthTexture;
-        private Texture asteroidTexture;
-        private Texture shipTexture;
-        private Texture alienShipTexture;
+	// every textured object draws from one atlas of all the scene's images
+	private static final String PLANET_IMAGE = "planet2.jpg";
+	private static final String ASTEROID_IMAGE = "asteroid1.jpg";
+	private static final String SHIP_IMAGE = "shiptexture1.jpg";
+	static final String[] ATLAS_IMAGES = {PLANET_IMAGE, ASTEROID_IMAGE, SHIP_IMAGE, "moonmap1k.jpg"};
+	private TextureAtlas atlas;
+	private Texture atlasTexture;
+	private TextureLoader textureLoader;
+	private Future<TextureData> atlasData;
+	private boolean bakedTextures = true;
+	private boolean firstFrameShown;
+	private boolean texturesShown;
+	private MeshCache meshCache;
+	private ShaderLibrary shaders;
+	private Mesh planetMesh;
+	private Mesh asteroidMesh;
+	private Mesh shipHullMesh;
+	private Mesh shipCapMesh;
+	private Mesh shipNoseMesh;
+	private final FrameProfiler profiler = new FrameProfiler();
+	private File profileFile;
+	private boolean overlay;
         GLProfile glp = GLProfile.getDefault();
 
-	public Space(float a, float b, int p, int q, int n, int m, float r){
-		super("Space");
+	public Space(float a, float b, int p, int q, int n, int m, float r, Toroid.DrawMode mode, VertexFormat format){
 		width = height = 800;
 		A = a;
 		B = b;
@@ -154,8 +290,8 @@ public class Space extends JFrame implements GLEventListener {
 		R = r;
 		maxPosition = 15.0f*(A+B);
 		ZOOM_DELTA = maxPosition/100.0f;
-		rotatey = -45.0f;
-		cameraPosition = new float[]{0.0f, 0.0f, maxPosition/3};
+		camera = new CameraState(0.0f, 0.0f, maxPosition/3, 0.0, -45.0, 2);
+		toroid = fullDetailToroid = new Toroid(A, B, P, Q, N, M, R, mode, format);
 	}
 
 	public void centerWindow(final Component frame){
@@ -176,26 +312,6 @@ public class Space extends JFrame implements GLEventListener {
 	}
 
 
-	private double[] cross(final double[] vecA, final double[] vecB) {
-		final double[] cross = new double[3];
-		cross[0] = vecA[1]*vecB[2] - vecA[2]*vecB[1];
-		cross[1] = vecA[2]*vecB[0] - vecA[0]*vecB[2];
-		cross[2] = vecA[0]*vecB[1] - vecA[1]*vecB[0];
-		return cross;
-	}
-
-	private double ddx(final double t) {
-		return -P*dy(t) + B*Q*(P*Math.sin(Q*t)*Math.sin(P*t) - Q*Math.cos(Q*t)*Math.cos(P*t));
-	}
-
-	private double ddy(final double t) {
-		return P*dx(t) - B*Q*(P*Math.sin(Q*t)*Math.cos(P*t) + Q*Math.cos(Q*t)*Math.sin(P*t));
-	}
-
-	private double ddz(final double t) {
-		return -(Q*Q)*B*Math.sin(Q*t);
-	}
-
 
 	/* (non-Javadoc)
 	 * @see javax.media.opengl.GLEventListener#display(javax.media.opengl.GLAutoDrawable)
@@ -203,96 +319,306 @@ public class Space extends JFrame implements GLEventListener {
 	@Override
 	public void display(final GLAutoDrawable glDrawable) {
 		final GL2 gl = glDrawable.getGL().getGL2();
+		pacer.beginFrame();
+		profiler.beginFrame(gl);
+		final CameraState camera = this.camera = applyInput(this.camera);
+		world = simulation.sample(System.nanoTime());
+		shaders.reloadChanged(gl);
+		uploadTextures(gl);
 		gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT);
 		// set camera position/direction
 		gl.glMatrixMode(GL2.GL_MODELVIEW);
 		gl.glLoadIdentity();
-		glu.gluLookAt(cameraPosition[0], cameraPosition[1], cameraPosition[2]+50, // camera position
-				cameraPosition[0], cameraPosition[1], 0.0f, 	// look at position
+		glu.gluLookAt(camera.x, camera.y, camera.z+50, // camera position
+				camera.x, camera.y, 0.0f, 	// look at position
 				0.0f, 1.0f, 0.0f);	// up direction
 
                 
 
 		gl.glPushMatrix();
-		gl.glRotated(rotatex, 0.0, 1.0, 0.0);
-		gl.glRotated(rotatey, 1.0, 0.0, 0.0);
+		gl.glRotated(camera.rotateX, 0.0, 1.0, 0.0);
+		gl.glRotated(camera.rotateY, 1.0, 0.0, 0.0);
+		gl.glGetFloatv(GL2.GL_PROJECTION_MATRIX, projectionMatrix, 0);
+		gl.glGetFloatv(GL2.GL_MODELVIEW_MATRIX, modelviewMatrix, 0);
+		frustum.extract(projectionMatrix, modelviewMatrix, glDrawable.getHeight());
+		profiler.begin(gl, FrameProfiler.Pass.STARS);
+		profiler.countDrawCalls(starfield.draw(gl, modelviewMatrix, maxPosition));
+		profiler.end(gl, FrameProfiler.Pass.STARS);
                 //glu.gluLookAt(200+FORWARD,LEFT,RIGHT,
                 //                FORWARD+2000,LEFT,RIGHT,
 		//		1.0f, 0.0f, 0.0f);	// up direction
-		if(drawType == 0){
-			drawSpine(gl);
+		if(camera.drawType == 0){
+			if(isVisible(0.0f, 0.0f, 0.0f, A+B+R)){
+				toroidLevel = LodMesh.select(toroidMinSize, toroidLevel, projectedSize(0.0f, 0.0f, 0.0f, A+B+R));
+				toroid = toroidLevels[Math.max(toroidLevel, Math.min(detailBias, toroidLevels.length - 1))];
+				profiler.begin(gl, FrameProfiler.Pass.TOROID);
+				toroid.drawSpine(gl);
+				profiler.countDrawCalls(toroid.getDrawCallCount());
+				profiler.end(gl, FrameProfiler.Pass.TOROID);
+			}
 		} else {
-                        GLUquadric SOLID = glu.gluNewQuadric();
-                        GLUquadric stars = glu.gluNewQuadric();
-                        glu.gluQuadricDrawStyle(stars, GLU.GLU_POINT);
-                        gl.glPushMatrix();
-                        glu.gluQuadricTexture(SOLID, true);
-                        //earthTexture.enable(gl);
-                        //earthTexture.bind(gl);
-                        gl.glPushMatrix();
-                        drawPlanet(gl, SOLID);
-                        gl.glPopMatrix();
-                        //earthTexture.disable(gl);
-                        gl.glPopMatrix();
-                        gl.glPushMatrix();
-                        //gl.glColor3f(1,0,0);
-                        drawAsteroid(gl, SOLID);
-                        gl.glPopMatrix();
-                        gl.glPushMatrix();
-                        drawShip(gl, SOLID);
-                        gl.glPopMatrix();
+                        profiler.begin(gl, FrameProfiler.Pass.SCENE);
+                        renderQueue.begin(modelviewMatrix, 1.5f*maxPosition);
+                        // the planet with the full length of its axes
+                        if(isVisible(0.0f, 0.0f, 0.0f, 400.0f)){
+                                planetMesh = planetLod.select(projectedSize(0.0f, 0.0f, 0.0f, 100.0f), detailBias);
+                                drawPlanet(gl);
+                        }
+                        final double orbit = Math.toRadians(world.asteroidAngle);
+                        final float asteroidX = (float)(250*Math.cos(orbit));
+                        final float asteroidZ = (float)(-250*Math.sin(orbit));
+                        if(isVisible(asteroidX, 0.0f, asteroidZ, 8.0f)){
+                                asteroidMesh = asteroidLod.select(projectedSize(asteroidX, 0.0f, asteroidZ, 8.0f), detailBias);
+                                drawAsteroid();
+                        }
+                        // hull, cap and nose lie within 30 of the ship's origin
+                        final float shipX = (float)(200+world.shipForward);
+                        final float shipZ = (float)-world.shipRight;
+                        if(isVisible(shipX, LEFT, shipZ, 30.0f)){
+                                final float shipSize = projectedSize(shipX, LEFT, shipZ, 30.0f);
+                                shipHullMesh = shipHullLod.select(shipSize, detailBias);
+                                shipCapMesh = shipCapLod.select(shipSize, detailBias);
+                                shipNoseMesh = shipNoseLod.select(shipSize, detailBias);
+                                drawShip();
+                        }
                         gl.glPushMatrix();
-                        drawAlienShip(gl, SOLID);
+                        profiler.countDrawCalls(renderQueue.submit(gl, renderState));
                         gl.glPopMatrix();
+                        profiler.countTriangles(renderQueue.getTriangleCount());
+                        profiler.end(gl, FrameProfiler.Pass.SCENE);
+                        if(asteroidField != null){
+                                profiler.begin(gl, FrameProfiler.Pass.ASTEROID_FIELD);
+                                profiler.countDrawCalls(asteroidField.draw(gl, renderState, simulation.latestAsteroids(), frustum,
+                                                detailBias, lod, atlasTexture));
+                                profiler.countObjects(asteroidField.getVisibleCount(), asteroidField.getCulledCount());
+                                profiler.countTriangles(asteroidField.getTriangleCount());
+                                profiler.end(gl, FrameProfiler.Pass.ASTEROID_FIELD);
+                        }
+                        profiler.countStateChanges(renderState.getChanges(), renderState.getAvoided());
+                        // the alien ship is drawn in immediate mode, outside the cache
+                        renderState.reset(gl);
+                        if(universe != null){
+                                profiler.begin(gl, FrameProfiler.Pass.UNIVERSE);
+                                eyePosition(modelviewMatrix, eye);
+                                universe.update(gl, eye[0], eye[1], eye[2]);
+                                profiler.countDrawCalls(universe.draw(gl, frustum));
+                                profiler.end(gl, FrameProfiler.Pass.UNIVERSE);
+                        }
+                        if(isVisible(250.0f, 35.0f, 50.0f, 10.0f)){
+                                profiler.begin(gl, FrameProfiler.Pass.ALIEN_SHIP);
+                                gl.glPushMatrix();
+                                drawAlienShip(gl);
+                                gl.glPopMatrix();
+                                profiler.end(gl, FrameProfiler.Pass.ALIEN_SHIP);
+                        }
+                        profiler.begin(gl, FrameProfiler.Pass.PARTICLES);
+                        updateParticles();
+                        profiler.countDrawCalls(particleRenderer.draw(gl, particles, 8.0f, 100.0f));
+                        profiler.end(gl, FrameProfiler.Pass.PARTICLES);
                 }
 		gl.glPopMatrix();
-		glDrawable.swapBuffers();
+		if(overlay){
+			profiler.drawOverlay(glDrawable.getWidth(), glDrawable.getHeight());
+		}
+		profiler.endFrame(gl);
+		if(pacer.endFrame()){
+			detailBias = pacer.getDetailLevel();
+		}
+		if(!firstFrameShown){
+			firstFrameShown = true;
+			System.out.println("First frame after " + (System.nanoTime() - startTime)/1000000 + " ms");
+		}
 	}
-        public void drawShip(final GL2 gl, GLUquadric SOLID){
-                        glu.gluQuadricDrawStyle( SOLID, GLU.GLU_FILL);
-                        glu.gluQuadricNormals( SOLID, GLU.GLU_SMOOTH );
-                        shipTexture.enable(gl);
-                        shipTexture.bind(gl);
-                        //gl.glTranslatef(200, 0, 0);
-                        gl.glTranslatef(200+FORWARD,LEFT,-RIGHT);
-                        //cameraPosition[2] = 150 + FORWARD;
-                        //cameraPosition[1] = RIGHT;
-                        //cameraPosition[0] = LEFT;
-                        
-                        
-                        gl.glPushMatrix();
-                        gl.glRotated(90, 1, 0, 0);
-                        gl.glRotated(-90, 0, 1, 0);
 
-                        gl.glPushMatrix();
-                        
-                        gl.glTranslatef(0,0,8);
-                        glu.gluCylinder(SOLID, 5, 5, 15, 10, 10);
-                        gl.glTranslatef(0, 0, 15);
-                        glu.gluDisk(SOLID, 0, 5, 10, 10);
-                        gl.glPushMatrix();
-                        /*gl.glBegin(GL.GL_TRIANGLES);        // Drawing Using Triangles
-                        gl.glVertex3f(0.0f, -15.0f, 0.0f);
-                        gl.glVertex3f(0.0f, 0.0f, -22.0f);
-                        gl.glVertex3f(0.0f, 15.0f, 10.0f);
-                        gl.glEnd();*/                         // Finished Drawing The Triangle
-                        gl.glPopMatrix();
-                        gl.glPopMatrix();
-                        glu.gluCylinder(SOLID, 0, 5, 8, 10, 10);
-                        gl.glPopMatrix();
-                        shipTexture.disable(gl);
-                       
-                        
-        }
-        public void drawPlanet(final GL2 gl, GLUquadric SOLID){
-                        glu.gluQuadricDrawStyle( SOLID, GLU.GLU_FILL);
-                        glu.gluQuadricNormals( SOLID, GLU.GLU_SMOOTH );
+	/**
+	 * Applies the input that arrived since the last frame to the camera.
+	 * @return the camera for this frame, the same one if nothing arrived
+	 */
+	private CameraState applyInput(final CameraState camera) {
+		int kind = input.poll(inputArgs);
+		if(kind < 0){
+			return camera;
+		}
+		float x = camera.x;
+		float y = camera.y;
+		float z = camera.z;
+		double rotatex = camera.rotateX;
+		double rotatey = camera.rotateY;
+		int drawType = camera.drawType;
+		for(; kind >= 0; kind = input.poll(inputArgs)){
+			if(kind == InputQueue.KEY){
+				final int keyCode = (int)inputArgs[0];
+				if(keyCode == KeyEvent.VK_Z){
+					z += ZOOM_DELTA;
+				} else if(keyCode == KeyEvent.VK_X){
+					z -= ZOOM_DELTA;
+					if(z < 0.0f){
+						z = 0.0f;
+					}
+				}
+				if(keyCode == KeyEvent.VK_W){
+					y += ZOOM_DELTA;
+				} else if(keyCode == KeyEvent.VK_S){
+					y -= ZOOM_DELTA;
+				}
+				if(keyCode == KeyEvent.VK_A){
+					x -= ZOOM_DELTA;
+				} else if(keyCode == KeyEvent.VK_D){
+					x += ZOOM_DELTA;
+				}
+				if(keyCode == KeyEvent.VK_1){
+					drawType = 0;
+				}
+				if(keyCode == KeyEvent.VK_2){
+					drawType = 1;
+				}
+				if(keyCode == KeyEvent.VK_3){
+					drawType = 2;
+				}
+			} else if(kind == InputQueue.DRAG){
+				rotatex += inputArgs[0]*DEGREES_PER_PIXEL;
+				rotatey += inputArgs[1]*DEGREES_PER_PIXEL;
+				if (rotatex > 360){
+					rotatex = 0;
+				}
+				if(rotatex < -360){
+					rotatex = -0;
+				}
+				if(rotatey > 360){
+					rotatey = 0;
+				}
+				if(rotatey < -360){
+					rotatey = -0;
+				}
+			} else if(kind == InputQueue.WHEEL){
+				if(inputArgs[0] > 0){
+					z += ZOOM_DELTA;
+				} else {
+					z -= ZOOM_DELTA;
+					if(z < 0.0f){
+						z = 0.0f;
+					}
+				}
+			} else if(kind == InputQueue.ORBIT){
+				rotatex = inputArgs[0];
+				rotatey = inputArgs[1];
+				z = (float)inputArgs[2];
+			}
+		}
+		return new CameraState(x, y, z, rotatex, rotatey, drawType);
+	}
+
+	/**
+	 * Uploads the atlas once its pixels are ready.  Objects are drawn
+	 * untextured until then.
+	 * @param gl
+	 */
+	private void uploadTextures(final GL2 gl) {
+		if(texturesShown){
+			return;
+		}
+		atlasTexture = uploadTexture(atlasData);
+		if(atlasTexture != null){
+			// regions sit against the atlas edges, which must not wrap to the far side
+			atlasTexture.setTexParameteri(gl, GL.GL_TEXTURE_WRAP_S, GL.GL_CLAMP_TO_EDGE);
+			atlasTexture.setTexParameteri(gl, GL.GL_TEXTURE_WRAP_T, GL.GL_CLAMP_TO_EDGE);
+			// below the baked levels the gutters are gone and regions would bleed together
+			atlasTexture.setTexParameteri(gl, GL2.GL_TEXTURE_MAX_LEVEL, TextureAtlas.MIP_LEVELS - 1);
+			texturesShown = true;
+			textureLoader.shutdown();
+			System.out.println("Textures ready after " + (System.nanoTime() - startTime)/1000000 + " ms, "
+					+ atlas.getWidth() + "x" + atlas.getHeight() + " atlas, "
+					+ atlasTexture.getEstimatedMemorySize()/1024 + " KB of texture memory");
+		}
+	}
+
+	private Texture uploadTexture(final Future<TextureData> pending) {
+		if(!pending.isDone()){
+			return null;
+		}
+		try {
+			final TextureData data = pending.get();
+			final Texture texture = TextureIO.newTexture(data);
+			data.flush();
+			return texture;
+		} catch (final ExecutionException e) {
+			e.getCause().printStackTrace();
+			System.exit(1);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+
+	/**
+	 * Finds where the camera is in world space from the modelview matrix,
+	 * whose rotation part is orthonormal: the eye is minus its translation
+	 * turned back by the transposed rotation.
+	 */
+	private static void eyePosition(final float[] modelview, final float[] eye) {
+		for(int c = 0; c < 3; c++){
+			eye[c] = -(modelview[4*c]*modelview[12] + modelview[4*c + 1]*modelview[13] + modelview[4*c + 2]*modelview[14]);
+		}
+	}
 
-                        glu.gluQuadricDrawStyle( SOLID, GLU.GLU_FILL);
-                        glu.gluQuadricNormals( SOLID, GLU.GLU_SMOOTH );
-                        earthTexture.enable(gl);
-                        earthTexture.bind(gl);
+	/**
+	 * Tests a bounding sphere against this frame's view volume and counts
+	 * the object as visible or culled.
+	 */
+	private boolean isVisible(final float x, final float y, final float z, final float radius) {
+		final boolean visible = frustum.isSphereVisible(x, y, z, radius);
+		profiler.countObjects(visible ? 1 : 0, visible ? 0 : 1);
+		return visible;
+	}
+
+	/**
+	 * @return how many pixels across a sphere is drawn, or no limit when
+	 * level of detail is off
+	 */
+	private float projectedSize(final float x, final float y, final float z, final float radius) {
+		return lod ? frustum.projectedSize(x, y, z, radius) : Float.MAX_VALUE;
+	}
 
+        /**
+         * Moves the particles on by the time since the last frame, then adds
+         * this frame's exhaust and a burst for each new impact.
+         */
+        private void updateParticles(){
+                        final long now = System.nanoTime();
+                        // a long pause, such as the first frame, would otherwise age everything at once
+                        final float dt = lastFrameTime == 0 ? 0.0f : Math.min(0.1f, (now - lastFrameTime)/1e9f);
+                        lastFrameTime = now;
+                        particles.update(dt);
+                        final float x = (float)(200+world.shipForward);
+                        final float z = (float)-world.shipRight;
+                        exhaustOwed += EXHAUST_RATE*dt;
+                        final int exhaust = (int)exhaustOwed;
+                        exhaustOwed -= exhaust;
+                        particles.emit(exhaust, x - 23, LEFT, z, -60.0f, 0.0f, 0.0f, 12.0f, 0.5f, EXHAUST_COLOUR);
+                        final long impacts = simulation.getShipImpacts();
+                        for(; shipImpacts < impacts; shipImpacts++){
+                                particles.emit(IMPACT_PARTICLES, x, LEFT, z, 0.0f, 0.0f, 0.0f, 80.0f, 1.2f, IMPACT_COLOUR);
+                        }
+        }
+
+        /**
+         * Queues the hull, cap and nose.  The ship's local +z is turned onto
+         * world -x, so the parts string back along -x from the nose.
+         */
+        public void drawShip(){
+                        final float x = (float)(200+world.shipForward);
+                        final float z = (float)-world.shipRight;
+                        EntityStore.modelMatrix(x, LEFT, z, 1.0f, 0.5f, -0.5f, -0.5f, 0.5f, model, 0);
+                        renderQueue.add(shipNoseMesh, atlasTexture, null, model);
+                        model[12] = x - 8;
+                        renderQueue.add(shipHullMesh, atlasTexture, null, model);
+                        model[12] = x - 23;
+                        renderQueue.add(shipCapMesh, atlasTexture, null, model);
+        }
+        /**
+         * Draws the axes and queues the sphere.
+         */
+        public void drawPlanet(final GL2 gl){
                         //Axis of Planet
                         gl.glBegin(GL.GL_LINE_LOOP);
                         gl.glVertex3f(0, 0, 0);
@@ -306,15 +632,15 @@ public class Space extends JFrame implements GLEventListener {
                         gl.glVertex3f(0, 0, 0);
                         gl.glVertex3f(0, 0, 400);
                         gl.glEnd();
-                        glu.gluSphere(SOLID, 100f, 50, 50);
-                        earthTexture.disable(gl);
+                        profiler.countDrawCalls(3);
+                        EntityStore.modelMatrix(0.0f, 0.0f, 0.0f, 1.0f, 0.0f, 0.0f, 0.0f, 1.0f, model, 0);
+                        renderQueue.add(planetMesh, atlasTexture, null, model);
         }
 
-        public void drawAlienShip(final GL2 gl, GLUquadric SOLID){
-            glu.gluQuadricDrawStyle( SOLID, GLU.GLU_FILL);
-            glu.gluQuadricNormals( SOLID, GLU.GLU_SMOOTH );
+        public void drawAlienShip(final GL2 gl){
             gl.glTranslatef(250f,30f,50f);
             gl.glPushMatrix();
+            gl.glRotated(world.alienYaw, 0, 1, 0);
             gl.glBegin(GL.GL_TRIANGLES);
 
             gl.glColor3f(1,0,0);
@@ -349,20 +675,23 @@ public class Space extends JFrame implements GLEventListener {
 
             gl.glEnd();
             gl.glPopMatrix();
+            profiler.countDrawCalls(1);
+            profiler.countTriangles(6);
         }
-        public void drawAsteroid(final GL2 gl, GLUquadric SOLID){
-            gl.glTranslatef(250f,0f,0f);
-            asteroidTexture.enable(gl);
-            asteroidTexture.bind(gl);
-            glu.gluSphere(SOLID, 8f, 5, 5);
-            asteroidTexture.disable(gl);
-            
+        /**
+         * Queues the asteroid that orbits the planet.
+         */
+        public void drawAsteroid(){
+            final double half = Math.toRadians(world.asteroidAngle)/2;
+            EntityStore.modelMatrix((float)(250*Math.cos(2*half)), 0.0f, (float)(-250*Math.sin(2*half)), 1.0f,
+                    0.0f, (float)Math.sin(half), 0.0f, (float)Math.cos(half), model, 0);
+            renderQueue.add(asteroidMesh, atlasTexture, null, model);
         }
 
 
 
 	public void displayChanged(final GLAutoDrawable glDrawable, final boolean modeChanged, final boolean deviceChanged){
-		glDrawable.getGL().getGL2().glViewport(0, 0, getWidth(), getHeight());
+		glDrawable.getGL().getGL2().glViewport(0, 0, glDrawable.getWidth(), glDrawable.getHeight());
 		display(glDrawable);
 	}
 
@@ -371,75 +700,29 @@ public class Space extends JFrame implements GLEventListener {
 	 */
 	@Override
 	public void dispose(final GLAutoDrawable glDrawable) {
-	}
-
-
-	private float dot(final double[] vec1, final float[] vec2) {
-		float sum = 0.0f;
-		for(int i = 0; i < vec1.length; i++){
-			sum += vec1[i]*vec2[i];
+		final GL2 gl = glDrawable.getGL().getGL2();
+		simulation.stop();
+		if(asteroidField != null){
+			asteroidField.dispose(gl);
 		}
-		return sum;
-	}
-
-
-	/**
-	 * @param gl
-	 */
-	private void drawSpine(final GL2 gl) {
-		gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
-		// draw spine
-		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, vertexBufferObjects[0]);
-		gl.glVertexPointer(3, GL2.GL_DOUBLE, 0, 0);
-		gl.glDrawArrays(GL2.GL_LINE_LOOP, 0, N);
-
-	}
-
-	private void drawToroid(final GL2 gl) {
-		gl.glPushMatrix();
-
-		// bind buffer containing vertices
-		gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
-		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, vertexBufferObjects[1]);
-		gl.glVertexPointer(3, GL2.GL_DOUBLE, 0, 0);
-
-		// bind buffer containing indices
-		gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, vertexBufferObjects[2]);
-
-
-		// bind buffer containing normals
-		gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
-		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, vertexBufferObjects[3]);
-		gl.glNormalPointer(GL2.GL_DOUBLE, 0, 0);
-
-
-		if(drawType == 1){
-			// wire frame mode
-			gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_LINE);
-		} else {
-			// filled mode
-			gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_FILL);
+		meshCache.dispose(gl);
+		shaders.dispose(gl);
+		for(final Toroid level : toroidLevels){
+			level.dispose(gl);
 		}
-
-		final int numStripVerts = 2*M+2;
-		for(int i = 0; i < N; i++){
-			gl.glDrawElements(GL2.GL_QUAD_STRIP, numStripVerts, GL2.GL_UNSIGNED_INT, i*numStripVerts*Buffers.SIZEOF_INT);
+		profiler.dispose(gl);
+		particleRenderer.dispose(gl);
+		starfield.dispose(gl);
+		if(universe != null){
+			universe.dispose(gl);
+		}
+		textureLoader.shutdown();
+		if(atlasTexture != null){
+			atlasTexture.destroy(gl);
 		}
-		gl.glPopMatrix();
-	}
-
-	private double dx(final double t) {
-		return -P*y(t) - B*Q*Math.sin(Q*t)*Math.cos(P*t);
-	}
-
-	private double dy(final double t) {
-		return P*x(t) - B*Q*Math.sin(Q*t)*Math.sin(P*t);
 	}
 
 
-	private double dz(final double t) {
-		return B*Q*Math.cos(Q*t);
-	}
 
 	/* (non-Javadoc)
 	 * @see javax.media.opengl.GLEventListener#init(javax.media.opengl.GLAutoDrawable)
@@ -472,190 +755,90 @@ public class Space extends JFrame implements GLEventListener {
 		gl.glPointSize(1.0f);
 		gl.glLineWidth(1.0f);
 
-                try {
-
-                    InputStream stream = getClass().getResourceAsStream("planet2.jpg");
-                    TextureData data = TextureIO.newTextureData(glp, stream, false, "jpg");
-                    earthTexture = TextureIO.newTexture(data);
-                    stream = getClass().getResourceAsStream("asteroid1.jpg");
-                    data = TextureIO.newTextureData(glp,stream,false,"jpg");
-                    asteroidTexture = TextureIO.newTexture(data);
-                    stream = getClass().getResourceAsStream("shiptexture1.jpg");
-                    data = TextureIO.newTextureData(glp,stream,false,"jpg");
-                    shipTexture = TextureIO.newTexture(data);
-                }
-                catch (IOException exc) {
-                    exc.printStackTrace();
-                    System.exit(1);
-                }
-
-		loadToroid(gl);
-	}
-
-
-	private void loadShaders(final GL2 gl) {
-		vertexShader = gl.glCreateShader(GL2.GL_VERTEX_SHADER);
-		fragmentShader = gl.glCreateShader(GL2.GL_FRAGMENT_SHADER);
-		String vSource = "";
-		String fSource = "";
+		// only the image sizes are read here, the pixels are decoded in the background
 		try {
-			final BufferedReader vBuff = new BufferedReader(new FileReader("vertex.glsl"));
-			String vLine;
-			while((vLine = vBuff.readLine()) != null){
-				vSource += vLine + "\n";
-			}
-
-			final BufferedReader fBuff = new BufferedReader(new FileReader("fragment.glsl"));
-			String fLine;
-			while((fLine = fBuff.readLine()) != null){
-				fSource += fLine + "\n";
-			}
-		} catch (final Exception e) {
-			e.printStackTrace();
+			atlas = new TextureAtlas(ATLAS_IMAGES);
+		} catch (final IOException e) {
+			System.out.println("Error: " + e.getMessage());
+			System.exit(1);
 		}
-		// compile vertex shader
-		gl.glShaderSource(vertexShader, 1, new String[]{vSource}, (int[])null, 0);
-		gl.glCompileShader(vertexShader);
-		// compile fragment shader
-		gl.glShaderSource(fragmentShader, 1, new String[]{fSource}, (int[])null, 0);
-		gl.glCompileShader(fragmentShader);
-
-		// create shader program
-		final int shaderprogram = gl.glCreateProgram();
-		// attach shaders
-		gl.glAttachShader(shaderprogram, vertexShader);
-		gl.glAttachShader(shaderprogram, fragmentShader);
-
-		gl.glLinkProgram(shaderprogram);
-		gl.glValidateProgram(shaderprogram);
-		gl.glUseProgram(shaderprogram);
+		textureLoader = new TextureLoader(glp, TEXTURE_CACHE, 3);
+		atlasData = textureLoader.load(atlas, bakedTextures);
+
+		profiler.init(gl);
+		pacer.init(gl);
+		shaders.init(gl);
+		loadMeshes(gl);
+		loadToroidLevels(gl);
+		particleRenderer = new ParticleRenderer(gl);
+		starfield = new Starfield(gl, starCount, STAR_SEED);
+		System.out.println("Toroid: " + toroid.getVertexFormat() + " vertices, " + toroid.getUploadedBytes() + " bytes uploaded");
 	}
 
 	/**
+	 * Builds the retained geometry for the planet, asteroid and ship once,
+	 * at every level of detail, in place of the GLU quadrics that were
+	 * tessellated every frame.
 	 * @param gl
 	 */
-	private void loadToroid(final GL2 gl) {
-		loadVertices();
-//		printVertices();
-//		printNormals();
-		loadVBOs(gl);
-
-
-	}
-
-	private void loadVBOs(final GL2 gl) {
-		vertexBufferObjects = new int[4];
-		gl.glGenBuffers(4, vertexBufferObjects, 0);
-		// spine vertices
-		final DoubleBuffer toroidBuff = DoubleBuffer.allocate(spineVertices.length);
-		toroidBuff.put(spineVertices);
-		toroidBuff.rewind();
-		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexBufferObjects[0]); // bind vertex buffer
-		gl.glBufferData(GL.GL_ARRAY_BUFFER, spineVertices.length*Buffers.SIZEOF_DOUBLE, toroidBuff, GL.GL_STATIC_DRAW);
-
-		// Frenet frame vertices
-		final DoubleBuffer frameBuff = DoubleBuffer.allocate(frameVertices.length);
-		frameBuff.put(frameVertices);
-		frameBuff.rewind();
-		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexBufferObjects[1]);
-		gl.glBufferData(GL.GL_ARRAY_BUFFER, frameVertices.length*Buffers.SIZEOF_DOUBLE, frameBuff, GL.GL_STATIC_DRAW);
-
-		// load vertex array indices
-		final IntBuffer frameIndexBuff = IntBuffer.allocate(tubeStrips.length);
-		frameIndexBuff.put(tubeStrips);
-		frameIndexBuff.rewind();
-		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, vertexBufferObjects[2]);
-		gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, tubeStrips.length*Buffers.SIZEOF_INT, frameIndexBuff, GL.GL_STATIC_DRAW);
-
-		// load vertex normal values
-		DoubleBuffer normalBuff = DoubleBuffer.allocate(surfaceNormals.length);
-		normalBuff.put(surfaceNormals);
-		normalBuff.rewind();
-		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexBufferObjects[3]);
-		gl.glBufferData(GL.GL_ARRAY_BUFFER, surfaceNormals.length*Buffers.SIZEOF_DOUBLE, normalBuff, GL.GL_STATIC_DRAW);
-
-	}
-
-	/**
-	 * @param i
-	 * @param j
-	 * @param k
-	 * @param l
-	 * @return
-	 */
-	private void loadVertices() {
-		spineVertices = new double[N*3];
-		frameVertices = new double[N*M*3];
-		surfaceNormals = new double[N*M*3];
-		tubeStrips = new int[N*(2*M+2)];
-
-		final double dt = 2*Math.PI/N;
-		final double du = 2*Math.PI/M;
-		// load the vertices
-		double t = 0.0;
-		for(int i = 0; i < N; ++i, t+= dt){
-			// center spine
-			final double[] centerPoint = new double[3];
-			centerPoint[0] = spineVertices[i*3] = x(t);
-			centerPoint[1] = spineVertices[i*3+1] = y(t);
-			centerPoint[2] = spineVertices[i*3+2] = z(t);
-
-			// load tangent vector
-			double[] tangent = new double[3];
-			tangent[0] = dx(t);
-			tangent[1] = dy(t);
-			tangent[2] = dz(t);
-
-			// load acceleration vector
-			final double[] acceleration = new double[3];
-			acceleration[0] = ddx(t);
-			acceleration[1] = ddy(t);
-			acceleration[2] = ddz(t);
-
-			// load binormal vector
-			double[] binormal = cross(tangent, acceleration);
-
-			// normalize vectors
-			tangent = normalize(tangent);
-			binormal = normalize(binormal);
-
-			// load normal vector
-			final double[] normal = cross(binormal, tangent);
-
-			final int iOffset = i*M*3;
-			// load next Frenet frame
-			double u = 0.0;
-			for(int j = 0; j < M; j++, u+=du){
-				final int jOffset = j*3;
-				for(int k = 0; k < 3; k++){
-					surfaceNormals[iOffset+jOffset+k] = Math.cos(u)*binormal[k] + Math.sin(u)*normal[k];
-					frameVertices[iOffset+jOffset+k] = centerPoint[k] + R*surfaceNormals[iOffset+jOffset+k];
-				}
-			}
+	private void loadMeshes(final GL2 gl) {
+		meshCache = new MeshCache();
+		final float[] planetRegion = atlas.region(PLANET_IMAGE);
+		final float[] asteroidRegion = atlas.region(ASTEROID_IMAGE);
+		final float[] shipRegion = atlas.region(SHIP_IMAGE);
+		final Mesh[] planet = new Mesh[PLANET_DETAIL.length];
+		for(int l = 0; l < planet.length; l++){
+			planet[l] = meshCache.sphere(gl, 100f, PLANET_DETAIL[l], PLANET_DETAIL[l], planetRegion);
+		}
+		final Mesh[] asteroid = new Mesh[ASTEROID_SLICES.length];
+		for(int l = 0; l < asteroid.length; l++){
+			asteroid[l] = meshCache.sphere(gl, 8f, ASTEROID_SLICES[l], ASTEROID_STACKS[l], asteroidRegion);
+		}
+		final Mesh[] hull = new Mesh[SHIP_SLICES.length];
+		final Mesh[] cap = new Mesh[SHIP_SLICES.length];
+		final Mesh[] nose = new Mesh[SHIP_SLICES.length];
+		for(int l = 0; l < hull.length; l++){
+			hull[l] = meshCache.cylinder(gl, 5f, 5f, 15f, SHIP_SLICES[l], SHIP_STACKS[l], shipRegion);
+			cap[l] = meshCache.disk(gl, 0f, 5f, SHIP_SLICES[l], SHIP_STACKS[l], shipRegion);
+			nose[l] = meshCache.cylinder(gl, 0f, 5f, 8f, SHIP_SLICES[l], SHIP_STACKS[l], shipRegion);
 		}
-		// create mesh quad strip indices
-		int n = 0;
-		for(int i = 0; i < N; i++){
-			for(int j = 0; j < M; j++){
-				tubeStrips[n++] = vertexIndex((i+1)%N, j);
-				tubeStrips[n++] = vertexIndex(i, j);
+		planetLod = new LodMesh(planet, PLANET_DETAIL);
+		asteroidLod = new LodMesh(asteroid, ASTEROID_SLICES);
+		shipHullLod = new LodMesh(hull, SHIP_SLICES);
+		shipCapLod = new LodMesh(cap, SHIP_SLICES);
+		shipNoseLod = new LodMesh(nose, SHIP_SLICES);
+		planetMesh = planet[0];
+		asteroidMesh = asteroid[0];
+		shipHullMesh = hull[0];
+		shipCapMesh = cap[0];
+		shipNoseMesh = nose[0];
+		if(asteroidCount > 0){
+			// unit spheres, scaled per asteroid
+			final Mesh[] field = new Mesh[FIELD_SLICES.length];
+			for(int l = 0; l < field.length; l++){
+				field[l] = meshCache.sphere(gl, 1f, FIELD_SLICES[l], FIELD_STACKS[l], asteroidRegion);
 			}
-			tubeStrips[n++] = vertexIndex((i+1)%N, 0);
-			tubeStrips[n++] = vertexIndex(i, 0);
+			asteroidField = new AsteroidField(gl, shaders, field, FIELD_SLICES);
 		}
 	}
 
-	private double[] normalize(final double[] vector) {
-		final double magnitude = Math.sqrt(vector[0]*vector[0] + vector[1]*vector[1] + vector[2]*vector[2]);
-		final double[] normal = new double[3];
-		normal[0] = vector[0]/magnitude;
-		normal[1] = vector[1]/magnitude;
-		normal[2] = vector[2]/magnitude;
-		return normal;
+	/**
+	 * Generates the toroid at each detail level up front, so switching
+	 * level never stalls a frame.
+	 * @param gl
+	 */
+	private void loadToroidLevels(final GL2 gl) {
+		toroidLevels = new Toroid[TOROID_DETAIL.length];
+		final int[] samples = new int[TOROID_DETAIL.length];
+		for(int l = 0; l < toroidLevels.length; l++){
+			toroidLevels[l] = l == 0 ? fullDetailToroid : fullDetailToroid.coarsened(TOROID_DETAIL[l]);
+			toroidLevels[l].load(gl);
+			samples[l] = toroidLevels[l].getN();
+		}
+		toroidMinSize = LodMesh.thresholds(samples);
+		toroid = toroidLevels[0];
 	}
 
-
-
 	/* (non-Javadoc)
 	 * @see javax.media.opengl.GLEventListener#reshape(javax.media.opengl.GLAutoDrawable, int, int, int, int)
 	 */
@@ -668,13 +851,148 @@ public class Space extends JFrame implements GLEventListener {
 		gl.glMatrixMode(GL2.GL_PROJECTION);
 		gl.glLoadIdentity();
 		final float widthHeightRatio = (float) width / (float) height;
-		glu.gluPerspective(45.0f, widthHeightRatio, 1.0f, 1.5*maxPosition);
+		// far enough for the scene and, when there is one, every chunk loaded around it
+		glu.gluPerspective(45.0f, widthHeightRatio, 1.0f,
+				universe != null ? Math.max(1.5*maxPosition, Universe.REACH) : 1.5*maxPosition);
 		display(glDrawable);
 	}
 
 
+	/**
+	 * Renders into an offscreen framebuffer instead of a window, flying the
+	 * camera along a fixed orbit, and returns how long each measured frame
+	 * took including GL finishing it.  Warmup lasts until every texture has
+	 * arrived, so all measured frames draw the same scene.
+	 * @param drawType
+	 * @param warmup
+	 * @param frames
+	 * @return frame times in nanoseconds
+	 */
+	long[] runHeadless(final int drawType, final int warmup, final int frames) {
+		camera = camera.withDrawType(drawType);
+		pacer = new FramePacer(FramePacer.Mode.UNCAPPED, 0, PLANET_DETAIL.length);
+		final GLOffscreenAutoDrawable drawable = Offscreen.create(width, height);
+		drawable.addGLEventListener(this);
+		// runs after display so the frame time covers the GPU work too
+		drawable.addGLEventListener(new GLEventListener(){
+			@Override
+			public void init(final GLAutoDrawable glDrawable) {
+				System.out.println("Renderer: " + glDrawable.getGL().glGetString(GL.GL_RENDERER));
+			}
+			@Override
+			public void display(final GLAutoDrawable glDrawable) {
+				glDrawable.getGL().glFinish();
+			}
+			@Override
+			public void reshape(final GLAutoDrawable glDrawable, final int x, final int y, final int width, final int height) {
+			}
+			@Override
+			public void dispose(final GLAutoDrawable glDrawable) {
+			}
+		});
+		followCameraPath(0, frames);
+		for(int f = 0; f < warmup || !texturesShown; f++){
+			drawable.display();
+		}
+		final long[] times = new long[frames];
+		for(int f = 0; f < frames; f++){
+			followCameraPath(f, frames);
+			for(int t = 0; t < Simulation.TICKS_PER_SECOND/30; t++){
+				simulation.step();
+			}
+			final long start = System.nanoTime();
+			drawable.display();
+			times[f] = System.nanoTime() - start;
+		}
+		drawable.destroy();
+		return times;
+	}
+
+	// one orbit around the scene per run, closing in halfway round
+	private void followCameraPath(final int frame, final int frames) {
+		final double phase = (double)frame/frames;
+		input.offer(InputQueue.ORBIT, 360.0*phase, -45.0 + 30.0*Math.sin(2*Math.PI*phase),
+				maxPosition/3*(0.6 + 0.4*Math.cos(2*Math.PI*phase)));
+	}
+
+	// the simulation flag for a ship movement key, or 0
+	private static int movementKey(final int keyCode) {
+		switch(keyCode){
+		case KeyEvent.VK_UP:
+			return Simulation.UP;
+		case KeyEvent.VK_DOWN:
+			return Simulation.DOWN;
+		case KeyEvent.VK_LEFT:
+			return Simulation.LEFT;
+		case KeyEvent.VK_RIGHT:
+			return Simulation.RIGHT;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Adds a field of n asteroids, drawn with instancing.  Must be called
+	 * before the scene starts.
+	 */
+	void setAsteroidCount(final int n) {
+		asteroidCount = n;
+		simulation.seedAsteroids(n, 1);
+	}
+
+	/**
+	 * Turns per-object level of detail on or off; off draws everything at
+	 * the finest level the frame pacer allows.
+	 */
+	void setLod(final boolean lod) {
+		this.lod = lod;
+	}
+
+	/**
+	 * Reads shaders from sourceDir, reloading them as they change, or from
+	 * the classpath for null.  Must be called before the scene starts.
+	 */
+	void setShaderDirectory(final File sourceDir) {
+		shaders = new ShaderLibrary(SHADER_CACHE, sourceDir);
+	}
+
+	/**
+	 * Sets how many particles may be alive at once.  Must be called before
+	 * the scene starts.
+	 */
+	void setParticleCapacity(final int n) {
+		particles = new ParticleSystem(n, PARTICLE_DRAG);
+	}
+
+	/**
+	 * Sets how many stars fill the sky, 0 for none; takes effect at init.
+	 */
+	void setStarCount(final int n) {
+		starCount = n;
+	}
+
+	/**
+	 * Streams a procedural universe in around the camera, holding at most
+	 * megabytes of chunks, or none for 0.  Must be called before the scene
+	 * starts.
+	 */
+	void setUniverseBudget(final int megabytes) {
+		universe = megabytes > 0 ? new Universe(UNIVERSE_SEED, (long)megabytes << 20, 1) : null;
+	}
+
+	Universe getUniverse() {
+		return universe;
+	}
+
+	FrameProfiler getProfiler() {
+		return profiler;
+	}
+
 	private void run() {
-		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		final JFrame frame = new JFrame("Space");
+		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		registerMetrics();
+		simulation.start();
 		final GLProfile prof = GLProfile.get(GLProfile.GL2);
 		final GLCapabilities glcaps = new GLCapabilities(prof);
 		glcaps.setDoubleBuffered(true);
@@ -689,65 +1007,16 @@ public class Space extends JFrame implements GLEventListener {
 				if(e.getKeyCode() == KeyEvent.VK_ESCAPE){
 					System.exit(0);
 				}
-                                
-				if(e.getKeyCode() == KeyEvent.VK_Z){
-					cameraPosition[2] += ZOOM_DELTA;
-					if(cameraPosition[2] > maxPosition){
-						cameraPosition[2] = maxPosition;
-					}
-				} else if(e.getKeyCode() == KeyEvent.VK_X){
-					cameraPosition[2] -= ZOOM_DELTA;
-					if(cameraPosition[2] < 0.0f){
-						cameraPosition[2] = 0.0f;
-					}
-				}
-				if(e.getKeyCode() == KeyEvent.VK_W){
-					cameraPosition[1] += ZOOM_DELTA;
-					if(cameraPosition[1] > maxPosition/2){
-						cameraPosition[1] = maxPosition/2;
-					}
-				} else if(e.getKeyCode() == KeyEvent.VK_S){
-					cameraPosition[1] -= ZOOM_DELTA;
-					if(cameraPosition[1] < -maxPosition/2){
-						cameraPosition[1] = -maxPosition/2;
-					}
-				}
-				if(e.getKeyCode() == KeyEvent.VK_A){
-					cameraPosition[0] -= ZOOM_DELTA;
-					if(cameraPosition[0] < -maxPosition/2){
-						cameraPosition[0] = -maxPosition/2;
-					}
-				} else if(e.getKeyCode() == KeyEvent.VK_D){
-					cameraPosition[0] += ZOOM_DELTA;
-					if(cameraPosition[0] > maxPosition/2){
-						cameraPosition[0] = maxPosition/2;
-					}
-				}
-				if(e.getKeyCode() == KeyEvent.VK_1){
-					drawType = 0;
-				}
-				if(e.getKeyCode() == KeyEvent.VK_2){
-					drawType = 1;
-				}
-				if(e.getKeyCode() == KeyEvent.VK_3){
-					drawType = 2;
+				final int movement = movementKey(e.getKeyCode());
+				if(movement != 0){
+					simulation.press(movement);
+				} else {
+					input.offer(InputQueue.KEY, e.getKeyCode(), 0, 0);
 				}
-                                if(e.getKeyCode() == KeyEvent.VK_UP){
-                                    FORWARD = FORWARD + 5f;
-                                }
-                                if(e.getKeyCode() == KeyEvent.VK_DOWN){
-                                    FORWARD = FORWARD - 5f;
-                                }
-                                if(e.getKeyCode() == KeyEvent.VK_LEFT){
-                                    RIGHT = RIGHT + 5f;
-                                }
-                                if(e.getKeyCode() == KeyEvent.VK_RIGHT){
-                                    RIGHT = RIGHT - 5f;
-                                }
-
 			}
 			@Override
 			public void keyReleased(final KeyEvent e) {
+				simulation.release(movementKey(e.getKeyCode()));
 			}
 			@Override
 			public void keyTyped(final KeyEvent e) {
@@ -756,24 +1025,7 @@ public class Space extends JFrame implements GLEventListener {
 		MouseInputAdapter mia = new MouseInputAdapter(){
 			@Override
 			public void mouseDragged(MouseEvent e) {
-				dx = e.getX()-mousex;
-				dy = e.getY()-mousey;
-				rotatex += dx*DEGREES_PER_PIXEL;
-				rotatey += dy*DEGREES_PER_PIXEL;
-				if (rotatex > 360){
-					rotatex = 0;
-				}
-				if(rotatex < -360){
-					rotatex = -0;
-				}
-				if(rotatey > 360){
-					rotatey = 0;
-				}
-				if(rotatey < -360){
-					rotatey = -0;
-				}
-				dx = 0;
-				dy = 0;
+				input.offer(InputQueue.DRAG, e.getX()-mousex, e.getY()-mousey, 0);
 				mousex = e.getX();
 				mousey = e.getY();
 			}
@@ -793,19 +1045,7 @@ public class Space extends JFrame implements GLEventListener {
                 MouseWheelListener mwl = new MouseWheelListener(){
                     @Override
                         public void mouseWheelMoved(MouseWheelEvent e){
-                            int notches = e.getWheelRotation();
-                            
-                            if(notches > 0){
-                                cameraPosition[2] += ZOOM_DELTA;
-				if(cameraPosition[2] > maxPosition){
-					cameraPosition[2] = maxPosition;
-				}
-                            } else{
-                                cameraPosition[2] -= ZOOM_DELTA;
-				if(cameraPosition[2] < 0.0f){
-					cameraPosition[2] = 0.0f;
-				}
-                            }
+                            input.offer(InputQueue.WHEEL, e.getWheelRotation(), 0, 0);
 
                         }
                 };
@@ -815,39 +1055,49 @@ public class Space extends JFrame implements GLEventListener {
                 glcanvas.addMouseWheelListener(mwl);
 		glcanvas.addMouseListener(mia);
 		glcanvas.addMouseMotionListener(mia);
-		this.getContentPane().add(glcanvas, BorderLayout.CENTER);
-		setSize(800, 800);
-		centerWindow(this);
-		animator = new FPSAnimator(30);
+		frame.getContentPane().add(glcanvas, BorderLayout.CENTER);
+		frame.setSize(800, 800);
+		centerWindow(frame);
+		animator = pacer.createAnimator();
 		animator.add(glcanvas);
-		setVisible(true);
+		frame.setVisible(true);
 		glcanvas.requestFocus();
 		animator.start();
 	}
 
 	/**
-	 * @param gl
+	 * Publishes the frame profiler and pacer over JMX and, when a profile
+	 * file was given, writes the recorded frames to it as the application
+	 * exits.
 	 */
-
-	private int vertexIndex(final int i, final int j){
-		return i*M+j;
-	}
-
-
-
-	private double x(final double t) {
-		return (A + B*Math.cos(Q*t)) * Math.cos(P*t);
-	}
-
-
-	private double y(final double t) {
-		return (A + B*Math.cos(Q*t)) * Math.sin(P*t);
+	private void registerMetrics() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(profiler, new ObjectName("space:type=FrameProfiler"));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(pacer, new ObjectName("space:type=FramePacer"));
+			if(universe != null){
+				ManagementFactory.getPlatformMBeanServer().registerMBean(universe, new ObjectName("space:type=Universe"));
+			}
+		} catch (final JMException e) {
+			System.out.println("Could not register frame metrics: " + e.getMessage());
+		}
+		if(profileFile != null){
+			Runtime.getRuntime().addShutdownHook(new Thread("profile-writer"){
+				@Override
+				public void run() {
+					try {
+						profiler.writeCsv(profileFile);
+						System.out.print(profiler.passSummary());
+						if(universe != null){
+							System.out.println(universe.summary());
+						}
+					} catch (final IOException e) {
+						System.out.println("Could not write profile '" + profileFile + "': " + e.getMessage());
+					}
+				}
+			});
+		}
 	}
 
 
-	private double z(final double t) {
-		return B*Math.sin(Q*t);
-	}
-
 
 }
\ No newline at end of file
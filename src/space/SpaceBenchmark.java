@@ -0,0 +1,84 @@
+package space;
+
+import java.util.Arrays;
+
+/**
+ * Renders the full scene offscreen for each draw type, with the camera
+ * flying the same orbit every run, and reports frame time statistics.  No
+ * window is opened, so it runs on build servers without a display or GPU:
+ * with Mesa, LIBGL_ALWAYS_SOFTWARE=1 selects the llvmpipe software
+ * renderer, and a virtual X server such as Xvfb provides the display the
+ * offscreen framebuffer is created on.
+ *
+ * Draw type 0 is the toroid spine; 1 and 2 both draw the planet scene.
+ * Triangle throughput is reported alongside; run with -lod false to see it
+ * without level of detail, and with -stars 0 to see what the starfield
+ * adds to each frame.  The streaming universe's chunk loads and memory
+ * are printed after each run of the scene; -universe 0 leaves it out.
+ *
+ * java -Djava.awt.headless=true space.SpaceBenchmark [-frames F] [-warmup W] [-runs R] [-asteroids A] [-lod L] [-stars S] [-universe MB]
+ */
+public class SpaceBenchmark {
+
+	private static final int[] DRAW_TYPES = {0, 1, 2};
+
+	public static void main(final String[] args) {
+		int frames = 600;
+		int warmup = 60;
+		int runs = 3;
+		int asteroids = 0;
+		boolean lod = true;
+		int stars = Space.DEFAULT_STARS;
+		int universe = Space.DEFAULT_UNIVERSE_BUDGET;
+		for(int i = 0; i+1 < args.length; i += 2){
+			if(args[i].equals("-frames")){
+				frames = Integer.parseInt(args[i+1]);
+			} else if(args[i].equals("-warmup")){
+				warmup = Integer.parseInt(args[i+1]);
+			} else if(args[i].equals("-runs")){
+				runs = Integer.parseInt(args[i+1]);
+			} else if(args[i].equals("-asteroids")){
+				asteroids = Integer.parseInt(args[i+1]);
+			} else if(args[i].equals("-lod")){
+				lod = Boolean.parseBoolean(args[i+1]);
+			} else if(args[i].equals("-stars")){
+				stars = Integer.parseInt(args[i+1]);
+			} else if(args[i].equals("-universe")){
+				universe = Integer.parseInt(args[i+1]);
+			}
+		}
+
+		System.out.println("drawType\trun\tframes\tmean(ms)\tp50(ms)\tp95(ms)\tp99(ms)\tmax(ms)\tdraws\ttris\tMtris/s");
+		for(final int drawType : DRAW_TYPES){
+			for(int run = 0; run < runs; run++){
+				final Space app = new Space(100.0f, 40.0f, 1, 7, 100, 32, 20.0f,
+						Toroid.DrawMode.TRIANGLES, VertexFormat.FLOAT);
+				app.setAsteroidCount(asteroids);
+				app.setLod(lod);
+				app.setShaderDirectory(null);
+				app.setParticleCapacity(Space.DEFAULT_PARTICLES);
+				app.setStarCount(stars);
+				app.setUniverseBudget(universe);
+				final long[] times = app.runHeadless(drawType, warmup, frames);
+				final double draws = app.getProfiler().getDrawCallsPerFrame();
+				final double triangles = app.getProfiler().getTrianglesPerFrame();
+				Arrays.sort(times);
+				long total = 0;
+				for(final long time : times){
+					total += time;
+				}
+				System.out.printf("%d\t%d\t%d\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f\t%.1f\t%.0f\t%.2f%n", drawType, run, frames,
+						total/1e6/frames, percentile(times, 0.50), percentile(times, 0.95), percentile(times, 0.99),
+						times[frames-1]/1e6, draws, triangles, triangles*frames/(total/1e9)/1e6);
+				if(drawType != 0 && app.getUniverse() != null){
+					System.out.println(app.getUniverse().summary());
+				}
+			}
+		}
+	}
+
+	// nearest rank, in milliseconds
+	private static double percentile(final long[] sorted, final double q) {
+		return sorted[Math.max(0, (int)Math.ceil(q*sorted.length) - 1)]/1e6;
+	}
+}
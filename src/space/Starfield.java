@@ -0,0 +1,129 @@
+package space;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * A sky of stars generated once from a seed into a static vertex buffer and
+ * drawn with one glDrawArrays of single-pixel points.  Nothing about the
+ * stars changes after construction, so a frame costs the GPU the vertices
+ * and the CPU only the draw call.
+ *
+ * Each star is a direction, stored as three shorts scaled to the unit
+ * sphere, and a colour, 12 bytes in all.  The stars are drawn with the
+ * camera's rotation but not its position, so they sit at infinity, and
+ * before the scene with depth testing off, so they never hide anything.
+ */
+final class Starfield {
+
+	// bytes per star: direction as three shorts, two bytes of padding, then colour
+	static final int STRIDE = 12;
+	private static final float UNIT = Short.MAX_VALUE;
+	// the share of stars crowded into the band of the galaxy, and its half thickness
+	private static final float BAND_SHARE = 0.4f;
+	private static final double BAND_WIDTH = 0.08;
+
+	private final int count;
+	private final int[] buffer = new int[1];
+	private final float[] matrix = new float[16];
+
+	Starfield(final GL2 gl, final int count, final long seed) {
+		this.count = count;
+		final ByteBuffer stars = Buffers.newDirectByteBuffer(count*STRIDE);
+		generate(stars, count, seed);
+		stars.flip();
+		gl.glGenBuffers(1, buffer, 0);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer[0]);
+		gl.glBufferData(GL.GL_ARRAY_BUFFER, (long)count*STRIDE, stars, GL.GL_STATIC_DRAW);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * Writes count stars into out, the same stars for the same seed.  Most
+	 * are faint and scattered evenly; some crowd into a tilted band.
+	 */
+	static void generate(final ByteBuffer out, final int count, final long seed) {
+		final Random random = new Random(seed);
+		// the galaxy's band lies across the sky at a slant
+		final double tilt = Math.toRadians(60.0);
+		final double sinTilt = Math.sin(tilt), cosTilt = Math.cos(tilt);
+		for(int i = 0; i < count; i++){
+			final double angle = 2*Math.PI*random.nextDouble();
+			double z;
+			if(random.nextFloat() < BAND_SHARE){
+				z = Math.max(-1.0, Math.min(1.0, BAND_WIDTH*random.nextGaussian()));
+			} else {
+				z = 2*random.nextDouble() - 1;
+			}
+			final double r = Math.sqrt(1 - z*z);
+			final double x = r*Math.cos(angle);
+			final double y = r*Math.sin(angle);
+			// tip the band out of the xy plane about x
+			final double ty = y*cosTilt - z*sinTilt;
+			final double tz = y*sinTilt + z*cosTilt;
+			out.putShort((short)Math.round(x*UNIT));
+			out.putShort((short)Math.round(ty*UNIT));
+			out.putShort((short)Math.round(tz*UNIT));
+			out.putShort((short)0);
+			// a few bright stars among very many faint ones
+			final float u = random.nextFloat();
+			final float brightness = 0.15f + 0.85f*u*u*u*u*u*u;
+			// from orange through white to blue
+			final float warmth = random.nextFloat();
+			final float red = brightness*(1.0f - 0.35f*(1.0f - warmth));
+			final float green = brightness*(0.8f + 0.15f*(1.0f - Math.abs(2*warmth - 1)));
+			final float blue = brightness*(1.0f - 0.45f*warmth);
+			out.put((byte)(255*red)).put((byte)(255*green)).put((byte)(255*blue)).put((byte)0xFF);
+		}
+	}
+
+	/**
+	 * Draws every star.  GL must have no program, texture or vertex arrays
+	 * in use, as after StateCache.reset(), and is left so.
+	 * @param modelview the camera's view, whose translation is ignored
+	 * @param radius how far away to draw the sky, between the near and far planes
+	 * @return the number of draw calls issued
+	 */
+	int draw(final GL2 gl, final float[] modelview, final float radius) {
+		if(count == 0){
+			return 0;
+		}
+		System.arraycopy(modelview, 0, matrix, 0, 16);
+		matrix[12] = 0.0f;
+		matrix[13] = 0.0f;
+		matrix[14] = 0.0f;
+		gl.glPushMatrix();
+		gl.glLoadMatrixf(matrix, 0);
+		gl.glScalef(radius/UNIT, radius/UNIT, radius/UNIT);
+		gl.glDisable(GL.GL_DEPTH_TEST);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffer[0]);
+		gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+		gl.glEnableClientState(GL2.GL_COLOR_ARRAY);
+		gl.glVertexPointer(3, GL.GL_SHORT, STRIDE, 0);
+		gl.glColorPointer(4, GL.GL_UNSIGNED_BYTE, STRIDE, 4*Buffers.SIZEOF_SHORT);
+
+		gl.glDrawArrays(GL.GL_POINTS, 0, count);
+
+		gl.glDisableClientState(GL2.GL_COLOR_ARRAY);
+		gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+		// the colour array leaves the current colour undefined, and textures are modulated by it
+		gl.glColor4f(1.0f, 1.0f, 1.0f, 1.0f);
+		gl.glEnable(GL.GL_DEPTH_TEST);
+		gl.glPopMatrix();
+		return 1;
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	void dispose(final GL2 gl) {
+		gl.glDeleteBuffers(1, buffer, 0);
+	}
+}
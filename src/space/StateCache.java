@@ -0,0 +1,90 @@
+package space;
+
+import javax.media.opengl.GL2;
+
+import com.jogamp.opengl.util.texture.Texture;
+
+/**
+ * Remembers the program, texture and mesh last bound on the GL thread and
+ * skips binding them again.  Everything that draws between {@link #reset}
+ * calls must bind through the cache, or the cache will be wrong about what
+ * is bound.  Counts the changes made and avoided since the last reset.
+ */
+final class StateCache {
+
+	private int program;
+	// null when texturing is off
+	private Texture texture;
+	// null when the mesh arrays are off
+	private Mesh mesh;
+	private int changes;
+	private int avoided;
+
+	void useProgram(final GL2 gl, final int id) {
+		if(id == program){
+			avoided++;
+			return;
+		}
+		gl.glUseProgram(id);
+		program = id;
+		changes++;
+	}
+
+	/**
+	 * @param next the texture to draw with, or null to turn texturing off
+	 */
+	void bindTexture(final GL2 gl, final Texture next) {
+		if(next == texture){
+			avoided++;
+			return;
+		}
+		if(next == null){
+			texture.disable(gl);
+		} else {
+			if(texture == null){
+				next.enable(gl);
+			}
+			next.bind(gl);
+		}
+		texture = next;
+		changes++;
+	}
+
+	void bindMesh(final GL2 gl, final Mesh next) {
+		if(next == mesh){
+			avoided++;
+			return;
+		}
+		if(mesh == null){
+			Mesh.enableArrays(gl);
+		}
+		next.bindBuffers(gl);
+		mesh = next;
+		changes++;
+	}
+
+	/**
+	 * Returns GL to no program, no texture and no mesh arrays, as the
+	 * fixed-function drawing outside the cache expects, and starts
+	 * counting afresh.
+	 */
+	void reset(final GL2 gl) {
+		useProgram(gl, 0);
+		bindTexture(gl, null);
+		if(mesh != null){
+			Mesh.disableArrays(gl);
+			Mesh.unbindBuffers(gl);
+			mesh = null;
+		}
+		changes = 0;
+		avoided = 0;
+	}
+
+	int getChanges() {
+		return changes;
+	}
+
+	int getAvoided() {
+		return avoided;
+	}
+}
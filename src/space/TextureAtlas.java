@@ -0,0 +1,268 @@
+package space;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Lays several images out in one texture, so everything textured can be
+ * drawn with a single bind.  Each image is ringed with GUTTER pixels copied
+ * from its edges and rounded up to a box on an ALIGN grid; the boxes are
+ * placed on shelves, tallest first, each on the first shelf with room
+ * left.  Down to the last of MIP_LEVELS levels every texel, and every DXT1
+ * block, lies in one box, and each image still has a texel of gutter, so
+ * filtering at the edge of a region never picks up a neighbour.  The
+ * layout depends only on the image sizes, which are read from the file
+ * headers, so meshes can be built with their texture coordinates remapped
+ * before the pixels have been decoded.
+ *
+ * Rows are laid out top row first, as the JPEG path uploads them, so t
+ * runs down each region as it does down the image it came from.
+ */
+final class TextureAtlas {
+
+	// levels the atlas is mipmapped to; the last is 1/16 the size of the first
+	static final int MIP_LEVELS = 5;
+	// a texel of the last level
+	static final int GUTTER = 1 << (MIP_LEVELS - 1);
+	// a DXT1 block on the last level
+	private static final int ALIGN = 4 << (MIP_LEVELS - 1);
+
+	private final String[] names;
+	private final URL[] urls;
+	private final int[] x;
+	private final int[] y;
+	private final int[] w;
+	private final int[] h;
+	private final int width;
+	private final int height;
+	private final long sourceLength;
+	private final long sourceModified;
+
+	/**
+	 * @param resources image files next to this class
+	 * @throws IOException if an image is missing or unreadable
+	 */
+	TextureAtlas(final String... resources) throws IOException {
+		this(resources, resourceUrls(resources));
+	}
+
+	/**
+	 * @param files image files, known in the atlas by their names
+	 * @throws IOException if an image is unreadable
+	 */
+	TextureAtlas(final File... files) throws IOException {
+		this(fileNames(files), fileUrls(files));
+	}
+
+	private TextureAtlas(final String[] names, final URL[] urls) throws IOException {
+		final int n = names.length;
+		this.names = names.clone();
+		this.urls = urls;
+		x = new int[n];
+		y = new int[n];
+		w = new int[n];
+		h = new int[n];
+		final int[] boxW = new int[n];
+		final int[] boxH = new int[n];
+		long length = 0;
+		long modified = 0;
+		int widest = 0;
+		for(int i = 0; i < n; i++){
+			final long[] source = TextureLoader.stat(urls[i]);
+			length += source[0];
+			modified = Math.max(modified, source[1]);
+			readSize(i);
+			boxW[i] = align(w[i] + 2*GUTTER);
+			boxH[i] = align(h[i] + 2*GUTTER);
+			widest = Math.max(widest, boxW[i]);
+		}
+		sourceLength = length;
+		sourceModified = modified;
+
+		// no wider than the widest box, which a power of two could nearly double
+		width = widest;
+		final Integer[] order = new Integer[n];
+		for(int i = 0; i < n; i++){
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>(){
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				return boxH[b] - boxH[a];
+			}
+		});
+		// each shelf's top and the x where its next box would go
+		final int[] shelfY = new int[n];
+		final int[] shelfX = new int[n];
+		int shelves = 0;
+		int bottom = 0;
+		for(final int i : order){
+			int s = 0;
+			while(s < shelves && shelfX[s] + boxW[i] > width){
+				s++;
+			}
+			if(s == shelves){
+				shelfY[s] = bottom;
+				shelfX[s] = 0;
+				shelves++;
+				// shelves are opened tallest first, so the first box sets the height
+				bottom += boxH[i];
+			}
+			x[i] = shelfX[s] + GUTTER;
+			y[i] = shelfY[s] + GUTTER;
+			shelfX[s] += boxW[i];
+		}
+		height = bottom;
+	}
+
+	private static int align(final int size) {
+		return (size + ALIGN - 1)/ALIGN*ALIGN;
+	}
+
+	private static URL[] resourceUrls(final String[] resources) throws IOException {
+		final URL[] urls = new URL[resources.length];
+		for(int i = 0; i < resources.length; i++){
+			urls[i] = TextureAtlas.class.getResource(resources[i]);
+			if(urls[i] == null){
+				throw new IOException("Missing texture '" + resources[i] + "'");
+			}
+		}
+		return urls;
+	}
+
+	private static String[] fileNames(final File[] files) {
+		final String[] names = new String[files.length];
+		for(int i = 0; i < files.length; i++){
+			names[i] = files[i].getName();
+		}
+		return names;
+	}
+
+	private static URL[] fileUrls(final File[] files) throws IOException {
+		final URL[] urls = new URL[files.length];
+		for(int i = 0; i < files.length; i++){
+			urls[i] = files[i].toURI().toURL();
+		}
+		return urls;
+	}
+
+	private void readSize(final int i) throws IOException {
+		final ImageInputStream stream = ImageIO.createImageInputStream(urls[i].openStream());
+		try {
+			final Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if(!readers.hasNext()){
+				throw new IOException("Unreadable texture '" + names[i] + "'");
+			}
+			final ImageReader reader = readers.next();
+			try {
+				reader.setInput(stream);
+				w[i] = reader.getWidth(0);
+				h[i] = reader.getHeight(0);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * @return s0, t0, s1, t1 of the region holding resource
+	 */
+	float[] region(final String resource) {
+		for(int i = 0; i < names.length; i++){
+			if(names[i].equals(resource)){
+				return new float[]{(float)x[i]/width, (float)y[i]/height, (float)(x[i] + w[i])/width,
+						(float)(y[i] + h[i])/height};
+			}
+		}
+		throw new IllegalArgumentException(resource + " is not in the atlas");
+	}
+
+	int getWidth() {
+		return width;
+	}
+
+	int getHeight() {
+		return height;
+	}
+
+	String getName() {
+		final StringBuilder name = new StringBuilder("atlas");
+		for(final String resource : names){
+			name.append('-').append(resource.substring(0, resource.lastIndexOf('.')));
+		}
+		return name.toString();
+	}
+
+	long getSourceLength() {
+		return sourceLength;
+	}
+
+	long getSourceModified() {
+		return sourceModified;
+	}
+
+	int getImageCount() {
+		return names.length;
+	}
+
+	/**
+	 * Decodes image i, which any thread may do.
+	 * @throws IOException if it is unreadable or no longer the size it was laid out at
+	 */
+	BufferedImage decode(final int i) throws IOException {
+		final BufferedImage image = ImageIO.read(urls[i]);
+		if(image == null || image.getWidth() != w[i] || image.getHeight() != h[i]){
+			throw new IOException("Unreadable texture '" + names[i] + "'");
+		}
+		return image;
+	}
+
+	/**
+	 * Decodes every image into its box, one after another.
+	 * @return width*height pixels packed 0xRRGGBB, top row first
+	 */
+	int[] compose() throws IOException {
+		final BufferedImage[] images = new BufferedImage[names.length];
+		for(int i = 0; i < images.length; i++){
+			images[i] = decode(i);
+		}
+		return compose(images);
+	}
+
+	/**
+	 * Copies each decoded image into its box.
+	 * @param images image i from decode(i), for every i
+	 * @return width*height pixels packed 0xRRGGBB, top row first
+	 */
+	int[] compose(final BufferedImage[] images) {
+		final int[] pixels = new int[width*height];
+		for(int i = 0; i < names.length; i++){
+			final BufferedImage image = images[i];
+			final int[] row = new int[w[i]];
+			final int top = y[i] - GUTTER;
+			final int end = top + align(h[i] + 2*GUTTER);
+			final int left = x[i] - GUTTER;
+			final int right = left + align(w[i] + 2*GUTTER);
+			for(int ay = top; ay < end; ay++){
+				// the rest of the box repeats the nearest edge pixel
+				final int sy = Math.min(h[i] - 1, Math.max(0, ay - y[i]));
+				image.getRGB(0, sy, w[i], 1, row, 0, w[i]);
+				for(int ax = left; ax < right; ax++){
+					pixels[ay*width + ax] = row[Math.min(w[i] - 1, Math.max(0, ax - x[i]))] & 0xFFFFFF;
+				}
+			}
+		}
+		return pixels;
+	}
+}
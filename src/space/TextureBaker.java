@@ -0,0 +1,254 @@
+package space;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import com.jogamp.opengl.util.texture.spi.DDSImage;
+
+/**
+ * Offline asset stage that turns the scene's JPEG textures into DDS files
+ * carrying a full mipmap chain, optionally DXT1 block-compressed.  Space
+ * loads a baked "name.dds" in place of "name.jpg" when it finds one next to
+ * its classes.  Rows are stored top row first, the same order the JPEG
+ * path uploads them in, so the baked textures map onto the meshes exactly
+ * like the originals.
+ *
+ * With -atlas the images are packed into one TextureAtlas instead, baked
+ * down to its last mip level as the atlas's name with ".dds", which Space
+ * loads in place of composing the atlas from the JPEGs.
+ *
+ * java space.TextureBaker [-dxt1] [-atlas] [-out dir] image.jpg...
+ */
+public class TextureBaker {
+
+	private static final String[] DEFAULT_IMAGES = {"planet2.jpg", "asteroid1.jpg", "shiptexture1.jpg"};
+
+	public static void main(final String[] args) throws IOException {
+		boolean compress = false;
+		boolean atlas = false;
+		File out = new File("src/space");
+		final List<File> images = new ArrayList<File>();
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-dxt1")){
+				compress = true;
+			} else if(args[i].equals("-atlas")){
+				atlas = true;
+			} else if(args[i].equals("-out") && i+1 < args.length){
+				out = new File(args[++i]);
+			} else {
+				images.add(new File(args[i]));
+			}
+		}
+		if(images.isEmpty()){
+			for(final String name : atlas ? Space.ATLAS_IMAGES : DEFAULT_IMAGES){
+				images.add(new File("src/space", name));
+			}
+		}
+
+		System.out.println("texture\tsize\tjpg path\tmipmapped\tdxt1");
+		if(atlas){
+			final TextureAtlas layout = new TextureAtlas(images.toArray(new File[images.size()]));
+			bake(layout.getName(), layout.compose(), layout.getWidth(), layout.getHeight(), TextureAtlas.MIP_LEVELS,
+					compress, out);
+			return;
+		}
+		for(final File file : images){
+			final BufferedImage image = ImageIO.read(file);
+			if(image == null){
+				System.out.println("Error: cannot read '" + file + "'");
+				System.exit(1);
+			}
+			final int width = image.getWidth();
+			final int height = image.getHeight();
+			bake(file.getName().replaceFirst("\\.[^.]*$", ""), image.getRGB(0, 0, width, height, null, 0, width),
+					width, height, Integer.MAX_VALUE, compress, out);
+		}
+	}
+
+	// writes name.dds with up to levels mip levels and prints its row of the table
+	private static void bake(final String name, final int[] pixels, final int width, final int height, final int levels,
+			final boolean compress, final File out) throws IOException {
+		final List<int[]> chain = mipmaps(pixels, width, height, levels);
+		final ByteBuffer[] data = new ByteBuffer[chain.size()];
+		long rgbBytes = 0;
+		long dxtBytes = 0;
+		int w = width;
+		int h = height;
+		for(int level = 0; level < data.length; level++){
+			final ByteBuffer rgb = rgb(chain.get(level), w, h);
+			final ByteBuffer dxt = dxt1(chain.get(level), w, h);
+			rgbBytes += rgb.capacity();
+			dxtBytes += dxt.capacity();
+			data[level] = compress ? dxt : rgb;
+			w = Math.max(1, w/2);
+			h = Math.max(1, h/2);
+		}
+		final DDSImage dds = DDSImage.createFromData(compress ? DDSImage.D3DFMT_DXT1 : DDSImage.D3DFMT_R8G8B8,
+				width, height, data);
+		dds.write(new File(out, name + ".dds"));
+		System.out.println(name + "\t" + width + "x" + height + "\t" + (long)width*height*3 + "\t" + rgbBytes
+				+ "\t" + dxtBytes);
+	}
+
+	/**
+	 * Box-filters pixels, packed 0xRRGGBB, down to 1x1 or to levels levels,
+	 * whichever comes first.  Each level is packed the same way.
+	 */
+	static List<int[]> mipmaps(int[] pixels, int width, int height, final int levels) {
+		final List<int[]> chain = new ArrayList<int[]>();
+		chain.add(pixels);
+		while((width > 1 || height > 1) && chain.size() < levels){
+			final int w = Math.max(1, width/2);
+			final int h = Math.max(1, height/2);
+			final int[] next = new int[w*h];
+			for(int y = 0; y < h; y++){
+				final int y0 = Math.min(2*y, height-1);
+				final int y1 = Math.min(2*y+1, height-1);
+				for(int x = 0; x < w; x++){
+					final int x0 = Math.min(2*x, width-1);
+					final int x1 = Math.min(2*x+1, width-1);
+					next[y*w+x] = average(pixels[y0*width+x0], pixels[y0*width+x1],
+							pixels[y1*width+x0], pixels[y1*width+x1]);
+				}
+			}
+			chain.add(next);
+			pixels = next;
+			width = w;
+			height = h;
+		}
+		return chain;
+	}
+
+	private static int average(final int a, final int b, final int c, final int d) {
+		final int r = (((a >> 16) & 0xFF) + ((b >> 16) & 0xFF) + ((c >> 16) & 0xFF) + ((d >> 16) & 0xFF) + 2) >> 2;
+		final int g = (((a >> 8) & 0xFF) + ((b >> 8) & 0xFF) + ((c >> 8) & 0xFF) + ((d >> 8) & 0xFF) + 2) >> 2;
+		final int bl = ((a & 0xFF) + (b & 0xFF) + (c & 0xFF) + (d & 0xFF) + 2) >> 2;
+		return r << 16 | g << 8 | bl;
+	}
+
+	private static ByteBuffer rgb(final int[] pixels, final int width, final int height) {
+		final ByteBuffer buffer = ByteBuffer.allocate(width*height*3);
+		for(final int pixel : pixels){
+			buffer.put((byte)(pixel >> 16));
+			buffer.put((byte)(pixel >> 8));
+			buffer.put((byte)pixel);
+		}
+		buffer.rewind();
+		return buffer;
+	}
+
+	/**
+	 * Encodes a level as DXT1 4x4 blocks, using the corners of each
+	 * block's color bounding box that lie along its color axis as the two
+	 * endpoints.  Blocks that hang over the edge of small levels repeat
+	 * the last row and column.
+	 */
+	static ByteBuffer dxt1(final int[] pixels, final int width, final int height) {
+		final int blocksX = (width + 3)/4;
+		final int blocksY = (height + 3)/4;
+		final ByteBuffer buffer = ByteBuffer.allocate(blocksX*blocksY*8);
+		final int[] block = new int[16];
+		final int[] palette = new int[4];
+		for(int by = 0; by < blocksY; by++){
+			for(int bx = 0; bx < blocksX; bx++){
+				int minR = 255, minG = 255, minB = 255, maxR = 0, maxG = 0, maxB = 0;
+				for(int i = 0; i < 16; i++){
+					final int x = Math.min(bx*4 + (i & 3), width-1);
+					final int y = Math.min(by*4 + (i >> 2), height-1);
+					final int pixel = pixels[y*width+x];
+					block[i] = pixel;
+					minR = Math.min(minR, (pixel >> 16) & 0xFF);
+					minG = Math.min(minG, (pixel >> 8) & 0xFF);
+					minB = Math.min(minB, pixel & 0xFF);
+					maxR = Math.max(maxR, (pixel >> 16) & 0xFF);
+					maxG = Math.max(maxG, (pixel >> 8) & 0xFF);
+					maxB = Math.max(maxB, pixel & 0xFF);
+				}
+				// run the endpoints along the block's color axis: a channel that
+				// falls while green rises takes its range the other way round
+				final int meanR = (minR + maxR)/2, meanG = (minG + maxG)/2, meanB = (minB + maxB)/2;
+				int covRG = 0, covBG = 0;
+				for(int i = 0; i < 16; i++){
+					final int dg = ((block[i] >> 8) & 0xFF) - meanG;
+					covRG += (((block[i] >> 16) & 0xFF) - meanR)*dg;
+					covBG += ((block[i] & 0xFF) - meanB)*dg;
+				}
+				if(covRG < 0){
+					final int swap = minR;
+					minR = maxR;
+					maxR = swap;
+				}
+				if(covBG < 0){
+					final int swap = minB;
+					minB = maxB;
+					maxB = swap;
+				}
+				int c0 = rgb565(maxR, maxG, maxB);
+				int c1 = rgb565(minR, minG, minB);
+				int indices = 0;
+				if(c0 != c1){
+					if(c0 < c1){
+						// c0 > c1 selects the four color mode
+						final int swap = c0;
+						c0 = c1;
+						c1 = swap;
+					}
+					palette[0] = rgb888(c0);
+					palette[1] = rgb888(c1);
+					palette[2] = mix(palette[0], palette[1]);
+					palette[3] = mix(palette[1], palette[0]);
+					for(int i = 15; i >= 0; i--){
+						indices = indices << 2 | nearest(block[i], palette);
+					}
+				}
+				buffer.put((byte)c0).put((byte)(c0 >> 8));
+				buffer.put((byte)c1).put((byte)(c1 >> 8));
+				buffer.put((byte)indices).put((byte)(indices >> 8));
+				buffer.put((byte)(indices >> 16)).put((byte)(indices >> 24));
+			}
+		}
+		buffer.rewind();
+		return buffer;
+	}
+
+	private static int rgb565(final int r, final int g, final int b) {
+		return (r*31 + 127)/255 << 11 | (g*63 + 127)/255 << 5 | (b*31 + 127)/255;
+	}
+
+	private static int rgb888(final int c) {
+		final int r = (c >> 11) & 0x1F;
+		final int g = (c >> 5) & 0x3F;
+		final int b = c & 0x1F;
+		return (r << 3 | r >> 2) << 16 | (g << 2 | g >> 4) << 8 | (b << 3 | b >> 2);
+	}
+
+	// two thirds of a plus one third of b
+	private static int mix(final int a, final int b) {
+		final int r = (2*((a >> 16) & 0xFF) + ((b >> 16) & 0xFF))/3;
+		final int g = (2*((a >> 8) & 0xFF) + ((b >> 8) & 0xFF))/3;
+		final int bl = (2*(a & 0xFF) + (b & 0xFF))/3;
+		return r << 16 | g << 8 | bl;
+	}
+
+	private static int nearest(final int pixel, final int[] palette) {
+		int best = 0;
+		int bestDistance = Integer.MAX_VALUE;
+		for(int i = 0; i < palette.length; i++){
+			final int dr = ((pixel >> 16) & 0xFF) - ((palette[i] >> 16) & 0xFF);
+			final int dg = ((pixel >> 8) & 0xFF) - ((palette[i] >> 8) & 0xFF);
+			final int db = (pixel & 0xFF) - (palette[i] & 0xFF);
+			final int distance = dr*dr + dg*dg + db*db;
+			if(distance < bestDistance){
+				best = i;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+}
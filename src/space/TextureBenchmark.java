@@ -0,0 +1,111 @@
+package space;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.media.opengl.GL2;
+import javax.media.opengl.GLContext;
+import javax.media.opengl.GLOffscreenAutoDrawable;
+import javax.media.opengl.GLProfile;
+import javax.media.opengl.glu.GLU;
+
+import com.jogamp.opengl.util.texture.Texture;
+import com.jogamp.opengl.util.texture.TextureData;
+import com.jogamp.opengl.util.texture.TextureIO;
+
+/**
+ * Compares the original JPEG textures with the ones baked by TextureBaker.
+ * For each path it reports the texture memory of the planet, asteroid and
+ * ship textures and the frame time of drawing the textured planet as it
+ * shrinks from filling the view to a few pixels.
+ *
+ * java space.TextureBenchmark [-frames F]
+ */
+public class TextureBenchmark {
+
+	private static final String[] TEXTURES = {"planet2", "asteroid1", "shiptexture1"};
+	// camera distances from the 100 unit planet
+	private static final float[] DISTANCES = {300.0f, 3000.0f, 30000.0f};
+
+	public static void main(final String[] args) throws InterruptedException, ExecutionException, IOException {
+		int frames = 200;
+		for(int i = 0; i+1 < args.length; i += 2){
+			if(args[i].equals("-frames")){
+				frames = Integer.parseInt(args[i+1]);
+			}
+		}
+
+		final GLOffscreenAutoDrawable drawable = Offscreen.create(800, 800);
+		final GLContext context = drawable.getContext();
+		if(context.makeCurrent() == GLContext.CONTEXT_NOT_CURRENT){
+			System.out.println("Error: could not make offscreen context current");
+			System.exit(1);
+		}
+		final GL2 gl = context.getGL().getGL2();
+		final GLU glu = new GLU();
+		gl.glViewport(0, 0, 800, 800);
+		gl.glEnable(GL2.GL_DEPTH_TEST);
+		gl.glMatrixMode(GL2.GL_PROJECTION);
+		gl.glLoadIdentity();
+		glu.gluPerspective(45.0f, 1.0f, 1.0f, 100000.0f);
+
+		final MeshCache meshCache = new MeshCache();
+		final Mesh planet = meshCache.sphere(gl, 100f, 50, 50);
+		// cache into a fresh directory, deleted at the end, so every run decodes the JPEGs
+		final File cache = Files.createTempDirectory("space-texture-benchmark").toFile();
+
+		System.out.print("path\tKB");
+		for(final float distance : DISTANCES){
+			System.out.print("\td=" + (int)distance + "(us)");
+		}
+		System.out.println();
+		for(final boolean baked : new boolean[]{false, true}){
+			if(baked && TextureBenchmark.class.getResource(TEXTURES[0] + ".dds") == null){
+				System.out.println("baked\tnone found, run space.TextureBaker first");
+				break;
+			}
+			final TextureLoader loader = new TextureLoader(GLProfile.get(GLProfile.GL2), cache, TEXTURES.length);
+			final Texture[] textures = new Texture[TEXTURES.length];
+			long memory = 0;
+			for(int t = 0; t < TEXTURES.length; t++){
+				final Future<TextureData> data = loader.load(TEXTURES[t], baked);
+				textures[t] = TextureIO.newTexture(data.get());
+				memory += textures[t].getEstimatedMemorySize();
+			}
+			loader.shutdown();
+
+			System.out.print((baked ? "baked" : "jpg") + "\t" + memory/1024);
+			for(final float distance : DISTANCES){
+				long elapsed = 0;
+				for(int f = 0; f < frames; f++){
+					final long start = System.nanoTime();
+					gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT);
+					gl.glMatrixMode(GL2.GL_MODELVIEW);
+					gl.glLoadIdentity();
+					glu.gluLookAt(0, 0, distance, 0, 0, 0, 0, 1, 0);
+					textures[0].enable(gl);
+					textures[0].bind(gl);
+					planet.draw(gl);
+					textures[0].disable(gl);
+					gl.glFinish();
+					elapsed += System.nanoTime() - start;
+				}
+				System.out.printf("\t%.1f", elapsed/1000.0/frames);
+			}
+			System.out.println();
+			for(final Texture texture : textures){
+				texture.destroy(gl);
+			}
+		}
+		meshCache.dispose(gl);
+		context.release();
+		drawable.destroy();
+		for(final File file : cache.listFiles()){
+			file.delete();
+		}
+		cache.delete();
+	}
+}
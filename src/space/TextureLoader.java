@@ -0,0 +1,340 @@
+package space;
+
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GLProfile;
+
+import com.jogamp.opengl.util.texture.TextureData;
+import com.jogamp.opengl.util.texture.TextureIO;
+
+/**
+ * Decodes texture images on a background pool so the GL thread only has to
+ * upload the finished pixels.  Decoded pixels are kept in a raw cache file
+ * per image, which later runs memory-map instead of decoding the image
+ * again.  A cache file is reused only while the size and modification time
+ * of its source image are unchanged.  Textures baked by TextureBaker are
+ * already in upload format and skip the cache.  A TextureAtlas composed
+ * from its images is cached the same way, against their combined size and
+ * latest modification time.
+ */
+class TextureLoader {
+
+	private static final int MAGIC = 0x53504354; // "SPCT"
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 4*10 + 8*2;
+
+	private final GLProfile glp;
+	private final File cacheDir;
+	private final ExecutorService pool;
+
+	TextureLoader(final GLProfile glp, final File cacheDir, final int threads) {
+		this.glp = glp;
+		this.cacheDir = cacheDir;
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "texture-loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts loading the texture "name" from next to this class.  When
+	 * baked textures are preferred and TextureBaker has produced a
+	 * mipmapped "name.dds", that is loaded as is; otherwise "name.jpg" is
+	 * decoded without mipmaps.
+	 */
+	Future<TextureData> load(final String name, final boolean preferBaked) {
+		final String baked = name + ".dds";
+		if(preferBaked && getClass().getResource(baked) != null){
+			return load(baked, TextureIO.DDS, true);
+		}
+		return load(name + ".jpg", TextureIO.JPG, false);
+	}
+
+	private Future<TextureData> load(final String resource, final String suffix, final boolean mipmap) {
+		return pool.submit(new Callable<TextureData>(){
+			@Override
+			public TextureData call() throws IOException {
+				return decode(resource, suffix, mipmap);
+			}
+		});
+	}
+
+	/**
+	 * Starts loading the atlas.  When baked textures are preferred and
+	 * TextureBaker -atlas has produced a mipmapped DDS of it, that is loaded
+	 * as is; otherwise its pixels are composed from the images, without
+	 * mipmaps.  Unless the composed atlas is cached, its images are decoded
+	 * in parallel on the pool before they are packed.
+	 */
+	Future<TextureData> load(final TextureAtlas atlas, final boolean preferBaked) {
+		final String baked = atlas.getName() + ".dds";
+		if(preferBaked && getClass().getResource(baked) != null){
+			return pool.submit(new Callable<TextureData>(){
+				@Override
+				public TextureData call() throws IOException {
+					final TextureData data = decode(baked, TextureIO.DDS, true);
+					if(data.getWidth() != atlas.getWidth() || data.getHeight() != atlas.getHeight()){
+						throw new IOException("'" + baked + "' no longer matches its images, run space.TextureBaker -atlas");
+					}
+					return data;
+				}
+			});
+		}
+		final File cacheFile = new File(cacheDir, atlas.getName() + ".raw");
+		final Future<BufferedImage>[] images = isCached(cacheFile, atlas) ? null : decodeImages(atlas);
+		return pool.submit(new Callable<TextureData>(){
+			@Override
+			public TextureData call() throws IOException {
+				if(images == null){
+					final TextureData cached = readCache(cacheFile, atlas.getSourceLength(), atlas.getSourceModified());
+					if(cached != null && cached.getWidth() == atlas.getWidth() && cached.getHeight() == atlas.getHeight()){
+						return cached;
+					}
+				}
+				return compose(atlas, cacheFile, images);
+			}
+		});
+	}
+
+	// submitted ahead of the task that waits on them, so even one thread gets through
+	private Future<BufferedImage>[] decodeImages(final TextureAtlas atlas) {
+		@SuppressWarnings("unchecked")
+		final Future<BufferedImage>[] images = new Future[atlas.getImageCount()];
+		for(int i = 0; i < images.length; i++){
+			final int image = i;
+			images[i] = pool.submit(new Callable<BufferedImage>(){
+				@Override
+				public BufferedImage call() throws IOException {
+					return atlas.decode(image);
+				}
+			});
+		}
+		return images;
+	}
+
+	void shutdown() {
+		pool.shutdownNow();
+	}
+
+	private TextureData decode(final String resource, final String suffix, final boolean mipmap) throws IOException {
+		final URL url = getClass().getResource(resource);
+		if(url == null){
+			throw new IOException("Missing texture '" + resource + "'");
+		}
+		final long[] source = stat(url);
+		final long sourceLength = source[0];
+		final long sourceModified = source[1];
+
+		final File cacheFile = new File(cacheDir, resource + ".raw");
+		if(!mipmap && cacheFile.isFile()){
+			final TextureData cached = readCache(cacheFile, sourceLength, sourceModified);
+			if(cached != null){
+				return cached;
+			}
+		}
+
+		final InputStream stream = url.openStream();
+		final TextureData data;
+		try {
+			data = TextureIO.newTextureData(glp, stream, mipmap, suffix);
+		} finally {
+			stream.close();
+		}
+		// baked textures load without decoding, only decoded images are cached
+		if(!mipmap && data.getBuffer() instanceof ByteBuffer && !data.isDataCompressed()){
+			try {
+				writeCache(cacheFile, data, sourceLength, sourceModified);
+			} catch (final IOException e) {
+				// the cache only saves time, so carry on with the decoded image
+				System.out.println("Could not cache texture '" + resource + "': " + e.getMessage());
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * @return the length and modification time of the file at url, without
+	 * leaving it open
+	 */
+	static long[] stat(final URL url) throws IOException {
+		if(url.getProtocol().equals("file")){
+			try {
+				final File file = new File(url.toURI());
+				return new long[]{file.length(), file.lastModified()};
+			} catch (final URISyntaxException e) {
+				// ask the connection instead
+			}
+		}
+		// a connection holds its file open until its stream is closed
+		final URLConnection connection = url.openConnection();
+		final InputStream stream = connection.getInputStream();
+		try {
+			return new long[]{connection.getContentLengthLong(), connection.getLastModified()};
+		} finally {
+			stream.close();
+		}
+	}
+
+	private boolean isCached(final File cacheFile, final TextureAtlas atlas) {
+		if(!cacheFile.isFile()){
+			return false;
+		}
+		try {
+			final DataInputStream in = new DataInputStream(new FileInputStream(cacheFile));
+			try {
+				return in.readInt() == MAGIC && in.readInt() == VERSION
+						&& in.readLong() == atlas.getSourceLength() && in.readLong() == atlas.getSourceModified();
+			} finally {
+				in.close();
+			}
+		} catch (final IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param images the atlas's images being decoded, or null to decode them here
+	 */
+	private TextureData compose(final TextureAtlas atlas, final File cacheFile, final Future<BufferedImage>[] images)
+			throws IOException {
+		final int[] pixels;
+		if(images == null){
+			pixels = atlas.compose();
+		} else {
+			final BufferedImage[] decoded = new BufferedImage[images.length];
+			for(int i = 0; i < images.length; i++){
+				try {
+					decoded[i] = images[i].get();
+				} catch (final InterruptedException e) {
+					throw new InterruptedIOException("interrupted composing '" + atlas.getName() + "'");
+				} catch (final ExecutionException e) {
+					if(e.getCause() instanceof IOException){
+						throw (IOException)e.getCause();
+					}
+					throw new IOException(e.getCause());
+				}
+			}
+			pixels = atlas.compose(decoded);
+		}
+		final ByteBuffer rgb = ByteBuffer.allocateDirect(pixels.length*3);
+		for(final int pixel : pixels){
+			rgb.put((byte)(pixel >> 16)).put((byte)(pixel >> 8)).put((byte)pixel);
+		}
+		rgb.clear();
+		final TextureData data = new TextureData(glp, GL.GL_RGB, atlas.getWidth(), atlas.getHeight(), 0, GL.GL_RGB,
+				GL.GL_UNSIGNED_BYTE, false, false, false, rgb, null);
+		data.setAlignment(1);
+		try {
+			writeCache(cacheFile, data, atlas.getSourceLength(), atlas.getSourceModified());
+		} catch (final IOException e) {
+			System.out.println("Could not cache texture '" + atlas.getName() + "': " + e.getMessage());
+		}
+		return data;
+	}
+
+	private TextureData readCache(final File file, final long sourceLength, final long sourceModified) throws IOException {
+		final DataInputStream in = new DataInputStream(new FileInputStream(file));
+		final int width, height, internalFormat, pixelFormat, pixelType, alignment, dataBytes;
+		final boolean flip;
+		try {
+			if(in.readInt() != MAGIC || in.readInt() != VERSION
+					|| in.readLong() != sourceLength || in.readLong() != sourceModified){
+				return null;
+			}
+			width = in.readInt();
+			height = in.readInt();
+			internalFormat = in.readInt();
+			pixelFormat = in.readInt();
+			pixelType = in.readInt();
+			alignment = in.readInt();
+			flip = in.readInt() != 0;
+			dataBytes = in.readInt();
+		} finally {
+			in.close();
+		}
+		if(HEADER_BYTES + (long)dataBytes != file.length()){
+			return null;
+		}
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		final MappedByteBuffer pixels;
+		try {
+			// the mapping stays valid after the channel is closed
+			pixels = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, dataBytes);
+		} finally {
+			raf.close();
+		}
+		final TextureData data = new TextureData(glp, internalFormat, width, height, 0, pixelFormat, pixelType,
+				false, false, flip, pixels, null);
+		data.setAlignment(alignment);
+		return data;
+	}
+
+	private void writeCache(final File file, final TextureData data, final long sourceLength, final long sourceModified) throws IOException {
+		final File dir = file.getParentFile();
+		if(!dir.isDirectory() && !dir.mkdirs()){
+			throw new IOException("cannot create " + dir);
+		}
+		final ByteBuffer pixels = ((ByteBuffer)data.getBuffer()).duplicate();
+		pixels.rewind();
+
+		// write beside the cache file and rename, so readers never see half a file
+		final File tmp = new File(dir, file.getName() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(sourceLength);
+			out.writeLong(sourceModified);
+			out.writeInt(data.getWidth());
+			out.writeInt(data.getHeight());
+			out.writeInt(data.getInternalFormat());
+			out.writeInt(data.getPixelFormat());
+			out.writeInt(data.getPixelType());
+			out.writeInt(data.getAlignment());
+			out.writeInt(data.getMustFlipVertically() ? 1 : 0);
+			out.writeInt(pixels.remaining());
+			final byte[] chunk = new byte[64*1024];
+			while(pixels.hasRemaining()){
+				final int n = Math.min(chunk.length, pixels.remaining());
+				pixels.get(chunk, 0, n);
+				out.write(chunk, 0, n);
+			}
+		} finally {
+			out.close();
+		}
+		if(!tmp.renameTo(file)){
+			file.delete();
+			if(!tmp.renameTo(file)){
+				tmp.delete();
+				throw new IOException("cannot replace " + file);
+			}
+		}
+	}
+}
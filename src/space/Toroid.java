@@ -0,0 +1,432 @@
+package space;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * A (P,Q) torus knot swept into a tube of radius R.  The spine is sampled
+ * at N points and each Frenet frame is sampled at M points around the tube.
+ */
+class Toroid {
+
+	/**
+	 * How the tube surface is submitted to GL.  STRIPS issues one quad
+	 * strip per spine segment; TRIANGLES and RESTART draw the whole tube
+	 * with a single indexed call.
+	 */
+	enum DrawMode {
+		STRIPS, TRIANGLES, RESTART;
+
+		static DrawMode parse(final String name) {
+			return valueOf(name.toUpperCase());
+		}
+	}
+
+	private static final int RESTART_INDEX = 0xFFFFFFFF;
+	// smallest run of spine samples handed to one fork-join task
+	private static final int MIN_GRAIN = 256;
+
+	private final float A;
+	private final float B;
+	private final int P;
+	private final int Q;
+	private final int N;
+	private final int M;
+	private final float R;
+	private DrawMode drawMode;
+	private VertexFormat format;
+	private long uploadedBytes;
+	private int threads = 1;
+
+	private int[] vertexBufferObjects;
+	private int indexCount;
+	// generated straight into native memory and dropped once uploaded
+	private ByteBuffer spineVertices;
+	private ByteBuffer frameVertices;
+	private ByteBuffer surfaceNormals;
+	private IntBuffer tubeIndices;
+
+	Toroid(final float a, final float b, final int p, final int q, final int n, final int m, final float r,
+			final DrawMode mode, final VertexFormat vertexFormat) {
+		A = a;
+		B = b;
+		P = p;
+		Q = q;
+		N = n;
+		M = m;
+		R = r;
+		drawMode = mode;
+		format = vertexFormat;
+	}
+
+	/**
+	 * Sets how many threads generate the mesh; 1 generates it on the
+	 * calling thread.
+	 */
+	void setThreads(final int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @return an unloaded copy of this toroid sampled divisor times more
+	 * coarsely along the spine and around the tube
+	 */
+	Toroid coarsened(final int divisor) {
+		final Toroid coarse = new Toroid(A, B, P, Q, Math.max(16, N/divisor), Math.max(6, M/divisor), R, drawMode, format);
+		coarse.setThreads(threads);
+		return coarse;
+	}
+
+	int getN() {
+		return N;
+	}
+
+	int getM() {
+		return M;
+	}
+
+	ByteBuffer getSpineVertices() {
+		return spineVertices;
+	}
+
+	ByteBuffer getFrameVertices() {
+		return frameVertices;
+	}
+
+	ByteBuffer getSurfaceNormals() {
+		return surfaceNormals;
+	}
+
+	IntBuffer getTubeIndices() {
+		return tubeIndices;
+	}
+
+	DrawMode getDrawMode() {
+		return drawMode;
+	}
+
+	VertexFormat getVertexFormat() {
+		return format;
+	}
+
+	long getUploadedBytes() {
+		return uploadedBytes;
+	}
+
+	int getDrawCallCount() {
+		return drawMode == DrawMode.STRIPS ? N : 1;
+	}
+
+	/**
+	 * @param gl
+	 */
+	void load(final GL2 gl) {
+		if(drawMode == DrawMode.RESTART && !gl.isFunctionAvailable("glPrimitiveRestartIndex")){
+			System.out.println("Primitive restart unavailable, drawing toroid as triangles");
+			drawMode = DrawMode.TRIANGLES;
+		}
+		if(!format.isSupported(gl)){
+			System.out.println("Packed normals unavailable, using float vertices");
+			format = VertexFormat.FLOAT;
+		}
+		loadVertices();
+		upload(gl);
+	}
+
+	/**
+	 * Uploads the mesh made by loadVertices(), which needs no GL and may
+	 * have run on another thread, in a format and draw mode gl supports.
+	 */
+	void upload(final GL2 gl) {
+		loadVBOs(gl);
+		// nothing on the CPU reads the mesh after upload
+		spineVertices = null;
+		frameVertices = null;
+		surfaceNormals = null;
+		tubeIndices = null;
+	}
+
+	/**
+	 * @return the bytes upload() will send, once loadVertices() has run
+	 */
+	long getVertexBytes() {
+		return spineVertices.capacity() + frameVertices.capacity() + surfaceNormals.capacity()
+				+ (long)tubeIndices.capacity()*Buffers.SIZEOF_INT;
+	}
+
+	void dispose(final GL2 gl) {
+		gl.glDeleteBuffers(vertexBufferObjects.length, vertexBufferObjects, 0);
+	}
+
+	/**
+	 * @param gl
+	 */
+	void drawSpine(final GL2 gl) {
+		gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+		// draw spine
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, vertexBufferObjects[0]);
+		gl.glVertexPointer(3, format.positionType, 0, 0);
+		gl.glDrawArrays(GL2.GL_LINE_LOOP, 0, N);
+
+	}
+
+	void drawToroid(final GL2 gl, final boolean wireFrame) {
+		gl.glPushMatrix();
+
+		// bind buffer containing vertices
+		gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, vertexBufferObjects[1]);
+		gl.glVertexPointer(3, format.positionType, 0, 0);
+
+		// bind buffer containing indices
+		gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, vertexBufferObjects[2]);
+
+
+		// bind buffer containing normals
+		gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+		gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, vertexBufferObjects[3]);
+		gl.glNormalPointer(format.normalType, 0, 0);
+
+
+		if(wireFrame){
+			// wire frame mode
+			gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_LINE);
+		} else {
+			// filled mode
+			gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_FILL);
+		}
+
+		switch(drawMode){
+		case STRIPS:
+			final int numStripVerts = 2*M+2;
+			for(int i = 0; i < N; i++){
+				gl.glDrawElements(GL2.GL_QUAD_STRIP, numStripVerts, GL2.GL_UNSIGNED_INT, i*numStripVerts*Buffers.SIZEOF_INT);
+			}
+			break;
+		case TRIANGLES:
+			gl.glDrawElements(GL2.GL_TRIANGLES, indexCount, GL2.GL_UNSIGNED_INT, 0);
+			break;
+		case RESTART:
+			gl.glEnable(GL2.GL_PRIMITIVE_RESTART);
+			gl.glPrimitiveRestartIndex(RESTART_INDEX);
+			gl.glDrawElements(GL2.GL_TRIANGLE_STRIP, indexCount, GL2.GL_UNSIGNED_INT, 0);
+			gl.glDisable(GL2.GL_PRIMITIVE_RESTART);
+			break;
+		}
+		gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_FILL);
+		gl.glPopMatrix();
+	}
+
+	private void loadVBOs(final GL2 gl) {
+		vertexBufferObjects = new int[4];
+		gl.glGenBuffers(4, vertexBufferObjects, 0);
+		uploadedBytes = 0;
+		// spine vertices
+		bufferData(gl, GL.GL_ARRAY_BUFFER, vertexBufferObjects[0], spineVertices);
+		// Frenet frame vertices
+		bufferData(gl, GL.GL_ARRAY_BUFFER, vertexBufferObjects[1], frameVertices);
+		// load vertex array indices
+		bufferData(gl, GL.GL_ELEMENT_ARRAY_BUFFER, vertexBufferObjects[2], tubeIndices);
+		// load vertex normal values
+		bufferData(gl, GL.GL_ARRAY_BUFFER, vertexBufferObjects[3], surfaceNormals);
+
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+
+	private void bufferData(final GL2 gl, final int target, final int buffer, final Buffer data) {
+		final long bytes = data instanceof IntBuffer ? data.capacity()*Buffers.SIZEOF_INT : data.capacity();
+		gl.glBindBuffer(target, buffer);
+		gl.glBufferData(target, bytes, data, GL.GL_STATIC_DRAW);
+		uploadedBytes += bytes;
+	}
+
+	/**
+	 * Samples the spine and its Frenet frames directly into native buffers
+	 * in the selected vertex format.  Every trigonometric term of
+	 * the knot is evaluated once per spine sample and the frame is built in
+	 * scalar locals, so no memory is allocated per sample.  Spine parameters
+	 * are computed as i*dt rather than accumulated; the rounding error the
+	 * old accumulation built up is the only difference from the original
+	 * per-function evaluation, and stays below 1e-7 for meshes of up to 10M
+	 * vertices (see FrenetBenchmark).  With more than one thread the spine
+	 * is split into ranges on a fork-join pool; the output is bit-identical
+	 * to the sequential path.
+	 */
+	void loadVertices() {
+		spineVertices = Buffers.newDirectByteBuffer(N*format.positionBytes);
+		frameVertices = Buffers.newDirectByteBuffer(N*M*format.positionBytes);
+		surfaceNormals = Buffers.newDirectByteBuffer(N*M*format.normalBytes);
+
+		// the tube cross section is the same for every frame
+		final double[] cosU = new double[M];
+		final double[] sinU = new double[M];
+		final double du = 2*Math.PI/M;
+		for(int j = 0; j < M; j++){
+			cosU[j] = Math.cos(j*du);
+			sinU[j] = Math.sin(j*du);
+		}
+		indexCount = N*segmentIndexCount(drawMode, M);
+		tubeIndices = Buffers.newDirectIntBuffer(indexCount);
+		if(threads > 1){
+			// every sample is independent, so ranges can be written in parallel
+			final ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				pool.invoke(new FrameTask(0, N, Math.max(MIN_GRAIN, N/(threads*8)), cosU, sinU));
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			loadFrames(0, N, cosU, sinU);
+			tubeIndices(drawMode, tubeIndices, 0, N, N, M);
+		}
+	}
+
+	private void loadFrames(final int first, final int last, final double[] cosU, final double[] sinU) {
+		final double dt = 2*Math.PI/N;
+		for(int i = first; i < last; i++){
+			final double t = i*dt;
+			final double cq = Math.cos(Q*t);
+			final double sq = Math.sin(Q*t);
+			final double cp = Math.cos(P*t);
+			final double sp = Math.sin(P*t);
+
+			// center spine
+			final double x = (A + B*cq)*cp;
+			final double y = (A + B*cq)*sp;
+			final double z = B*sq;
+			format.putPosition(spineVertices, i, x, y, z);
+
+			// tangent vector
+			final double dx = -P*y - B*Q*sq*cp;
+			final double dy = P*x - B*Q*sq*sp;
+			final double dz = B*Q*cq;
+
+			// acceleration vector
+			final double ddx = -P*dy + B*Q*(P*sq*sp - Q*cq*cp);
+			final double ddy = P*dx - B*Q*(P*sq*cp + Q*cq*sp);
+			final double ddz = -(Q*Q)*B*sq;
+
+			// binormal = tangent x acceleration, normalized
+			double bx = dy*ddz - dz*ddy;
+			double by = dz*ddx - dx*ddz;
+			double bz = dx*ddy - dy*ddx;
+			final double bLength = Math.sqrt(bx*bx + by*by + bz*bz);
+			bx /= bLength;
+			by /= bLength;
+			bz /= bLength;
+
+			final double tLength = Math.sqrt(dx*dx + dy*dy + dz*dz);
+			final double tx = dx/tLength;
+			final double ty = dy/tLength;
+			final double tz = dz/tLength;
+
+			// normal = binormal x tangent
+			final double nx = by*tz - bz*ty;
+			final double ny = bz*tx - bx*tz;
+			final double nz = bx*ty - by*tx;
+
+			// load next Frenet frame
+			int vertex = i*M;
+			for(int j = 0; j < M; j++, vertex++){
+				final double sx = cosU[j]*bx + sinU[j]*nx;
+				final double sy = cosU[j]*by + sinU[j]*ny;
+				final double sz = cosU[j]*bz + sinU[j]*nz;
+				format.putNormal(surfaceNormals, vertex, sx, sy, sz);
+				format.putPosition(frameVertices, vertex, x + R*sx, y + R*sy, z + R*sz);
+			}
+		}
+	}
+
+	/**
+	 * Number of indices the given draw mode needs per spine segment.
+	 */
+	static int segmentIndexCount(final DrawMode mode, final int M) {
+		switch(mode){
+		case TRIANGLES:
+			return M*6;
+		case RESTART:
+			return 2*M+3;
+		default:
+			return 2*M+2;
+		}
+	}
+
+	/**
+	 * Writes the indices that stitch frame i to frame i+1 for spine
+	 * segments first to last-1, in the layout the given draw mode submits.
+	 * Each segment owns a fixed slice of the index list, so disjoint
+	 * ranges can be filled independently.
+	 */
+	static void tubeIndices(final DrawMode mode, final IntBuffer indices, final int first, final int last,
+			final int N, final int M) {
+		int n = first*segmentIndexCount(mode, M);
+		for(int i = first; i < last; i++){
+			final int next = (i+1)%N;
+			if(mode == DrawMode.TRIANGLES){
+				for(int j = 0; j < M; j++){
+					final int j1 = (j+1)%M;
+					indices.put(n++, next*M+j);
+					indices.put(n++, i*M+j);
+					indices.put(n++, next*M+j1);
+					indices.put(n++, next*M+j1);
+					indices.put(n++, i*M+j);
+					indices.put(n++, i*M+j1);
+				}
+			} else {
+				// quad strip around the tube, closed back onto j = 0
+				for(int j = 0; j < M; j++){
+					indices.put(n++, next*M+j);
+					indices.put(n++, i*M+j);
+				}
+				indices.put(n++, next*M);
+				indices.put(n++, i*M);
+				if(mode == DrawMode.RESTART){
+					indices.put(n++, RESTART_INDEX);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Generates a contiguous range of spine samples on a fork-join pool,
+	 * splitting it in halves until it is no larger than the grain.
+	 */
+	private final class FrameTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private final int first;
+		private final int last;
+		private final int grain;
+		private final double[] cosU;
+		private final double[] sinU;
+
+		FrameTask(final int first, final int last, final int grain, final double[] cosU, final double[] sinU) {
+			this.first = first;
+			this.last = last;
+			this.grain = grain;
+			this.cosU = cosU;
+			this.sinU = sinU;
+		}
+
+		@Override
+		protected void compute() {
+			if(last - first <= grain){
+				loadFrames(first, last, cosU, sinU);
+				tubeIndices(drawMode, tubeIndices, first, last, N, M);
+			} else {
+				final int middle = (first + last) >>> 1;
+				invokeAll(new FrameTask(first, middle, grain, cosU, sinU),
+						new FrameTask(middle, last, grain, cosU, sinU));
+			}
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package space;
+
+import javax.media.opengl.GL2;
+import javax.media.opengl.GLContext;
+import javax.media.opengl.GLOffscreenAutoDrawable;
+
+/**
+ * Measures how long it takes to submit the toroid tube in each draw mode
+ * and vertex format for increasing spine resolutions.  "bytes" is the size
+ * of the uploaded vertex and index buffers, "submit" is the CPU time spent
+ * issuing the draw calls and "frame" additionally waits for GL to finish
+ * them.
+ *
+ * java space.ToroidBenchmark [-m M] [-frames F]
+ */
+public class ToroidBenchmark {
+
+	private static final int[] SPINE_SAMPLES = {100, 1000, 10000, 100000};
+	private static final int WARMUP_FRAMES = 20;
+
+	public static void main(final String[] args) {
+		int M = 32;
+		int frames = 200;
+		for(int i = 0; i+1 < args.length; i += 2){
+			if(args[i].equals("-m")){
+				M = Integer.parseInt(args[i+1]);
+			} else if(args[i].equals("-frames")){
+				frames = Integer.parseInt(args[i+1]);
+			}
+		}
+
+		final GLOffscreenAutoDrawable drawable = Offscreen.create(800, 800);
+		final GLContext context = drawable.getContext();
+		if(context.makeCurrent() == GLContext.CONTEXT_NOT_CURRENT){
+			System.out.println("Error: could not make offscreen context current");
+			System.exit(1);
+		}
+		final GL2 gl = context.getGL().getGL2();
+		gl.glViewport(0, 0, 800, 800);
+
+		System.out.println("N\tM\tmode\tformat\tcalls\tbytes\tsubmit(us)\tframe(us)");
+		for(final int N : SPINE_SAMPLES){
+			for(final Toroid.DrawMode mode : Toroid.DrawMode.values()){
+				for(final VertexFormat format : VertexFormat.values()){
+					run(gl, new Toroid(100.0f, 40.0f, 1, 7, N, M, 20.0f, mode, format), frames);
+				}
+			}
+		}
+		context.release();
+		drawable.destroy();
+	}
+
+	private static void run(final GL2 gl, final Toroid toroid, final int frames) {
+		toroid.load(gl);
+		for(int f = 0; f < WARMUP_FRAMES; f++){
+			gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT);
+			toroid.drawToroid(gl, false);
+			gl.glFinish();
+		}
+		long submit = 0;
+		long frame = 0;
+		for(int f = 0; f < frames; f++){
+			gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT);
+			final long start = System.nanoTime();
+			toroid.drawToroid(gl, false);
+			final long submitted = System.nanoTime();
+			gl.glFinish();
+			final long finished = System.nanoTime();
+			submit += submitted - start;
+			frame += finished - start;
+		}
+		System.out.printf("%d\t%d\t%s\t%s\t%d\t%d\t%.1f\t%.1f%n", toroid.getN(), toroid.getM(),
+				toroid.getDrawMode(), toroid.getVertexFormat(), toroid.getDrawCallCount(), toroid.getUploadedBytes(),
+				submit/1000.0/frames, frame/1000.0/frames);
+		toroid.dispose(gl);
+	}
+}
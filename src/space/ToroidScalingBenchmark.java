@@ -0,0 +1,84 @@
+package space;
+
+/**
+ * Times parallel toroid mesh generation from one thread up to every
+ * available core, and checks that each thread count produces exactly the
+ * same vertices, normals and indices as the sequential generator.
+ *
+ * java -Xmx2g space.ToroidScalingBenchmark [-n N] [-m M] [-runs R]
+ */
+public class ToroidScalingBenchmark {
+
+	public static void main(final String[] args) {
+		int N = 200000;
+		int M = 64;
+		int runs = 5;
+		for(int i = 0; i+1 < args.length; i += 2){
+			if(args[i].equals("-n")){
+				N = Integer.parseInt(args[i+1]);
+			} else if(args[i].equals("-m")){
+				M = Integer.parseInt(args[i+1]);
+			} else if(args[i].equals("-runs")){
+				runs = Integer.parseInt(args[i+1]);
+			}
+		}
+
+		final int cores = Runtime.getRuntime().availableProcessors();
+		System.out.println("N=" + N + " M=" + M + " cores=" + cores);
+		System.out.println("threads\tms\tspeedup\tidentical");
+		final Toroid sequential = toroid(N, M, Toroid.DrawMode.TRIANGLES, 1);
+		sequential.loadVertices();
+		boolean failed = false;
+		long base = 0;
+		// always exercise the fork-join path, even on a single core
+		for(int threads = 1; threads <= Math.max(2, cores); threads++){
+			final Toroid parallel = toroid(N, M, Toroid.DrawMode.TRIANGLES, threads);
+			final long elapsed = time(parallel, runs);
+			if(threads == 1){
+				base = elapsed;
+			}
+			final boolean identical = identical(sequential, parallel);
+			failed |= !identical;
+			System.out.printf("%d\t%.1f\t%.2f\t%b%n", threads, elapsed/1e6, (double)base/elapsed, identical);
+		}
+		// the strip layouts interleave indices differently, check them too
+		for(final Toroid.DrawMode mode : Toroid.DrawMode.values()){
+			final Toroid expected = toroid(N, M, mode, 1);
+			final Toroid actual = toroid(N, M, mode, Math.max(2, cores));
+			expected.loadVertices();
+			actual.loadVertices();
+			if(!identical(expected, actual)){
+				System.out.println(mode + " indices differ");
+				failed = true;
+			}
+		}
+		if(failed){
+			System.out.println("Error: parallel output differs from the sequential generator");
+			System.exit(1);
+		}
+	}
+
+	private static Toroid toroid(final int N, final int M, final Toroid.DrawMode mode, final int threads) {
+		final Toroid toroid = new Toroid(100.0f, 40.0f, 1, 7, N, M, 20.0f, mode, VertexFormat.DOUBLE);
+		toroid.setThreads(threads);
+		return toroid;
+	}
+
+	private static long time(final Toroid toroid, final int runs) {
+		toroid.loadVertices();
+		long best = Long.MAX_VALUE;
+		for(int r = 0; r < runs; r++){
+			final long start = System.nanoTime();
+			toroid.loadVertices();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	private static boolean identical(final Toroid expected, final Toroid actual) {
+		return expected.getSpineVertices().equals(actual.getSpineVertices())
+				&& expected.getFrameVertices().equals(actual.getFrameVertices())
+				&& expected.getSurfaceNormals().equals(actual.getSurfaceNormals())
+				&& expected.getTubeIndices().equals(actual.getTubeIndices());
+	}
+}
@@ -0,0 +1,333 @@
+package space;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.media.opengl.GL2;
+
+/**
+ * An endless universe of Chunks streamed in around the camera.  Every
+ * chunk within RADIUS chunks of the camera's along each axis is wanted;
+ * those missing are generated on a background pool, nearest first, and
+ * uploaded a few pieces per frame so no frame stalls on a whole chunk.
+ *
+ * Uploaded chunks are kept in least recently wanted order.  When they hold
+ * more than the memory budget, the least recently wanted are freed until
+ * they fit, but never one still in range; while the chunks in range alone
+ * fill the budget no more are asked for.  Chunks that leave range before
+ * they are uploaded are dropped.
+ *
+ * Only the GL thread calls update() and draw(); the figures for JMX are
+ * published so readers never lock it out.
+ */
+public class Universe implements UniverseMBean {
+
+	static final float CHUNK_SIZE = 2048.0f;
+	// chunks wanted either side of the camera's along each axis
+	static final int RADIUS = 2;
+	// the farthest a wanted chunk's content can be from the camera, for the
+	// far plane: along each axis that chunk's centre is RADIUS chunks from
+	// the centre of the camera's chunk, its content half a chunk further,
+	// and the camera up to half a chunk off its own chunk's centre
+	static final float REACH = (RADIUS + 1)*CHUNK_SIZE*(float)Math.sqrt(3.0);
+	// chunks generated or waiting to upload at once
+	private static final int MAX_LOADING = 8;
+	private static final long UPLOAD_BYTES_PER_FRAME = 1 << 20;
+	// loads whose latency is kept, a power of two
+	private static final int LATENCIES = 256;
+	// the offset of every wanted chunk from the camera's, nearest first
+	private static final int[] OFFSETS = offsets(RADIUS);
+	// uploaded chunks kept at most, in range or not, even under budget
+	private static final int MAX_RESIDENT = 4*OFFSETS.length/3;
+
+	private final long seed;
+	private final long budget;
+	private final ExecutorService pool;
+	private final LinkedHashMap<Long, Chunk> resident = new LinkedHashMap<Long, Chunk>(MAX_RESIDENT, 0.75f, true);
+	// in the order asked for
+	private final LinkedHashMap<Long, Chunk> loading = new LinkedHashMap<Long, Chunk>();
+	// wanted chunks neither loading nor resident, as coordinates, nearest first
+	private final int[] missing = new int[OFFSETS.length];
+	private int missingCount;
+	private int nextMissing;
+	private int centreX, centreY, centreZ;
+	// changes whenever the camera moves into another chunk
+	private int stamp;
+	private final long[] latencies = new long[LATENCIES];
+	private final AtomicLong loaded = new AtomicLong();
+	private volatile long evicted;
+	private volatile long residentBytes;
+	private volatile int residentCount;
+	private volatile int pendingCount;
+
+	/**
+	 * @param budget the bytes uploaded chunks may hold on the GPU
+	 * @param threads how many cores generate chunks
+	 */
+	Universe(final long seed, final long budget, final int threads) {
+		this.seed = seed;
+		this.budget = budget;
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "universe-generator");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	private static int[] offsets(final int radius) {
+		final int side = 2*radius + 1;
+		final Integer[] order = new Integer[side*side*side];
+		for(int i = 0; i < order.length; i++){
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>(){
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				return distance(a, side, radius) - distance(b, side, radius);
+			}
+		});
+		final int[] offsets = new int[order.length];
+		for(int i = 0; i < order.length; i++){
+			offsets[i] = order[i];
+		}
+		return offsets;
+	}
+
+	// squared distance of offset i from the centre of a side^3 block
+	private static int distance(final int i, final int side, final int radius) {
+		final int dx = i % side - radius;
+		final int dy = i/side % side - radius;
+		final int dz = i/(side*side) - radius;
+		return dx*dx + dy*dy + dz*dz;
+	}
+
+	/**
+	 * Brings the chunks around (x, y, z) closer to loaded: asks for those
+	 * missing, uploads what has been generated, and frees what is over
+	 * budget.
+	 */
+	void update(final GL2 gl, final float x, final float y, final float z) {
+		final int cx = Math.round(x/CHUNK_SIZE);
+		final int cy = Math.round(y/CHUNK_SIZE);
+		final int cz = Math.round(z/CHUNK_SIZE);
+		if(stamp == 0 || cx != centreX || cy != centreY || cz != centreZ){
+			centreX = cx;
+			centreY = cy;
+			centreZ = cz;
+			stamp++;
+			want(gl);
+		}
+		request();
+		upload(gl);
+		evict(gl);
+		residentCount = resident.size();
+		pendingCount = loading.size() + missingCount - nextMissing;
+	}
+
+	// marks the chunks now in range, drops those loading out of range, and lists what is missing
+	private void want(final GL2 gl) {
+		final int side = 2*RADIUS + 1;
+		missingCount = 0;
+		nextMissing = 0;
+		for(final int offset : OFFSETS){
+			final long key = Chunk.key(centreX + offset % side - RADIUS, centreY + offset/side % side - RADIUS,
+					centreZ + offset/(side*side) - RADIUS);
+			Chunk chunk = resident.get(key);
+			if(chunk == null){
+				chunk = loading.get(key);
+			}
+			if(chunk != null){
+				chunk.wanted = stamp;
+			} else {
+				missing[missingCount++] = offset;
+			}
+		}
+		for(final Iterator<Chunk> i = loading.values().iterator(); i.hasNext();){
+			final Chunk chunk = i.next();
+			if(chunk.wanted != stamp){
+				chunk.generation.cancel(false);
+				if(chunk.generation.isDone() && !chunk.generation.isCancelled()){
+					chunk.dispose(gl);
+				}
+				i.remove();
+			}
+		}
+	}
+
+	private void request() {
+		final int side = 2*RADIUS + 1;
+		while(nextMissing < missingCount && loading.size() < MAX_LOADING && residentBytes < budget){
+			final int offset = missing[nextMissing++];
+			final Chunk chunk = new Chunk(centreX + offset % side - RADIUS, centreY + offset/side % side - RADIUS,
+					centreZ + offset/(side*side) - RADIUS, CHUNK_SIZE, System.nanoTime());
+			chunk.wanted = stamp;
+			chunk.generation = pool.submit(new Callable<Chunk>(){
+				@Override
+				public Chunk call() {
+					chunk.generate(seed, CHUNK_SIZE);
+					return chunk;
+				}
+			});
+			loading.put(chunk.key, chunk);
+		}
+	}
+
+	// uploads pieces of generated chunks until this frame's share of bytes is spent
+	private void upload(final GL2 gl) {
+		long sent = 0;
+		for(final Iterator<Chunk> i = loading.values().iterator(); i.hasNext() && sent < UPLOAD_BYTES_PER_FRAME;){
+			final Chunk chunk = i.next();
+			if(!chunk.generation.isDone()){
+				continue;
+			}
+			try {
+				chunk.generation.get();
+			} catch (final ExecutionException e) {
+				e.getCause().printStackTrace();
+				System.exit(1);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			while(sent < UPLOAD_BYTES_PER_FRAME && !chunk.isUploaded()){
+				sent += chunk.uploadNext(gl);
+			}
+			if(chunk.isUploaded()){
+				i.remove();
+				resident.put(chunk.key, chunk);
+				residentBytes += chunk.getBytes();
+				final long count = loaded.get();
+				latencies[(int)count & (LATENCIES - 1)] = System.nanoTime() - chunk.requested;
+				loaded.lazySet(count + 1);
+			}
+		}
+	}
+
+	private void evict(final GL2 gl) {
+		for(final Iterator<Chunk> i = resident.values().iterator(); i.hasNext();){
+			if(residentBytes <= budget && resident.size() <= MAX_RESIDENT){
+				return;
+			}
+			final Chunk chunk = i.next();
+			if(chunk.wanted == stamp){
+				// everything after it is in range too
+				return;
+			}
+			residentBytes -= chunk.getBytes();
+			chunk.dispose(gl);
+			i.remove();
+			evicted++;
+		}
+	}
+
+	/**
+	 * Draws every uploaded chunk in range that the frustum can see.  GL
+	 * must have no program, texture or vertex arrays in use, and is left
+	 * so.
+	 * @return the number of draw calls issued
+	 */
+	int draw(final GL2 gl, final Frustum frustum) {
+		// the sphere around a chunk's cube
+		final float bound = 0.87f*CHUNK_SIZE;
+		int calls = 0;
+		for(final Chunk chunk : resident.values()){
+			if(chunk.wanted == stamp && frustum.isSphereVisible(chunk.x, chunk.y, chunk.z, bound)){
+				calls += chunk.draw(gl);
+			}
+		}
+		return calls;
+	}
+
+	void dispose(final GL2 gl) {
+		pool.shutdownNow();
+		for(final Chunk chunk : resident.values()){
+			chunk.dispose(gl);
+		}
+		for(final Chunk chunk : loading.values()){
+			if(chunk.generation.isDone() && !chunk.generation.isCancelled()){
+				chunk.dispose(gl);
+			}
+		}
+		resident.clear();
+		loading.clear();
+		residentBytes = 0;
+		residentCount = 0;
+		pendingCount = 0;
+	}
+
+	@Override
+	public long getChunksLoaded() {
+		return loaded.get();
+	}
+
+	@Override
+	public long getChunksEvicted() {
+		return evicted;
+	}
+
+	@Override
+	public int getResidentChunks() {
+		return residentCount;
+	}
+
+	@Override
+	public long getResidentBytes() {
+		return residentBytes;
+	}
+
+	@Override
+	public long getMemoryBudget() {
+		return budget;
+	}
+
+	@Override
+	public int getPendingChunks() {
+		return pendingCount;
+	}
+
+	@Override
+	public double getLoadLatencyP50() {
+		return percentile(0.50);
+	}
+
+	@Override
+	public double getLoadLatencyP95() {
+		return percentile(0.95);
+	}
+
+	@Override
+	public double getLoadLatencyMax() {
+		return percentile(1.0);
+	}
+
+	// over the kept latencies, in milliseconds; a slot being written may be read either side of it
+	private double percentile(final double p) {
+		final int n = (int)Math.min(loaded.get(), LATENCIES);
+		if(n == 0){
+			return 0.0;
+		}
+		final long[] sorted = Arrays.copyOf(latencies, n);
+		Arrays.sort(sorted);
+		return sorted[Math.min(n - 1, (int)(p*n))]/1e6;
+	}
+
+	@Override
+	public String summary() {
+		return String.format("%d chunks loaded, %d evicted, %d resident in %.1f of %.1f MB, %d pending, "
+				+ "load latency p50 %.1f p95 %.1f max %.1f ms", getChunksLoaded(), getChunksEvicted(),
+				getResidentChunks(), getResidentBytes()/1048576.0, getMemoryBudget()/1048576.0, getPendingChunks(),
+				getLoadLatencyP50(), getLoadLatencyP95(), getLoadLatencyMax());
+	}
+}
@@ -0,0 +1,60 @@
+package space;
+
+import java.util.Arrays;
+
+/**
+ * Generates the chunks of the universe along a straight flight, as the
+ * background pool would while the camera travels, and prints how long a
+ * chunk takes to generate and how many bytes it will upload.  Each chunk
+ * is generated twice to check it comes out the same.  No GL is needed:
+ * upload and draw costs show in the UNIVERSE pass of the frame profiler.
+ *
+ * java space.UniverseBenchmark [-chunks C] [-seed S]
+ */
+public class UniverseBenchmark {
+
+	private static final int WARMUP_CHUNKS = 200;
+
+	public static void main(final String[] args) {
+		int chunks = 1000;
+		long seed = 11;
+		for(int i = 0; i+1 < args.length; i += 2){
+			if(args[i].equals("-chunks")){
+				chunks = Integer.parseInt(args[i+1]);
+			} else if(args[i].equals("-seed")){
+				seed = Long.parseLong(args[i+1]);
+			}
+		}
+		for(int c = 0; c < WARMUP_CHUNKS; c++){
+			new Chunk(-c, c, 1, Universe.CHUNK_SIZE, 0).generate(seed, Universe.CHUNK_SIZE);
+		}
+		final long[] times = new long[chunks];
+		long bytes = 0;
+		long largest = 0;
+		int mismatches = 0;
+		for(int c = 0; c < chunks; c++){
+			// a diagonal line of chunks through the origin, as the camera would fly
+			final int cx = c - chunks/2, cy = (c - chunks/2)/3, cz = (c - chunks/2)/2;
+			final Chunk chunk = new Chunk(cx, cy, cz, Universe.CHUNK_SIZE, 0);
+			final long start = System.nanoTime();
+			chunk.generate(seed, Universe.CHUNK_SIZE);
+			times[c] = System.nanoTime() - start;
+			final Chunk again = new Chunk(cx, cy, cz, Universe.CHUNK_SIZE, 0);
+			again.generate(seed, Universe.CHUNK_SIZE);
+			if(!again.sameAs(chunk)){
+				mismatches++;
+			}
+			bytes += chunk.getGeneratedBytes();
+			largest = Math.max(largest, chunk.getGeneratedBytes());
+		}
+		Arrays.sort(times);
+		long total = 0;
+		for(final long time : times){
+			total += time;
+		}
+		System.out.println("chunks\tmean(ms)\tp50(ms)\tp95(ms)\tmax(ms)\tmean KB\tmax KB\tin range MB\tmismatches");
+		System.out.printf("%d\t%.3f\t%.3f\t%.3f\t%.3f\t%.1f\t%.1f\t%.1f\t%d%n", chunks, total/1e6/chunks,
+				times[chunks/2]/1e6, times[(int)(0.95*chunks)]/1e6, times[chunks - 1]/1e6, bytes/1024.0/chunks,
+				largest/1024.0, Math.pow(2*Universe.RADIUS + 1, 3)*bytes/chunks/1048576.0, mismatches);
+	}
+}
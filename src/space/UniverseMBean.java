@@ -0,0 +1,32 @@
+package space;
+
+/**
+ * JMX view of the streaming universe.  Latencies are in milliseconds, from
+ * a chunk being asked for to its last piece being uploaded, over the most
+ * recent chunks loaded.
+ */
+public interface UniverseMBean {
+
+	long getChunksLoaded();
+
+	long getChunksEvicted();
+
+	int getResidentChunks();
+
+	long getResidentBytes();
+
+	long getMemoryBudget();
+
+	int getPendingChunks();
+
+	double getLoadLatencyP50();
+
+	double getLoadLatencyP95();
+
+	double getLoadLatencyMax();
+
+	/**
+	 * @return the figures above on one line
+	 */
+	String summary();
+}
@@ -0,0 +1,78 @@
+package space;
+
+import java.nio.ByteBuffer;
+
+import javax.media.opengl.GL2;
+import javax.media.opengl.GL3ES3;
+
+import com.jogamp.common.nio.Buffers;
+
+/**
+ * Storage format for toroid positions and normals in their vertex buffers.
+ * PACKED keeps float positions and stores each normal in a single
+ * GL_INT_2_10_10_10_REV word, which needs GL 3.3 or
+ * ARB_vertex_type_2_10_10_10_rev.
+ */
+enum VertexFormat {
+	DOUBLE(GL2.GL_DOUBLE, 3*Buffers.SIZEOF_DOUBLE, GL2.GL_DOUBLE, 3*Buffers.SIZEOF_DOUBLE),
+	FLOAT(GL2.GL_FLOAT, 3*Buffers.SIZEOF_FLOAT, GL2.GL_FLOAT, 3*Buffers.SIZEOF_FLOAT),
+	PACKED(GL2.GL_FLOAT, 3*Buffers.SIZEOF_FLOAT, GL3ES3.GL_INT_2_10_10_10_REV, Buffers.SIZEOF_INT);
+
+	final int positionType;
+	final int positionBytes;
+	final int normalType;
+	final int normalBytes;
+
+	private VertexFormat(final int positionType, final int positionBytes, final int normalType, final int normalBytes) {
+		this.positionType = positionType;
+		this.positionBytes = positionBytes;
+		this.normalType = normalType;
+		this.normalBytes = normalBytes;
+	}
+
+	static VertexFormat parse(final String name) {
+		return valueOf(name.toUpperCase());
+	}
+
+	boolean isSupported(final GL2 gl) {
+		return this != PACKED || gl.isExtensionAvailable("GL_ARB_vertex_type_2_10_10_10_rev");
+	}
+
+	void putPosition(final ByteBuffer buffer, final int vertex, final double x, final double y, final double z) {
+		final int offset = vertex*positionBytes;
+		if(positionType == GL2.GL_DOUBLE){
+			buffer.putDouble(offset, x);
+			buffer.putDouble(offset + Buffers.SIZEOF_DOUBLE, y);
+			buffer.putDouble(offset + 2*Buffers.SIZEOF_DOUBLE, z);
+		} else {
+			buffer.putFloat(offset, (float)x);
+			buffer.putFloat(offset + Buffers.SIZEOF_FLOAT, (float)y);
+			buffer.putFloat(offset + 2*Buffers.SIZEOF_FLOAT, (float)z);
+		}
+	}
+
+	void putNormal(final ByteBuffer buffer, final int vertex, final double x, final double y, final double z) {
+		final int offset = vertex*normalBytes;
+		switch(this){
+		case DOUBLE:
+			buffer.putDouble(offset, x);
+			buffer.putDouble(offset + Buffers.SIZEOF_DOUBLE, y);
+			buffer.putDouble(offset + 2*Buffers.SIZEOF_DOUBLE, z);
+			break;
+		case FLOAT:
+			buffer.putFloat(offset, (float)x);
+			buffer.putFloat(offset + Buffers.SIZEOF_FLOAT, (float)y);
+			buffer.putFloat(offset + 2*Buffers.SIZEOF_FLOAT, (float)z);
+			break;
+		case PACKED:
+			buffer.putInt(offset, pack(x) | pack(y) << 10 | pack(z) << 20);
+			break;
+		}
+	}
+
+	// signed normalized 10 bit component
+	private static int pack(final double value) {
+		final double clamped = Math.max(-1.0, Math.min(1.0, value));
+		return (int)Math.round(clamped*511.0) & 0x3FF;
+	}
+}
@@ -0,0 +1,37 @@
+package space;
+
+/**
+ * The moving parts of the scene after one simulation tick.  States are
+ * never changed once published, so display can blend two of them without
+ * any locking.
+ */
+final class WorldState {
+
+	final long tick;
+	// ship offset from its starting point
+	final double shipForward;
+	final double shipRight;
+	// degrees, left unwrapped so blending never jumps across 360
+	final double asteroidAngle;
+	final double alienYaw;
+
+	WorldState(final long tick, final double shipForward, final double shipRight,
+			final double asteroidAngle, final double alienYaw) {
+		this.tick = tick;
+		this.shipForward = shipForward;
+		this.shipRight = shipRight;
+		this.asteroidAngle = asteroidAngle;
+		this.alienYaw = alienYaw;
+	}
+
+	/**
+	 * @return the state alpha of the way from this one to next
+	 */
+	WorldState blend(final WorldState next, final double alpha) {
+		return new WorldState(tick,
+				shipForward + (next.shipForward - shipForward)*alpha,
+				shipRight + (next.shipRight - shipRight)*alpha,
+				asteroidAngle + (next.asteroidAngle - asteroidAngle)*alpha,
+				alienYaw + (next.alienYaw - alienYaw)*alpha);
+	}
+}
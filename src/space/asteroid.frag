@@ -0,0 +1,6 @@
+#version 120
+uniform sampler2D surface;
+uniform float textured;
+void main() {
+	gl_FragColor = mix(gl_Color, gl_Color*texture2D(surface, gl_TexCoord[0].st), textured);
+}
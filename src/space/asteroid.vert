@@ -0,0 +1,13 @@
+#version 120
+// asteroid field instances: each vertex of a unit sphere is scaled,
+// rotated by a quaternion and moved to the asteroid's position
+attribute vec4 instancePosition; // xyz, scale
+attribute vec4 instanceRotation; // unit quaternion
+void main() {
+	vec3 v = gl_Vertex.xyz*instancePosition.w;
+	vec3 t = 2.0*cross(instanceRotation.xyz, v);
+	v += instanceRotation.w*t + cross(instanceRotation.xyz, t);
+	gl_Position = gl_ModelViewProjectionMatrix*vec4(v + instancePosition.xyz, 1.0);
+	gl_TexCoord[0] = gl_MultiTexCoord0;
+	gl_FrontColor = gl_Color;
+}